@@ -0,0 +1,98 @@
+package net.e175.tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import net.e175.tools.Convertee;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.EncodingDetector;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Detection and recoding of single files, by sample encoding and file size.
+ * Files are read from the page cache, so this measures CPU cost rather than
+ * disk speed.
+ *
+ * @author Klaus Brunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DetectionBenchmark {
+
+    @Param({ "de_iso8859-1.txt", "ro_windows1250.txt", "sr_iso8859-5.txt", "de_utf-8.txt", "utf_16be_bom.txt" })
+    public String sample;
+
+    @Param({ "4096", "1048576", "33554432" })
+    public int size;
+
+    private File dir;
+
+    private File target;
+
+    private String encoding;
+
+    private Convertee convertee;
+
+    private EncodingDetector detector;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.dir = Samples.createTempDirectory("detectionBenchmark");
+        final File source = new File(this.dir, "source.txt");
+        Files.write(source.toPath(), Samples.repeat(this.sample, this.size));
+        this.target = new File(this.dir, "target.txt");
+        this.encoding = Samples.encodingOf(this.sample);
+        this.convertee = new Convertee(source);
+        this.detector = new EncodingDetector(this.convertee.getSampleBudget(), this.convertee.getMapThreshold());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Samples.deleteTree(this.dir);
+    }
+
+    /**
+     * What Convertee.detectCharset() does (it isn't accessible from here).
+     */
+    @Benchmark
+    public String detectCharset() throws IOException {
+        return this.detector.guess(this.convertee.getFile()).getDetectedCharset();
+    }
+
+    @Benchmark
+    public String encodingAccordingToBOM() throws IOException {
+        return this.convertee.encodingAccordingToBOM();
+    }
+
+    @Benchmark
+    public DetectionResult detect() throws IOException {
+        return this.convertee.detect();
+    }
+
+    @Benchmark
+    public File recode() throws IOException {
+        // recoding leaves the convertee set to UTF-8
+        this.convertee.setSourceEncoding(this.encoding);
+        this.convertee.recode(this.target);
+        return this.target;
+    }
+}
@@ -0,0 +1,114 @@
+package net.e175.tools.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import net.e175.tools.BrokenGermanUTFConversionFilter;
+import net.e175.tools.Transcoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The broken UTF-8 repair filter, on its own and as part of an in-memory
+ * transcode (compared to the same transcode without a filter).
+ *
+ * @author Klaus Brunner
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FilterBenchmark {
+
+    @Param({ "de_utf-8-broken.txt", "de_utf-8-ok.txt" })
+    public String sample;
+
+    @Param({ "65536", "4194304" })
+    public int size;
+
+    private ByteBuffer bytes;
+
+    private CharBuffer chars;
+
+    private final CharBuffer filtered = CharBuffer.allocate(Transcoder.DEFAULT_BUFFER_SIZE);
+
+    private final BrokenGermanUTFConversionFilter filter = new BrokenGermanUTFConversionFilter();
+
+    private final Transcoder transcoder = new Transcoder();
+
+    private final CountingChannel sink = new CountingChannel();
+
+    /**
+     * Discards everything written to it.
+     */
+    static final class CountingChannel implements WritableByteChannel {
+
+        long count;
+
+        public int write(final ByteBuffer src) {
+            final int n = src.remaining();
+            src.position(src.limit());
+            this.count += n;
+            return n;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+            // nothing to release
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.bytes = ByteBuffer.wrap(Samples.repeat(this.sample, this.size));
+        this.chars = Charset.forName("UTF-8").decode(this.bytes.duplicate());
+    }
+
+    @Benchmark
+    public long filter() {
+        final CharBuffer in = this.chars.duplicate();
+        this.filter.reset();
+        long count = 0;
+        boolean full;
+        do {
+            full = this.filter.filter(in, this.filtered, true);
+            count += this.filtered.position();
+            this.filtered.clear();
+        } while (full);
+        return count;
+    }
+
+    @Benchmark
+    public long transcode() throws IOException {
+        this.sink.count = 0;
+        this.transcoder.transcode(this.bytes.duplicate(), "UTF-8", this.sink, "UTF-8", true, null);
+        return this.sink.count;
+    }
+
+    @Benchmark
+    public long transcodeFiltered() throws IOException {
+        this.sink.count = 0;
+        this.transcoder.transcode(this.bytes.duplicate(), "UTF-8", this.sink, "UTF-8", true, this.filter);
+        return this.sink.count;
+    }
+}
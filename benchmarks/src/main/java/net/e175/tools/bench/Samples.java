@@ -0,0 +1,89 @@
+package net.e175.tools.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark inputs built from the test samples, which are packaged below
+ * /samples.
+ *
+ * @author Klaus Brunner
+ */
+final class Samples {
+
+    private static final Map<String, String> ENCODINGS = new HashMap<String, String>();
+
+    static {
+        ENCODINGS.put("de_iso8859-1.txt", "ISO-8859-1");
+        ENCODINGS.put("ro_windows1250.txt", "windows-1250");
+        ENCODINGS.put("sr_iso8859-5.txt", "ISO-8859-5");
+        ENCODINGS.put("ro_ibm852.txt", "IBM852");
+        ENCODINGS.put("de_utf-8.txt", "UTF-8");
+        ENCODINGS.put("de_utf-8-ok.txt", "UTF-8");
+        ENCODINGS.put("de_utf-8-broken.txt", "UTF-8");
+        ENCODINGS.put("utf_16be_bom.txt", "UTF-16BE");
+    }
+
+    private Samples() {
+        // static methods only
+    }
+
+    /**
+     * @return the encoding a sample is written in
+     */
+    static String encodingOf(final String sample) {
+        final String encoding = ENCODINGS.get(sample);
+        if (encoding == null) {
+            throw new IllegalArgumentException("unknown sample " + sample);
+        }
+        return encoding;
+    }
+
+    static byte[] load(final String sample) throws IOException {
+        try (InputStream in = Samples.class.getResourceAsStream("/samples/" + sample)) {
+            if (in == null) {
+                throw new IOException("sample not found: " + sample);
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                out.write(buf, 0, len);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Repeat a sample until it's at least the given size. Only whole copies
+     * are used, so multi-byte characters are never cut in half.
+     */
+    static byte[] repeat(final String sample, final int size) throws IOException {
+        final byte[] bytes = load(sample);
+        final int copies = Math.max(1, (size + bytes.length - 1) / bytes.length);
+        final byte[] result = new byte[copies * bytes.length];
+        for (int i = 0; i < copies; i++) {
+            System.arraycopy(bytes, 0, result, i * bytes.length, bytes.length);
+        }
+        return result;
+    }
+
+    static File createTempDirectory(final String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void deleteTree(final File f) {
+        final File[] children = f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteTree(children[i]);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,104 @@
+package net.e175.tools.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.e175.tools.Convertee;
+import net.e175.tools.TreeConverter;
+import net.e175.tools.WalkListener;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Listing trees of about 4000 empty files, half of which match the
+ * extension, in different shapes:
+ * <ul>
+ * <li>flat: all files in one directory</li>
+ * <li>deep: a chain of 64 directories with 64 files each</li>
+ * <li>bushy: four levels of four subdirectories, 12 files each</li>
+ * </ul>
+ *
+ * @author Klaus Brunner
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class TreeWalkBenchmark {
+
+    @Param({ "flat", "deep", "bushy" })
+    public String shape;
+
+    private File root;
+
+    private TreeConverter converter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        this.root = Samples.createTempDirectory("treeWalkBenchmark");
+        if ("flat".equals(this.shape)) {
+            createTree(this.root, 0, 0, 4096);
+        } else if ("deep".equals(this.shape)) {
+            createTree(this.root, 63, 1, 64);
+        } else if ("bushy".equals(this.shape)) {
+            createTree(this.root, 4, 4, 12);
+        } else {
+            throw new IllegalArgumentException("unknown shape " + this.shape);
+        }
+        this.converter = new TreeConverter(new String[] { ".java" });
+    }
+
+    private static void createTree(final File dir, final int depth, final int fanout, final int files) throws IOException {
+        for (int i = 0; i < files; i++) {
+            new File(dir, "file" + i + (((i % 2) == 0) ? ".java" : ".txt")).createNewFile();
+        }
+        if (depth > 0) {
+            for (int i = 0; i < fanout; i++) {
+                final File sub = new File(dir, "dir" + i);
+                sub.mkdir();
+                createTree(sub, depth - 1, fanout, files);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Samples.deleteTree(this.root);
+    }
+
+    @Benchmark
+    public int listTree() {
+        final List<Convertee> convertees = new ArrayList<Convertee>();
+        this.converter.listTree(this.root, convertees);
+        return convertees.size();
+    }
+
+    @Benchmark
+    public int walkParallel() {
+        final AtomicInteger count = new AtomicInteger();
+        this.converter.walk(this.root, new WalkListener() {
+            public void found(final Convertee convertee) {
+                count.incrementAndGet();
+            }
+        });
+        return count.get();
+    }
+}
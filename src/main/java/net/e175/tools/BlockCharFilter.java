@@ -0,0 +1,41 @@
+package net.e175.tools;
+
+import java.nio.CharBuffer;
+
+/**
+ * Interface for a (possibly stateful) character filter working on whole
+ * blocks of characters. Characters that may still turn out to be part of a
+ * longer match are carried over to the next call.
+ *
+ * Use {@link CharFilterAdapter} to run a single-character {@link CharFilter}
+ * through this interface.
+ *
+ * @author Klaus Brunner
+ */
+public interface BlockCharFilter {
+
+    /**
+     * Filter characters from one buffer into another, like a
+     * CharsetDecoder: as much input as possible is consumed, and the call must
+     * be repeated with the same input after making room in the output buffer
+     * if it returns true.
+     *
+     * @param in
+     *            incoming characters (read mode)
+     * @param out
+     *            filtered characters (write mode)
+     * @param endOfInput
+     *            true if in holds the last of the input, so all carried-over
+     *            characters should now be released
+     * @return true if out is full and more output is pending, false if all of
+     *         in has been consumed (and, at the end of input, all output has
+     *         been written)
+     */
+    boolean filter(CharBuffer in, CharBuffer out, boolean endOfInput);
+
+    /**
+     * Reset this filter instance, dropping all state information.
+     */
+    void reset();
+
+}
@@ -1,46 +1,109 @@
 package net.e175.tools;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.CharBuffer;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
  * This filter attempts to fix the results of botched conversions from CP-1252
- * text to UTF-8 for German characters. The problem occurs when a file already
- * encoded as UTF-8 is opened as CP-1252, but then saved again as UTF-8. This
- * results in characteristic two- to three-character gibberish where single
- * characters with diacritical marks, the eszett, or the Euro sign should be.
- * 
- * This idea could be extended to a larger set of characters, but at the moment
- * it's kept to a minimum that's known to work properly here.
- * 
+ * text to UTF-8. The problem occurs when a file already encoded as UTF-8 is
+ * opened as CP-1252, but then saved again as UTF-8. This results in
+ * characteristic two- to three-character gibberish where single characters
+ * with diacritical marks, the eszett, or the Euro sign should be.
+ *
+ * Originally limited to German characters, the repair now covers the whole
+ * Latin-1 supplement (U+00A0 to U+00FF) and the printable characters CP-1252
+ * puts at 0x80 to 0x9F (Euro sign, typographic quotes, dashes etc.). Bytes
+ * CP-1252 leaves undefined are assumed to have turned into the C1 control
+ * character of the same value, as Windows does.
+ *
  * Note that this should only be applied to UTF-8 encoded streams!
- * 
+ *
+ * All sequences are matched in a single pass by a trie that is walked as the
+ * characters stream by. No more than the characters of one possible match
+ * (at most three) are held back, so memory use is constant no matter how long
+ * the lines are. Instances are not thread-safe.
+ *
  * @author Klaus Brunner
- * 
+ *
  */
-public final class BrokenGermanUTFConversionFilter implements CharFilter {
+public final class BrokenGermanUTFConversionFilter implements CharFilter, BlockCharFilter {
 
     public static final String OLD_ENCODING = "windows-1252";
 
-    private static final String[] SRC_CHARS = { "Ä", "ä", "Ö", "ö", "Ü", "ü", "ß", "€", "é", "á", "à", "è" };
+    /** length of the longest gibberish sequence (three UTF-8 bytes) */
+    private static final int MAX_LENGTH = 3;
 
-    /** contains regexps */
-    private static final String[] BAD_CHARS = new String[SRC_CHARS.length];
-    
-    static { // static initializer for BAD_CHARS
-        try {
-            for (int i = 0; i < SRC_CHARS.length; i++) {
-                // encode each character to UTF-8
-                final byte[] utf8bytes = SRC_CHARS[i].getBytes("UTF-8");
+    /**
+     * Trie node. Children are kept in a sorted key array, there are only a
+     * few of them per node.
+     */
+    private static final class Node {
+
+        private char[] keys = new char[0];
+
+        private Node[] children = new Node[0];
+
+        /** the repaired character if a sequence ends here, 0 otherwise */
+        private char repaired = 0;
 
-                // now (erroneously) understand each single byte as a single
-                // character
-                final String badchars = new String(utf8bytes, OLD_ENCODING);
+        Node child(final char c) {
+            final int i = Arrays.binarySearch(this.keys, c);
+            return (i >= 0) ? this.children[i] : null;
+        }
+
+        Node addChild(final char c) {
+            int i = Arrays.binarySearch(this.keys, c);
+            if (i >= 0) {
+                return this.children[i];
+            }
 
-                // now convert this to a regular expression
-                BAD_CHARS[i] = "\\Q" + badchars + "\\E";
+            i = -i - 1;
+            final char[] keys = new char[this.keys.length + 1];
+            final Node[] children = new Node[keys.length];
+            System.arraycopy(this.keys, 0, keys, 0, i);
+            System.arraycopy(this.children, 0, children, 0, i);
+            keys[i] = c;
+            children[i] = new Node();
+            System.arraycopy(this.keys, i, keys, i + 1, this.keys.length - i);
+            System.arraycopy(this.children, i, children, i + 1, this.children.length - i);
+            this.keys = keys;
+            this.children = children;
+            return children[i];
+        }
+    }
+
+    /**
+     * First level of the trie, indexed by character. All gibberish starts
+     * with a character below U+0100 (CP-1252's reading of a UTF-8 lead byte).
+     */
+    private static final Node[] ROOT = new Node[256];
+
+    static { // static initializer for the trie
+        try {
+            // CP-1252 reading of each high byte
+            final byte[] high = new byte[128];
+            for (int i = 0; i < high.length; i++) {
+                high[i] = (byte) (0x80 + i);
+            }
+            final char[] cp1252 = new String(high, OLD_ENCODING).toCharArray();
+            for (int i = 0; i < cp1252.length; i++) {
+                if (cp1252[i] == '\uFFFD') {
+                    // undefined in CP-1252
+                    cp1252[i] = (char) (0x80 + i);
+                }
+            }
 
-                Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).fine("fix mapping: " + SRC_CHARS[i] + " " + BAD_CHARS[i]);
+            // the printable CP-1252 characters in 0x80 to 0x9F ...
+            for (int i = 0; i < 0x20; i++) {
+                if (cp1252[i] != (char) (0x80 + i)) {
+                    addRepair(cp1252[i], cp1252);
+                }
+            }
+            // ... and the Latin-1 supplement
+            for (char c = 0xA0; c <= 0xFF; c++) {
+                addRepair(c, cp1252);
             }
 
         } catch (final UnsupportedEncodingException e) {
@@ -48,39 +111,168 @@ public final class BrokenGermanUTFConversionFilter implements CharFilter {
         }
     }
 
-    private StringBuffer lineBuffer;
+    private static void addRepair(final char c, final char[] cp1252) throws UnsupportedEncodingException {
+        // encode the character to UTF-8
+        final byte[] utf8bytes = String.valueOf(c).getBytes("UTF-8");
+
+        // now (erroneously) understand each single byte as a single character
+        final char[] badchars = new char[utf8bytes.length];
+        for (int i = 0; i < utf8bytes.length; i++) {
+            final int b = utf8bytes[i] & 0xFF;
+            badchars[i] = (b < 0x80) ? (char) b : cp1252[b - 0x80];
+        }
+
+        Node node = ROOT[badchars[0]];
+        if (node == null) {
+            node = new Node();
+            ROOT[badchars[0]] = node;
+        }
+        for (int i = 1; i < badchars.length; i++) {
+            node = node.addChild(badchars[i]);
+        }
+        node.repaired = c;
+
+        Logger.getLogger(Logger.GLOBAL_LOGGER_NAME).finest("fix mapping: " + c + " " + new String(badchars));
+    }
+
+    /** characters of a possible match held back */
+    private final char[] candidate = new char[MAX_LENGTH];
+
+    private int candidateLength = 0;
+
+    /** trie node reached by the candidate, null if there is no candidate */
+    private Node node = null;
+
+    /** decided output not yet written */
+    private final char[] output = new char[MAX_LENGTH];
+
+    private int outputStart = 0;
+
+    private int outputEnd = 0;
+
+    private boolean finished = false;
 
     public BrokenGermanUTFConversionFilter() {
         this.reset();
     }
 
-    private String processBuffer() {
-        String buffer = this.lineBuffer.toString();
+    private static Node root(final char c) {
+        return (c < ROOT.length) ? ROOT[c] : null;
+    }
 
-        for (int i = 0; i < BAD_CHARS.length; i++) {
-            buffer = buffer.replaceAll(BAD_CHARS[i], SRC_CHARS[i]);
+    /**
+     * Advance the trie by one character, moving everything that can't be
+     * (part of) a match any more to the output.
+     */
+    private void accept(final char c) {
+        if (this.node == null) {
+            final Node start = root(c);
+            if (start != null) {
+                this.candidate[0] = c;
+                this.candidateLength = 1;
+                this.node = start;
+            } else {
+                this.output[this.outputEnd++] = c;
+            }
+            return;
         }
 
-        this.reset();
-        return buffer;
+        final Node next = this.node.child(c);
+        if (next != null) {
+            if (next.repaired != 0) {
+                this.output[this.outputEnd++] = next.repaired;
+                this.candidateLength = 0;
+                this.node = null;
+            } else {
+                this.candidate[this.candidateLength++] = c;
+                this.node = next;
+            }
+            return;
+        }
+
+        // no match: the first held character is plain text, but the others
+        // may start a new match
+        this.output[this.outputEnd++] = this.candidate[0];
+        final int held = this.candidateLength;
+        this.candidateLength = 0;
+        this.node = null;
+        for (int i = 1; i < held; i++) {
+            this.accept(this.candidate[i]);
+        }
+        this.accept(c);
     }
 
-    public synchronized String filter(final int character) {
-        switch (character) {
-        case -1: // end of stream
-            return this.processBuffer();
-        case '\n': // end of line
-        case '\r':
-            this.lineBuffer.append((char) character);
-            return this.processBuffer();
-        default:
-            this.lineBuffer.append((char) character);
+    /**
+     * Release an unfinished candidate at the end of the input.
+     */
+    private void finish() {
+        System.arraycopy(this.candidate, 0, this.output, this.outputEnd, this.candidateLength);
+        this.outputEnd += this.candidateLength;
+        this.candidateLength = 0;
+        this.node = null;
+        this.finished = true;
+    }
+
+    /**
+     * @return true if all decided output has been written
+     */
+    private boolean writeOutput(final CharBuffer out) {
+        final int n = Math.min(this.outputEnd - this.outputStart, out.remaining());
+        out.put(this.output, this.outputStart, n);
+        this.outputStart += n;
+        if (this.outputStart < this.outputEnd) {
+            return false;
         }
+        this.outputStart = 0;
+        this.outputEnd = 0;
+        return true;
+    }
 
-        return "";
+    public boolean filter(final CharBuffer in, final CharBuffer out, final boolean endOfInput) {
+        if (!this.writeOutput(out)) {
+            return true;
+        }
+
+        while (in.hasRemaining()) {
+            final char c = in.get();
+            if ((this.node == null) && out.hasRemaining() && (root(c) == null)) {
+                // fast path for the common case: nothing held back, no match
+                out.put(c);
+                continue;
+            }
+            this.accept(c);
+            if (!this.writeOutput(out)) {
+                return true;
+            }
+        }
+
+        if (endOfInput && !this.finished) {
+            this.finish();
+            return !this.writeOutput(out);
+        }
+        return false;
+    }
+
+    public String filter(final int character) {
+        if (character == -1) { // end of stream
+            this.finish();
+        } else {
+            this.accept((char) character);
+        }
+
+        if (this.outputEnd == 0) {
+            return "";
+        }
+        final String result = new String(this.output, 0, this.outputEnd);
+        this.outputEnd = 0;
+        return result;
     }
 
-    public synchronized void reset() {
-        this.lineBuffer = new StringBuffer();
+    public void reset() {
+        this.candidateLength = 0;
+        this.node = null;
+        this.outputStart = 0;
+        this.outputEnd = 0;
+        this.finished = false;
     }
 }
@@ -0,0 +1,89 @@
+package net.e175.tools;
+
+import java.nio.CharBuffer;
+
+/**
+ * Runs a single-character {@link CharFilter} as a {@link BlockCharFilter}.
+ * Output that doesn't fit into the output buffer is kept until the next call.
+ *
+ * @author Klaus Brunner
+ */
+public final class CharFilterAdapter implements BlockCharFilter {
+
+    private final CharFilter filter;
+
+    /** output of the wrapped filter not yet written */
+    private String pending = "";
+
+    private int pendingPosition = 0;
+
+    private boolean finished = false;
+
+    public CharFilterAdapter(final CharFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        this.filter = filter;
+    }
+
+    /**
+     * Wrap a filter unless it already supports blocks.
+     *
+     * @return the block filter, or null if filter is null
+     */
+    public static BlockCharFilter forFilter(final CharFilter filter) {
+        if (filter == null) {
+            return null;
+        }
+        if (filter instanceof BlockCharFilter) {
+            return (BlockCharFilter) filter;
+        }
+        return new CharFilterAdapter(filter);
+    }
+
+    public boolean filter(final CharBuffer in, final CharBuffer out, final boolean endOfInput) {
+        if (!this.writePending(out)) {
+            return true;
+        }
+
+        while (in.hasRemaining()) {
+            this.pending = this.filter.filter(in.get());
+            this.pendingPosition = 0;
+            if (!this.writePending(out)) {
+                return true;
+            }
+        }
+
+        if (endOfInput && !this.finished) {
+            this.finished = true;
+            this.pending = this.filter.filter(-1);
+            this.pendingPosition = 0;
+            return !this.writePending(out);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if all pending output has been written
+     */
+    private boolean writePending(final CharBuffer out) {
+        final int n = Math.min(this.pending.length() - this.pendingPosition, out.remaining());
+        out.put(this.pending, this.pendingPosition, this.pendingPosition + n);
+        this.pendingPosition += n;
+        return this.pendingPosition == this.pending.length();
+    }
+
+    public void reset() {
+        this.filter.reset();
+        this.pending = "";
+        this.pendingPosition = 0;
+        this.finished = false;
+    }
+
+    /**
+     * @return the wrapped filter
+     */
+    public CharFilter getFilter() {
+        return this.filter;
+    }
+}
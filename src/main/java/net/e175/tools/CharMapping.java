@@ -0,0 +1,23 @@
+package net.e175.tools;
+
+/**
+ * A stateless filter that maps each character on its own, without looking at
+ * its neighbours. Adjacent mappings in a {@link FilterChain} are fused into a
+ * single loop. {@link CharReplacement} covers the common case of a fixed set
+ * of characters to replace or remove.
+ *
+ * @author Klaus Brunner
+ */
+public interface CharMapping {
+
+    /** result of {@link #map(char)} for characters to drop */
+    int REMOVE = -1;
+
+    /**
+     * @param c
+     *            incoming character
+     * @return the replacement character, or REMOVE to drop it
+     */
+    int map(char c);
+
+}
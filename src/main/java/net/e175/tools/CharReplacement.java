@@ -0,0 +1,46 @@
+package net.e175.tools;
+
+/**
+ * Replaces or removes individual characters, e.g. non-breaking spaces or
+ * stray NULs, through a lookup table. All other characters pass unchanged.
+ * Configure an instance completely before using it; after that it's
+ * stateless and may be shared.
+ *
+ * @author Klaus Brunner
+ */
+public final class CharReplacement implements CharMapping {
+
+    /** replacement for each character up to the highest one configured */
+    private int[] table = new int[0];
+
+    /**
+     * @return this replacement
+     */
+    public CharReplacement replace(final char from, final char to) {
+        this.set(from, to);
+        return this;
+    }
+
+    /**
+     * @return this replacement
+     */
+    public CharReplacement remove(final char c) {
+        this.set(c, REMOVE);
+        return this;
+    }
+
+    private void set(final char c, final int replacement) {
+        if (c >= this.table.length) {
+            final int[] table = new int[c + 1];
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (i < this.table.length) ? this.table[i] : i;
+            }
+            this.table = table;
+        }
+        this.table[c] = replacement;
+    }
+
+    public int map(final char c) {
+        return (c < this.table.length) ? this.table[c] : c;
+    }
+}
@@ -0,0 +1,82 @@
+package net.e175.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fast, non-cryptographic 64-bit hash of file contents, used to find
+ * identical files. It consumes eight bytes per step (with the mixing
+ * constants of xxHash64), so hashing is bound by I/O rather than by the CPU.
+ * Equal hashes don't prove equal contents; compare the bytes before relying
+ * on them.
+ *
+ * @author Klaus Brunner
+ */
+public final class ContentHash {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private ContentHash() {
+        // static methods only
+    }
+
+    /**
+     * Hash a file's contents.
+     *
+     * @return the hash
+     * @throws IOException
+     */
+    public static long of(final File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long h = PRIME5;
+            long length = 0;
+            int len;
+            while ((len = channel.read(buf)) != -1) {
+                length += len;
+                buf.flip();
+                while (buf.remaining() >= 8) {
+                    h ^= round(buf.getLong());
+                    h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+                }
+                buf.compact();
+            }
+
+            buf.flip();
+            while (buf.hasRemaining()) {
+                h ^= (buf.get() & 0xFFL) * PRIME5;
+                h = Long.rotateLeft(h, 11) * PRIME1;
+            }
+            ConversionStats.getInstance().bytesRead(length);
+            return avalanche(h + length);
+        }
+    }
+
+    private static long round(final long k) {
+        return Long.rotateLeft(k * PRIME2, 31) * PRIME1;
+    }
+
+    private static long avalanche(long h) {
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+}
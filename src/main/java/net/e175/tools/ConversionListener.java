@@ -0,0 +1,41 @@
+package net.e175.tools;
+
+import java.io.IOException;
+
+/**
+ * Callback for the progress of a tree conversion. With parallel conversion,
+ * methods are called from worker threads, so implementations must be
+ * thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public interface ConversionListener {
+
+    /**
+     * A file has been converted successfully.
+     *
+     * @param convertee
+     *            the converted file
+     */
+    void converted(Convertee convertee);
+
+    /**
+     * A file has been left untouched because converting it wouldn't change
+     * its contents (e.g. it's pure ASCII or already UTF-8).
+     *
+     * @param convertee
+     *            the skipped file
+     */
+    void skipped(Convertee convertee);
+
+    /**
+     * A file could not be converted.
+     *
+     * @param convertee
+     *            the file that failed
+     * @param e
+     *            the cause
+     */
+    void failed(Convertee convertee, IOException e);
+
+}
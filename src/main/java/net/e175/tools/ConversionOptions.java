@@ -0,0 +1,184 @@
+package net.e175.tools;
+
+/**
+ * Settings for converting files with {@link TreeConverter}. Set up an instance
+ * before starting a conversion and don't change it while it runs.
+ *
+ * @author Klaus Brunner
+ */
+public final class ConversionOptions {
+
+    public static final String DEFAULT_BACKUP_EXTENSION = ".backup";
+
+    public static final double DEFAULT_MIN_DOUBLE_ENCODING_CONFIDENCE = 0.9;
+
+    private String defaultEncoding = Convertee.DEFAULT_SOURCE_ENCODING;
+
+    private boolean forceDefaultEncoding = false;
+
+    private boolean createBackups = false;
+
+    private String backupExtension = DEFAULT_BACKUP_EXTENSION;
+
+    private boolean stripBOM = true;
+
+    private boolean repairBrokenUTF8 = false;
+
+    private boolean repairDoubleEncoding = false;
+
+    private double minDoubleEncodingConfidence = DEFAULT_MIN_DOUBLE_ENCODING_CONFIDENCE;
+
+    private boolean replaceMalformedInput = false;
+
+    /**
+     * @return the encoding assumed if none can be detected
+     */
+    public String getDefaultEncoding() {
+        return this.defaultEncoding;
+    }
+
+    /**
+     * @param defaultEncoding
+     *            the encoding assumed if none can be detected
+     */
+    public void setDefaultEncoding(final String defaultEncoding) {
+        if (defaultEncoding == null) {
+            throw new IllegalArgumentException("default encoding must not be null");
+        }
+        this.defaultEncoding = defaultEncoding;
+    }
+
+    /**
+     * @return whether the default encoding is used without trying detection
+     */
+    public boolean isForceDefaultEncoding() {
+        return this.forceDefaultEncoding;
+    }
+
+    /**
+     * @param forceDefaultEncoding
+     *            whether the default encoding is used without trying
+     *            detection
+     */
+    public void setForceDefaultEncoding(final boolean forceDefaultEncoding) {
+        this.forceDefaultEncoding = forceDefaultEncoding;
+    }
+
+    /**
+     * @return whether originals are copied to a backup file first
+     */
+    public boolean isCreateBackups() {
+        return this.createBackups;
+    }
+
+    /**
+     * @param createBackups
+     *            whether originals are copied to a backup file first
+     */
+    public void setCreateBackups(final boolean createBackups) {
+        this.createBackups = createBackups;
+    }
+
+    /**
+     * @return the extension appended to backup file names
+     */
+    public String getBackupExtension() {
+        return this.backupExtension;
+    }
+
+    /**
+     * @param backupExtension
+     *            the extension appended to backup file names
+     */
+    public void setBackupExtension(final String backupExtension) {
+        if ((backupExtension == null) || (backupExtension.length() == 0)) {
+            throw new IllegalArgumentException("backup extension must not be empty");
+        }
+        this.backupExtension = backupExtension;
+    }
+
+    /**
+     * @return whether BOMs should be stripped
+     */
+    public boolean isStripBOM() {
+        return this.stripBOM;
+    }
+
+    /**
+     * @param stripBOM
+     *            whether BOMs should be stripped
+     */
+    public void setStripBOM(final boolean stripBOM) {
+        this.stripBOM = stripBOM;
+    }
+
+    /**
+     * @return whether broken (German) UTF-8 should be repaired
+     * @see BrokenGermanUTFConversionFilter
+     */
+    public boolean isRepairBrokenUTF8() {
+        return this.repairBrokenUTF8;
+    }
+
+    /**
+     * @param repairBrokenUTF8
+     *            whether broken (German) UTF-8 should be repaired
+     */
+    public void setRepairBrokenUTF8(final boolean repairBrokenUTF8) {
+        this.repairBrokenUTF8 = repairBrokenUTF8;
+    }
+
+    /**
+     * @return whether double-encoded UTF-8 should be repaired
+     * @see DoubleEncodingRepair
+     */
+    public boolean isRepairDoubleEncoding() {
+        return this.repairDoubleEncoding;
+    }
+
+    /**
+     * @param repairDoubleEncoding
+     *            whether double-encoded UTF-8 should be repaired
+     */
+    public void setRepairDoubleEncoding(final boolean repairDoubleEncoding) {
+        this.repairDoubleEncoding = repairDoubleEncoding;
+    }
+
+    /**
+     * @return the detection confidence needed to repair double encoding
+     */
+    public double getMinDoubleEncodingConfidence() {
+        return this.minDoubleEncodingConfidence;
+    }
+
+    /**
+     * @param minDoubleEncodingConfidence
+     *            the detection confidence needed to repair double encoding,
+     *            from 0 to 1
+     */
+    public void setMinDoubleEncodingConfidence(final double minDoubleEncodingConfidence) {
+        if ((minDoubleEncodingConfidence < 0) || (minDoubleEncodingConfidence > 1)) {
+            throw new IllegalArgumentException("confidence must be between 0 and 1");
+        }
+        this.minDoubleEncodingConfidence = minDoubleEncodingConfidence;
+    }
+
+    /**
+     * @return whether input that turns out not to be in the encoding detected
+     *         on a stream's prefix is replaced instead of failing
+     * @see StreamConverter
+     */
+    public boolean isReplaceMalformedInput() {
+        return this.replaceMalformedInput;
+    }
+
+    /**
+     * @param replaceMalformedInput
+     *            true to replace input that turns out not to be in the
+     *            encoding detected on a stream's prefix with U+FFFD, false to
+     *            fail the conversion
+     */
+    public void setReplaceMalformedInput(final boolean replaceMalformedInput) {
+        this.replaceMalformedInput = replaceMalformedInput;
+    }
+}
@@ -0,0 +1,240 @@
+package net.e175.tools;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Process-wide counters and phase timings of detection and conversion, so a
+ * long run can be watched (e.g. in JConsole) to see whether it's bound by
+ * I/O, detection or filtering. Call {@link #register()} to publish the
+ * statistics as an MBean named {@value #OBJECT_NAME}.
+ *
+ * Updates are a handful of atomic additions per file or buffer, so the
+ * statistics are always collected, whether they are published or not.
+ *
+ * @author Klaus Brunner
+ */
+public final class ConversionStats implements ConversionStatsMBean {
+
+    private static final Logger LOG = Logger.getLogger(ConversionStats.class.getName());
+
+    public static final String OBJECT_NAME = "net.e175.tools:type=ConversionStats";
+
+    static final int WALK = 0;
+
+    static final int SNIFF = 1;
+
+    static final int DETECT_CHARSET = 2;
+
+    static final int TRANSCODE = 3;
+
+    static final int FILTER = 4;
+
+    static final int COPY = 5;
+
+    private static final int PHASES = 6;
+
+    private static final ConversionStats INSTANCE = new ConversionStats();
+
+    private final AtomicLong filesScanned = new AtomicLong();
+
+    private final AtomicLong filesConverted = new AtomicLong();
+
+    private final AtomicLong filesSkipped = new AtomicLong();
+
+    private final AtomicLong filesFailed = new AtomicLong();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /** nanoseconds per phase */
+    private final AtomicLongArray times = new AtomicLongArray(PHASES);
+
+    private volatile long startTime = System.nanoTime();
+
+    private ConversionStats() {
+        // single instance
+    }
+
+    /**
+     * @return the statistics of this process
+     */
+    public static ConversionStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Register the statistics with the platform MBean server. Registering
+     * more than once does no harm; failures are logged, not thrown, since
+     * conversion works just as well without.
+     */
+    public static void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (final InstanceAlreadyExistsException e) {
+            // already registered
+        } catch (final JMException e) {
+            LOG.log(Level.WARNING, "cannot register " + OBJECT_NAME, e);
+        } catch (final SecurityException e) {
+            LOG.log(Level.WARNING, "cannot register " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * Wrap a listener so that the outcome of each file is counted before it
+     * is passed on.
+     */
+    static ConversionListener counting(final ConversionListener listener) {
+        return new ConversionListener() {
+            public void converted(final Convertee convertee) {
+                INSTANCE.filesConverted.incrementAndGet();
+                listener.converted(convertee);
+            }
+
+            public void skipped(final Convertee convertee) {
+                INSTANCE.filesSkipped.incrementAndGet();
+                listener.skipped(convertee);
+            }
+
+            public void failed(final Convertee convertee, final IOException e) {
+                INSTANCE.filesFailed.incrementAndGet();
+                listener.failed(convertee, e);
+            }
+        };
+    }
+
+    void filesScanned(final int count) {
+        this.filesScanned.addAndGet(count);
+    }
+
+    void bytesRead(final long count) {
+        this.bytesRead.addAndGet(count);
+    }
+
+    void bytesWritten(final long count) {
+        this.bytesWritten.addAndGet(count);
+    }
+
+    /**
+     * @param phase
+     *            one of the phase constants
+     * @param since
+     *            start of the phase, from System.nanoTime()
+     */
+    void timeSince(final int phase, final long since) {
+        this.times.addAndGet(phase, System.nanoTime() - since);
+    }
+
+    /**
+     * @param nanos
+     *            time spent in the phase, in nanoseconds
+     */
+    void time(final int phase, final long nanos) {
+        this.times.addAndGet(phase, nanos);
+    }
+
+    public long getFilesScanned() {
+        return this.filesScanned.get();
+    }
+
+    public long getFilesConverted() {
+        return this.filesConverted.get();
+    }
+
+    public long getFilesSkipped() {
+        return this.filesSkipped.get();
+    }
+
+    public long getFilesFailed() {
+        return this.filesFailed.get();
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return this.bytesWritten.get();
+    }
+
+    public long getWalkMillis() {
+        return this.millis(WALK);
+    }
+
+    public long getSniffMillis() {
+        return this.millis(SNIFF);
+    }
+
+    public long getDetectCharsetMillis() {
+        return this.millis(DETECT_CHARSET);
+    }
+
+    public long getTranscodeMillis() {
+        return this.millis(TRANSCODE);
+    }
+
+    public long getFilterMillis() {
+        return this.millis(FILTER);
+    }
+
+    public long getCopyMillis() {
+        return this.millis(COPY);
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - this.startTime) / 1000000L;
+    }
+
+    public double getFilesPerSecond() {
+        return this.perSecond(this.getFilesConverted() + this.getFilesSkipped() + this.getFilesFailed());
+    }
+
+    public double getBytesReadPerSecond() {
+        return this.perSecond(this.getBytesRead());
+    }
+
+    public double getBytesWrittenPerSecond() {
+        return this.perSecond(this.getBytesWritten());
+    }
+
+    public void reset() {
+        this.filesScanned.set(0);
+        this.filesConverted.set(0);
+        this.filesSkipped.set(0);
+        this.filesFailed.set(0);
+        this.bytesRead.set(0);
+        this.bytesWritten.set(0);
+        for (int i = 0; i < PHASES; i++) {
+            this.times.set(i, 0);
+        }
+        this.startTime = System.nanoTime();
+    }
+
+    private long millis(final int phase) {
+        return this.times.get(phase) / 1000000L;
+    }
+
+    private double perSecond(final long count) {
+        final long nanos = System.nanoTime() - this.startTime;
+        return (nanos > 0) ? count * 1e9 / nanos : 0;
+    }
+
+    public String toString() {
+        return "scanned " + this.getFilesScanned() + ", converted " + this.getFilesConverted() + ", skipped " + this.getFilesSkipped()
+                + ", failed " + this.getFilesFailed() + ", read " + this.getBytesRead() + " B, written " + this.getBytesWritten()
+                + " B; walk " + this.getWalkMillis() + " ms, sniff " + this.getSniffMillis() + " ms, detectCharset "
+                + this.getDetectCharsetMillis() + " ms, transcode " + this.getTranscodeMillis() + " ms, filter " + this.getFilterMillis()
+                + " ms, copy " + this.getCopyMillis() + " ms";
+    }
+}
@@ -0,0 +1,87 @@
+package net.e175.tools;
+
+/**
+ * Management interface of {@link ConversionStats}. Counters and times are
+ * cumulative since the last reset; rates are averages over the same period.
+ * Times are summed over all threads, so with parallel conversion they can
+ * exceed the elapsed time.
+ *
+ * @author Klaus Brunner
+ */
+public interface ConversionStatsMBean {
+
+    /**
+     * @return files found by directory walks
+     */
+    long getFilesScanned();
+
+    long getFilesConverted();
+
+    /**
+     * @return files left untouched because converting them wouldn't change
+     *         them
+     */
+    long getFilesSkipped();
+
+    long getFilesFailed();
+
+    /**
+     * @return bytes read for detection, hashing and conversion
+     */
+    long getBytesRead();
+
+    /**
+     * @return bytes written by conversion
+     */
+    long getBytesWritten();
+
+    /**
+     * @return time spent listing directories
+     */
+    long getWalkMillis();
+
+    /**
+     * @return time spent reading samples for BOM and UTF-8 detection
+     */
+    long getSniffMillis();
+
+    /**
+     * @return time spent guessing charsets with the general detector
+     */
+    long getDetectCharsetMillis();
+
+    /**
+     * @return time spent decoding and encoding, including reading and
+     *         writing, but not filtering
+     */
+    long getTranscodeMillis();
+
+    /**
+     * @return time spent in character filters
+     */
+    long getFilterMillis();
+
+    /**
+     * @return time spent copying files (backups, duplicates)
+     */
+    long getCopyMillis();
+
+    /**
+     * @return time since the last reset
+     */
+    long getElapsedMillis();
+
+    /**
+     * @return files converted, skipped or failed per second
+     */
+    double getFilesPerSecond();
+
+    double getBytesReadPerSecond();
+
+    double getBytesWrittenPerSecond();
+
+    /**
+     * Set all counters and times to zero.
+     */
+    void reset();
+}
@@ -1,27 +1,69 @@
 package net.e175.tools;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileOwnerAttributeView;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.UserPrincipal;
 import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.Map;
-
-import org.mozilla.intl.chardet.nsDetector;
-import org.mozilla.intl.chardet.nsICharsetDetectionObserver;
-import org.mozilla.intl.chardet.nsPSMDetector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * A class that holds text files to be converted to UTF-8 encoding.
  * 
+ * A convertee is a cheap, unsynchronized per-file work item: it must only be
+ * used by one thread at a time (handing it over through an executor or a
+ * concurrent queue is fine). Detection is done by a stateless
+ * {@link EncodingDetector} and yields immutable {@link DetectionResult}s,
+ * which can be shared freely.
+ * 
  * @author Klaus Brunner
  * 
  */
 public final class Convertee {
 
+    private static final Logger LOG = Logger.getLogger(Convertee.class.getName());
+
     public static final String DEFAULT_SOURCE_ENCODING = "ISO-8859-1";
 
     public static final String UTF8_ENCODING = "UTF-8";
 
-    private static final int BOM = 0xFEFF; // Unicode Byte Order Mark
+    /** sample budget for detection that reads as much of a file as needed */
+    public static final int UNLIMITED_SAMPLE_BUDGET = 0;
+
+    /** files at least this large are memory-mapped by default */
+    public static final long DEFAULT_MAP_THRESHOLD = 16 * 1024 * 1024;
+
+    /** map threshold that disables memory mapping */
+    public static final long NO_MAPPING = Long.MAX_VALUE;
+
+    /**
+     * whether a file can be replaced while it's still mapped; on Windows it
+     * can't, and a mapping is only released when it's garbage collected
+     */
+    private static final boolean MAPPED_FILES_REPLACEABLE = !System.getProperty("os.name", "").startsWith("Windows");
+
+    /** per-thread transcoder, so its buffers are reused across files */
+    private static final ThreadLocal<Transcoder> TRANSCODER = new ThreadLocal<Transcoder>() {
+        protected Transcoder initialValue() {
+            return new Transcoder();
+        }
+    };
+
+    /** cache for isAsciiCompatible(), by encoding name */
+    private static final Map<String, Boolean> ASCII_COMPATIBLE = new ConcurrentHashMap<String, Boolean>();
 
     /**
      * Get an array of available (canonical) character set names.
@@ -60,21 +102,33 @@ public final class Convertee {
         return defaultEncName;
     }
 
-    /**
-     * used for charset detection callback only, don't rely on this field
-     */
-    private String detectedCharset = null;
-
-    private File file;
+    private final File file;
 
     private String sourceEncoding = DEFAULT_SOURCE_ENCODING;
 
     private CharFilter filter;
 
+    /** the filter actually applied, see setFilter() and setBlockFilter() */
+    private BlockCharFilter blockFilter;
+
     private String stringRepresentation = null;
 
     private boolean stripBOM = true;
 
+    /** result of the last detection or sniff, or null */
+    private DetectionResult detection = null;
+
+    private int sampleBudget = UNLIMITED_SAMPLE_BUDGET;
+
+    private long mapThreshold = DEFAULT_MAP_THRESHOLD;
+
+    private int doubleEncodingLayers = 0;
+
+    /** file size recorded by recordFileState(), or -1 */
+    private long recordedSize = -1;
+
+    private long recordedLastModified = -1;
+
     public Convertee(final File f) {
         if (f == null) {
             throw new IllegalArgumentException("file must not be null");
@@ -89,51 +143,31 @@ public final class Convertee {
      * 
      * @return
      * @throws IOException
+     * @see EncodingDetector#guess(File)
      */
-    protected synchronized String detectCharset() throws IOException {
-        this.detectedCharset = null;
-        final nsDetector det = new nsDetector(nsPSMDetector.ALL);
-
-        det.Init(new nsICharsetDetectionObserver() {
-            public void Notify(final String charset) {
-                Convertee.this.detectedCharset = charset;
-            }
-        });
-
-        FileInputStream in = null;
-        try {
-            in = new FileInputStream(this.file);
-
-            final byte[] buf = new byte[2048];
-            int len;
-            boolean done = false;
-            boolean isAscii = true;
-            while ((len = in.read(buf, 0, buf.length)) != -1) {
-                // Check if the stream is only ASCII
-                if (isAscii) {
-                    isAscii = det.isAscii(buf, len);
-                }
-
-                // DoIt if non-ascii and not done yet.
-                if (!isAscii && !done) {
-                    done = det.DoIt(buf, len, false);
-                }
-            }
-            det.DataEnd();
-        } finally {
-            if (in != null) {
-                in.close();
-            }
-        }
+    protected String detectCharset() throws IOException {
+        return this.detector().guess(this.file).getDetectedCharset();
+    }
 
-        if (this.detectedCharset == null) {
-            final String prob[] = det.getProbableCharsets();
-            if (prob.length > 0) {
-                this.detectedCharset = prob[0];
-            }
-        }
+    /**
+     * @return a detector with this convertee's settings
+     */
+    private EncodingDetector detector() {
+        return new EncodingDetector(this.sampleBudget, this.mapThreshold);
+    }
 
-        return this.detectedCharset;
+    /**
+     * Run BOM detection and check whether the file is UTF-8, reading no more
+     * than the sample budget allows. Detection stops early once the result is
+     * certain (i.e. as soon as invalid UTF-8 is found). Files larger than the
+     * budget are sampled at the head, middle and tail.
+     * 
+     * @return the detection result, including the number of bytes read
+     * @throws IOException
+     */
+    public DetectionResult detect() throws IOException {
+        this.detection = this.detector().detect(this.file);
+        return this.detection;
     }
 
     /**
@@ -141,69 +175,56 @@ public final class Convertee {
      * 
      * @return canonical name of UTF encoding or null if no BOM found
      */
-    public synchronized String encodingAccordingToBOM() throws IOException {
-        final String[] encodingNames = { "UTF-32BE", "UTF-32LE", "UTF-16BE", "UTF-16LE", "UTF-8" };
-        final byte[][] boms = { { 0, 0, (byte) 0xFE, (byte) 0xFF }, // UTF-32BE
-                { (byte) 0xFF, (byte) 0xFE, 0, 0 }, // UTF-32LE
-                { (byte) 0xFE, (byte) 0xFF }, // UTF-16BE
-                { (byte) 0xFF, (byte) 0xFE }, // UTF-16LE
-                { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF } // UTF-8
-        };
-
-        // set up bom buffer
-        final byte[] bomBuffer = new byte[4];
-
-        // read bytes from file
-        FileInputStream imp = null;
-        final int readLength;
-        try {
-            imp = new FileInputStream(this.file);
-            readLength = imp.read(bomBuffer);
-        } finally {
-            if (imp != null) {
-                imp.close();
-            }
-        }
-
-        // check matching BOM sequences (rather stupidly, but good enough for a
-        // few bytes)
-        for (int i = 0; i < boms.length; i++) {
-            if (readLength >= boms[i].length) {
-                boolean match = true;
-                for (int j = 0; j < boms[i].length; j++) {
-                    if (bomBuffer[j] != boms[i][j]) {
-                        match = false;
-                        break;
-                    }
-                }
-                if (match) {
-                    return encodingNames[i];
-                }
-            }
-        }
-
-        // no matching BOM found
-        return null;
+    public String encodingAccordingToBOM() throws IOException {
+        return this.detector().encodingAccordingToBOM(this.file);
     }
 
     /**
      * @return the file
      */
-    public synchronized File getFile() {
+    public File getFile() {
         return this.file;
     }
 
     /**
-     * @return the filter
+     * Remember the file's current size and modification time. Until the file
+     * is replaced, replacing it fails if either has changed since, i.e. the
+     * file was modified by someone else in the meantime.
+     */
+    public void recordFileState() {
+        this.recordedSize = this.file.length();
+        this.recordedLastModified = this.file.lastModified();
+    }
+
+    /**
+     * @return true if the file's size or modification time differ from those
+     *         recorded by {@link #recordFileState()}, false if they're the
+     *         same or nothing was recorded
      */
-    public synchronized CharFilter getFilter() {
+    public boolean hasFileChanged() {
+        return (this.recordedSize >= 0)
+                && ((this.file.length() != this.recordedSize) || (this.file.lastModified() != this.recordedLastModified));
+    }
+
+    /**
+     * @return the filter, or null if none was set or the block filter doesn't
+     *         support single characters
+     */
+    public CharFilter getFilter() {
         return this.filter;
     }
 
+    /**
+     * @return the block filter applied during recoding, or null
+     */
+    public BlockCharFilter getBlockFilter() {
+        return this.blockFilter;
+    }
+
     /**
      * @return the sourceEncoding
      */
-    public synchronized String getSourceEncoding() {
+    public String getSourceEncoding() {
         return this.sourceEncoding;
     }
 
@@ -214,8 +235,8 @@ public final class Convertee {
      * @return true if this file looks like UTF-8.
      * @throws IOException
      */
-    public synchronized boolean looksLikeUTF8() throws IOException {
-        return UTF8_ENCODING.equals(this.detectCharset());
+    public boolean looksLikeUTF8() throws IOException {
+        return UTF8_ENCODING.equals(this.detect().getDetectedCharset());
     }
 
     /**
@@ -223,83 +244,424 @@ public final class Convertee {
      * 
      * @return
      */
-    public synchronized boolean hasBOM() throws IOException {
+    public boolean hasBOM() throws IOException {
+        if (this.detection != null) {
+            return this.detection.getBOMEncoding() != null;
+        }
         return this.encodingAccordingToBOM() != null;
     }
 
+    /**
+     * Open this file and read as much of it as BOM and charset detection
+     * need. The returned input can then be used for detection and conversion
+     * without reading the file again. The caller must close it.
+     * 
+     * The sample budget doesn't apply here: the file is about to be
+     * rewritten, and a sampled UTF-8 verdict could turn bytes outside the
+     * samples into replacement characters. UTF-8 files are therefore always
+     * validated completely (other files are recognised at the first invalid
+     * sequence). Files above the map threshold are memory-mapped, and
+     * detection and conversion then share the mapping; but not on Windows,
+     * where a file that is still mapped can't be replaced, and a mapping
+     * can't be released deterministically.
+     * 
+     * The file's state is recorded first (see {@link #recordFileState()}),
+     * so if someone is still writing it, replacing it later fails rather
+     * than losing what they wrote since.
+     * 
+     * @return the sniffed input
+     * @throws IOException
+     */
+    public SniffedInput sniff() throws IOException {
+        this.recordFileState();
+        final SniffedInput input = new EncodingDetector(UNLIMITED_SAMPLE_BUDGET, this.inPlaceMapThreshold()).sniff(this.file);
+        this.detection = input.getDetectionResult();
+        return input;
+    }
+
+    /**
+     * Check whether recoding would leave the file exactly as it is, based on
+     * the last detection (so {@link #detect()} or {@link #sniff()} must have
+     * been called) and the current settings. That's the case for pure ASCII
+     * in an ASCII-compatible source encoding and for UTF-8 without BOM (or
+     * with a BOM that is kept). Files with a filter or double encoding repair
+     * are never no-ops, and
+     * neither are files that were only sampled.
+     * 
+     * @return true if recoding is known not to change the file
+     */
+    public boolean isNoop() {
+        if ((this.detection == null) || !this.detection.isComplete() || (this.blockFilter != null) || (this.doubleEncodingLayers > 0)) {
+            return false;
+        }
+
+        if (this.detection.isAsciiOnly()) {
+            return isAsciiCompatible(this.sourceEncoding);
+        }
+
+        if (UTF8_ENCODING.equals(this.sourceEncoding) && UTF8_ENCODING.equals(this.detection.getDetectedCharset())) {
+            return (this.detection.getBOMEncoding() == null) || !this.stripBOM;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the encoding maps all 7-bit bytes to the same ASCII
+     *         characters, as UTF-8 does
+     */
+    static boolean isAsciiCompatible(final String encoding) {
+        if (encoding == null) {
+            return false;
+        }
+
+        Boolean compatible = ASCII_COMPATIBLE.get(encoding);
+        if (compatible == null) {
+            final byte[] ascii = new byte[128];
+            for (int i = 0; i < ascii.length; i++) {
+                ascii[i] = (byte) i;
+            }
+
+            boolean same;
+            try {
+                final String decoded = new String(ascii, encoding);
+                same = (decoded.length() == ascii.length);
+                for (int i = 0; same && (i < ascii.length); i++) {
+                    same = (decoded.charAt(i) == i);
+                }
+            } catch (final UnsupportedEncodingException e) {
+                same = false;
+            }
+
+            compatible = Boolean.valueOf(same);
+            ASCII_COMPATIBLE.put(encoding, compatible);
+        }
+        return compatible.booleanValue();
+    }
+
     /**
      * Recode file using the current source and target encodings to the given
      * target file (may be either a directory or a file, may not be same as
      * source).
      * 
      */
-    public synchronized void recode(final File targetFile) throws IOException {
-        if ((targetFile == null) || this.file.equals(targetFile)) {
-            throw new IllegalArgumentException("target must not be null or same as source");
-        }
+    public void recode(final File targetFile) throws IOException {
+        this.recode(targetFile, this.mapThreshold);
+    }
 
-        String readerEncoding = this.getSourceEncoding();
+    private void recode(final File targetFile, final long threshold) throws IOException {
+        final File actualTargetFile = this.actualTarget(targetFile);
 
-        File actualTargetFile;
-        if (targetFile.isDirectory()) {
-            actualTargetFile = new File(targetFile, this.file.getName());
+        try (FileInputStream in = new FileInputStream(this.file)) {
+            final ByteBuffer mapping = map(in.getChannel(), threshold);
+            if (mapping != null) {
+                this.recode(mapping, actualTargetFile);
+            } else {
+                this.recode(in.getChannel(), actualTargetFile);
+            }
+        }
+    }
+
+    /**
+     * Recode file like {@link #recode(File)}, but continue from an input
+     * obtained by {@link #sniff()} instead of reading the file again. The
+     * input is consumed, but not closed.
+     * 
+     */
+    public void recode(final SniffedInput input, final File targetFile) throws IOException {
+        final File actualTargetFile = this.actualTarget(targetFile);
+        final ByteBuffer mapping = input.mapping();
+        if (mapping != null) {
+            this.recode(mapping, actualTargetFile);
         } else {
-            actualTargetFile = targetFile;
+            this.recode(input.channel(), actualTargetFile);
         }
+    }
 
-        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), readerEncoding));
-        final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(actualTargetFile), UTF8_ENCODING));
+    /**
+     * Recode the file in place. The output is written to a temporary file
+     * next to the original, which is then renamed over it atomically (where
+     * the file system supports that), so the original is never left
+     * half-written. If the output turns out to be identical to the original,
+     * it's discarded and the original isn't touched at all. Symbolic links
+     * are resolved, i.e. the file they point to is replaced. The file is only
+     * memory-mapped for this where it can be replaced while mapped (see
+     * {@link #sniff()}).
+     * 
+     * Since the replacement is a new file, the original's permissions, owner
+     * and group are carried over (the owner only where the process may
+     * change it, usually as root), but ACLs and extended attributes are not.
+     * A file with several hard links is split off: only the path converted
+     * gets the new contents, the other links keep the original.
+     * 
+     * @param backupFile
+     *            where to copy the original before replacing it, or null for
+     *            no backup
+     * @return true if the file was replaced, false if it was left untouched
+     * @throws IOException
+     */
+    public boolean recodeInPlace(final File backupFile) throws IOException {
+        return this.recodeInPlace(null, backupFile);
+    }
+
+    /**
+     * Recode the file in place like {@link #recodeInPlace(File)}, but continue
+     * from an input obtained by {@link #sniff()}. The input is consumed and
+     * closed.
+     * 
+     * @param input
+     *            the sniffed input, or null to read the file
+     * @param backupFile
+     *            where to copy the original before replacing it, or null for
+     *            no backup
+     * @return true if the file was replaced, false if it was left untouched
+     * @throws IOException
+     */
+    public boolean recodeInPlace(final SniffedInput input, final File backupFile) throws IOException {
+        final Path original = this.file.toPath().toRealPath();
+        final Path temp = Files.createTempFile(original.getParent(), ".toutf_", ".tmp");
+        try {
+            if (input != null) {
+                this.recode(input, temp.toFile());
+                // release the original before replacing it
+                input.close();
+            } else {
+                this.recode(temp.toFile(), this.inPlaceMapThreshold());
+            }
+
+            if (contentEquals(temp, original)) {
+                return false;
+            }
+
+            this.replace(original, temp, backupFile);
+            return true;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
 
-        if (this.filter != null) {
-            this.filter.reset();
+    /**
+     * Replace the file's contents with those of a convertee that was
+     * converted in place, e.g. because both files were identical before.
+     * The replacement is atomic, like {@link #recodeInPlace(File)}, and the
+     * other convertee's encoding and detection result are taken over. If the
+     * file has changed since {@link #recordFileState()}, it's left alone.
+     * 
+     * @param converted
+     *            the convertee whose file holds the new contents
+     * @param backupFile
+     *            where to copy the original before replacing it, or null for
+     *            no backup
+     * @throws IOException
+     */
+    public void replaceWith(final Convertee converted, final File backupFile) throws IOException {
+        final Path original = this.file.toPath().toRealPath();
+        final Path temp = Files.createTempFile(original.getParent(), ".toutf_", ".tmp");
+        try {
+            final long start = System.nanoTime();
+            Files.copy(converted.file.toPath(), temp, StandardCopyOption.REPLACE_EXISTING);
+            ConversionStats.getInstance().timeSince(ConversionStats.COPY, start);
+            this.replace(original, temp, backupFile);
+        } finally {
+            Files.deleteIfExists(temp);
         }
+        this.sourceEncoding = converted.sourceEncoding;
+        this.detection = converted.detection;
+    }
 
-        int c;
-        boolean firstChar = true;
-        do {
-            c = reader.read();
-            boolean ignoreChar = false;
+    /**
+     * Back up the original, then move the new contents over it, keeping the
+     * original's owner, group and permissions as far as possible.
+     * 
+     * @throws IOException
+     *             also if the file has changed since its state was recorded
+     */
+    private void replace(final Path original, final Path temp, final File backupFile) throws IOException {
+        if (this.hasFileChanged()) {
+            throw new IOException(this.file + " was modified during conversion");
+        }
+        // our own change
+        this.recordedSize = -1;
+        this.recordedLastModified = -1;
+
+        if (backupFile != null) {
+            final long start = System.nanoTime();
+            Files.copy(original, backupFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            ConversionStats.getInstance().timeSince(ConversionStats.COPY, start);
+        }
 
-            // strip BOM if necessary
-            if (firstChar) {
-                firstChar = false;
-                if (this.isStripBOM() && (c == BOM) && readerEncoding.startsWith("UTF-")) {
-                    ignoreChar = true;
+        final PosixFileAttributeView posix = Files.getFileAttributeView(temp, PosixFileAttributeView.class);
+        if (posix != null) {
+            final PosixFileAttributes attributes = Files.readAttributes(original, PosixFileAttributes.class);
+            final PosixFileAttributes tempAttributes = posix.readAttributes();
+            setOwner(posix, tempAttributes.owner(), attributes.owner(), original);
+            if (!attributes.group().equals(tempAttributes.group())) {
+                try {
+                    posix.setGroup(attributes.group());
+                } catch (final IOException e) {
+                    // we're not a member of that group
+                    LOG.log(Level.FINE, "cannot keep group of " + original, e);
                 }
             }
+            // after the owner, since changing that may clear setuid/setgid
+            posix.setPermissions(attributes.permissions());
+        } else {
+            final FileOwnerAttributeView owner = Files.getFileAttributeView(temp, FileOwnerAttributeView.class);
+            if (owner != null) {
+                setOwner(owner, owner.getOwner(), Files.getOwner(original), original);
+            }
+        }
+
+        try {
+            Files.move(temp, original, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(temp, original, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Give the replacement file the original's owner, if it differs and we're
+     * allowed to.
+     */
+    private static void setOwner(final FileOwnerAttributeView view, final UserPrincipal current, final UserPrincipal wanted,
+            final Path original) {
+        if (!wanted.equals(current)) {
+            try {
+                view.setOwner(wanted);
+            } catch (final IOException e) {
+                // usually only root may give files away
+                LOG.log(Level.FINE, "cannot keep owner of " + original, e);
+            }
+        }
+    }
 
-            // apply filter (if any)
-            if (!ignoreChar) {
-                if (this.filter != null) {
-                    final String fresult = this.filter.filter(c);
-                    writer.write(fresult);
-                } else if (c != -1) {
-                    writer.write(c);
+    /**
+     * @return true if both files have the same length and contents
+     */
+    static boolean contentEquals(final Path a, final Path b) throws IOException {
+        if (Files.size(a) != Files.size(b)) {
+            return false;
+        }
+
+        try (InputStream inA = Files.newInputStream(a); InputStream inB = Files.newInputStream(b)) {
+            final byte[] bufA = new byte[8192];
+            final byte[] bufB = new byte[bufA.length];
+            int len;
+            while ((len = inA.read(bufA)) != -1) {
+                int offset = 0;
+                while (offset < len) {
+                    final int n = inB.read(bufB, offset, len - offset);
+                    if (n == -1) {
+                        return false;
+                    }
+                    offset += n;
+                }
+                for (int i = 0; i < len; i++) {
+                    if (bufA[i] != bufB[i]) {
+                        return false;
+                    }
                 }
             }
+            return inB.read() == -1;
+        }
+    }
 
-        } while (c != -1);
+    private File actualTarget(final File targetFile) {
+        if ((targetFile == null) || this.file.equals(targetFile)) {
+            throw new IllegalArgumentException("target must not be null or same as source");
+        }
 
-        reader.close();
-        writer.close();
+        if (targetFile.isDirectory()) {
+            return new File(targetFile, this.file.getName());
+        }
+        return targetFile;
+    }
+
+    private void recode(final ReadableByteChannel in, final File actualTargetFile) throws IOException {
+        this.recode(in, null, actualTargetFile);
+    }
+
+    private void recode(final ByteBuffer in, final File actualTargetFile) throws IOException {
+        this.recode(null, in, actualTargetFile);
+    }
+
+    private void recode(final ReadableByteChannel channel, final ByteBuffer bytes, final File actualTargetFile) throws IOException {
+        final FileOutputStream out = new FileOutputStream(actualTargetFile);
+        try {
+            final Transcoder transcoder = TRANSCODER.get();
+            if (this.doubleEncodingLayers > 0) {
+                final ReadableByteChannel repaired = (bytes != null) ? DoubleEncodingRepair.repairingChannel(bytes,
+                        this.doubleEncodingLayers) : DoubleEncodingRepair.repairingChannel(channel, this.doubleEncodingLayers);
+                transcoder.transcode(repaired, this.getSourceEncoding(), out.getChannel(), UTF8_ENCODING, this.isStripBOM(), this.blockFilter);
+            } else if (bytes != null) {
+                transcoder.transcode(bytes, this.getSourceEncoding(), out.getChannel(), UTF8_ENCODING, this.isStripBOM(), this.blockFilter);
+            } else {
+                transcoder.transcode(channel, this.getSourceEncoding(), out.getChannel(), UTF8_ENCODING, this.isStripBOM(), this.blockFilter);
+            }
+        } finally {
+            out.close();
+        }
 
         // we can be reasonably certain that it's UTF-8 now
         this.setSourceEncoding(UTF8_ENCODING);
     }
 
     /**
+     * Map a file into memory if it's at least as large as the threshold (and
+     * small enough to be mapped as a whole). The mapping stays valid after
+     * the channel is closed.
+     * 
+     * @return read-only mapping of the whole file, or null if the file should
+     *         be read normally
+     */
+    static MappedByteBuffer map(final FileChannel channel, final long threshold) throws IOException {
+        final long size = channel.size();
+        if ((size < threshold) || (size > Integer.MAX_VALUE)) {
+            return null;
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    /**
+     * Set a filter. Filters that don't support blocks of characters are
+     * wrapped in a {@link CharFilterAdapter}.
+     * 
      * @param filter
-     *            the filter to set
+     *            the filter to set, or null
      */
-    public synchronized void setFilter(final CharFilter filter) {
+    public void setFilter(final CharFilter filter) {
         this.filter = filter;
+        this.blockFilter = CharFilterAdapter.forFilter(filter);
+    }
+
+    /**
+     * @param blockFilter
+     *            the block filter to set, or null
+     */
+    public void setBlockFilter(final BlockCharFilter blockFilter) {
+        this.blockFilter = blockFilter;
+        this.filter = (blockFilter instanceof CharFilter) ? (CharFilter) blockFilter : null;
+    }
+
+    /**
+     * Append a filter to the ones already set. Several filters are run in
+     * one pass through a {@link FilterChain}.
+     * 
+     * @param blockFilter
+     *            the filter to append
+     */
+    public void addFilter(final BlockCharFilter blockFilter) {
+        if (this.blockFilter == null) {
+            this.setBlockFilter(blockFilter);
+        } else {
+            this.setBlockFilter(new FilterChain().add(this.blockFilter).add(blockFilter));
+        }
     }
 
     /**
      * @param sourceEncoding
      *            the sourceEncoding to set
      */
-    public synchronized void setSourceEncoding(final String sourceEncoding) {
+    public void setSourceEncoding(final String sourceEncoding) {
         this.sourceEncoding = sourceEncoding;
     }
 
@@ -311,7 +673,7 @@ public final class Convertee {
      * @param stringRepresentation
      *            the stringRepresentation to set
      */
-    public synchronized void setStringRepresentation(final String stringRepresentation) {
+    public void setStringRepresentation(final String stringRepresentation) {
         this.stringRepresentation = stringRepresentation;
     }
 
@@ -320,7 +682,7 @@ public final class Convertee {
      * 
      * @see java.lang.Object#toString()
      */
-    public synchronized String toString() {
+    public String toString() {
         if (this.stringRepresentation != null) {
             return this.stringRepresentation;
         }
@@ -335,7 +697,7 @@ public final class Convertee {
     /**
      * @return whether BOMs should be stripped
      */
-    public synchronized boolean isStripBOM() {
+    public boolean isStripBOM() {
         return stripBOM;
     }
 
@@ -343,35 +705,159 @@ public final class Convertee {
      * @param stripBOM
      *            whether BOMs should be stripped
      */
-    public synchronized void setStripBOM(final boolean stripBOM) {
+    public void setStripBOM(final boolean stripBOM) {
         this.stripBOM = stripBOM;
     }
 
     /**
      * Try to detect and set the source encoding iff reliably possible.
      * Currently, this is only possible for UTF-8, and other UTF encodings if a
-     * BOM is present.
+     * BOM is present. A UTF-8 verdict from a sampled detection (see
+     * {@link #setSampleBudget(int)}) isn't reliable and isn't applied.
      * 
      * @return true if encoding was detected and set successfully, false
      *         otherwise
      * 
      */
-    public synchronized boolean detectAndSetSourceEncoding() {
+    public boolean detectAndSetSourceEncoding() {
         try {
-            String bom = this.encodingAccordingToBOM();
-            if (bom == null || UTF8_ENCODING.equals(bom)) {
-                if (this.looksLikeUTF8()) {
-                    this.setSourceEncoding(UTF8_ENCODING);
-                    return true;
-                }
-            } else {
-                this.setSourceEncoding(bom);
-                return true;
-            }
+            return this.applyDetection(this.detect());
+        } catch (IOException e) {
             return false;
+        }
+    }
+
+    /**
+     * Like {@link #detectAndSetSourceEncoding()}, but using an input that has
+     * already been sniffed.
+     * 
+     * @param input
+     *            input obtained by {@link #sniff()}
+     * @return true if encoding was detected and set successfully, false
+     *         otherwise
+     */
+    public boolean detectAndSetSourceEncoding(final SniffedInput input) {
+        return this.applyDetection(input.getDetectionResult());
+    }
+
+    /**
+     * Like {@link #detectAndSetSourceEncoding()}, but reuse the result cached
+     * for this file if it hasn't changed since. Fresh results are added to
+     * the cache.
+     * 
+     * @param cache
+     *            detection results from earlier scans
+     * @return true if encoding was detected and set successfully, false
+     *         otherwise
+     */
+    public boolean detectAndSetSourceEncoding(final ScanCache cache) {
+        final ScanCache.Entry entry = cache.get(this.file);
+        if (entry != null) {
+            this.detection = entry.getResult();
+            return this.applyDetection(this.detection);
+        }
+
+        try {
+            final long size = this.file.length();
+            final long lastModified = this.file.lastModified();
+            final DetectionResult result = this.detect();
+            cache.put(this.file, size, lastModified, result);
+            return this.applyDetection(result);
         } catch (IOException e) {
             return false;
         }
     }
 
+    private boolean applyDetection(final DetectionResult result) {
+        if ((result.getEncoding() == null)
+                || !(result.isComplete() || (result.getBOMEncoding() != null) || (result.getConfidence() >= 1.0))) {
+            return false;
+        }
+        this.setSourceEncoding(result.getEncoding());
+        return true;
+    }
+
+    /**
+     * @return maximum number of bytes read for detection
+     */
+    public int getSampleBudget() {
+        return this.sampleBudget;
+    }
+
+    /**
+     * @return the result of the last detection or sniff, or null if there
+     *         was none
+     */
+    public DetectionResult getDetectionResult() {
+        return this.detection;
+    }
+
+    /**
+     * @return number of layers of double encoding undone when recoding
+     */
+    public int getDoubleEncodingLayers() {
+        return this.doubleEncodingLayers;
+    }
+
+    /**
+     * Undo double encoding (UTF-8 read as windows-1252 or ISO-8859-1 and
+     * encoded as UTF-8 again) on the raw bytes when recoding. Only makes sense
+     * for UTF-8 source files; the number of layers found is reported by
+     * {@link DetectionResult#getDoubleEncodingLayers()}.
+     * 
+     * @param doubleEncodingLayers
+     *            number of layers to undo, 0 for none
+     * @see DoubleEncodingRepair
+     */
+    public void setDoubleEncodingLayers(final int doubleEncodingLayers) {
+        if (doubleEncodingLayers < 0) {
+            throw new IllegalArgumentException("layers must not be negative");
+        }
+        this.doubleEncodingLayers = doubleEncodingLayers;
+    }
+
+    /**
+     * @return size from which files are memory-mapped for detection and
+     *         conversion
+     */
+    public long getMapThreshold() {
+        return this.mapThreshold;
+    }
+
+    /**
+     * @return the map threshold for files converted in place, which must be
+     *         replaceable afterwards
+     */
+    private long inPlaceMapThreshold() {
+        return MAPPED_FILES_REPLACEABLE ? this.mapThreshold : NO_MAPPING;
+    }
+
+    /**
+     * Files at least as large as the threshold are memory-mapped instead of
+     * read through streams, so they are decoded straight from the page cache
+     * without intermediate copies. On Windows, files converted in place are
+     * never mapped (see {@link #sniff()}).
+     * 
+     * @param mapThreshold
+     *            size in bytes, or NO_MAPPING
+     */
+    public void setMapThreshold(final long mapThreshold) {
+        if (mapThreshold < 0) {
+            throw new IllegalArgumentException("map threshold must not be negative");
+        }
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * @param sampleBudget
+     *            maximum number of bytes read for detection, or
+     *            UNLIMITED_SAMPLE_BUDGET (doesn't apply to {@link #sniff()})
+     */
+    public void setSampleBudget(final int sampleBudget) {
+        if (sampleBudget < 0) {
+            throw new IllegalArgumentException("sample budget must not be negative");
+        }
+        this.sampleBudget = sampleBudget;
+    }
+
 }
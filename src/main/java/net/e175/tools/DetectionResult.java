@@ -0,0 +1,135 @@
+package net.e175.tools;
+
+/**
+ * Outcome of BOM and charset detection for one file. Instances are immutable
+ * and can be shared between threads freely.
+ *
+ * @author Klaus Brunner
+ */
+public final class DetectionResult {
+
+    private final String encoding;
+
+    private final double confidence;
+
+    private final String bomEncoding;
+
+    private final String detectedCharset;
+
+    private final long bytesRead;
+
+    private final boolean complete;
+
+    private final boolean asciiOnly;
+
+    private final boolean binary;
+
+    private final int doubleEncodingLayers;
+
+    private final double doubleEncodingConfidence;
+
+    DetectionResult(final String encoding, final double confidence, final String bomEncoding, final String detectedCharset,
+            final long bytesRead, final boolean complete, final boolean asciiOnly, final boolean binary, final int doubleEncodingLayers,
+            final double doubleEncodingConfidence) {
+        this.encoding = encoding;
+        this.confidence = confidence;
+        this.bomEncoding = bomEncoding;
+        this.detectedCharset = detectedCharset;
+        this.bytesRead = bytesRead;
+        this.complete = complete;
+        this.asciiOnly = asciiOnly;
+        this.binary = binary;
+        this.doubleEncodingLayers = doubleEncodingLayers;
+        this.doubleEncodingConfidence = doubleEncodingConfidence;
+    }
+
+    /**
+     * @return the encoding the file can reliably be read with (the BOM's
+     *         encoding, or UTF-8 if the contents are valid UTF-8), or null if
+     *         it couldn't be determined
+     */
+    public String getEncoding() {
+        return this.encoding;
+    }
+
+    /**
+     * @return confidence in {@link #getEncoding()}, from 0 to 1: 1 for a BOM
+     *         or a complete check, the share of the file examined for a
+     *         sampled check, 0.5 for the prefix of a stream, 0 if there's no
+     *         encoding
+     */
+    public double getConfidence() {
+        return this.confidence;
+    }
+
+    /**
+     * @return canonical name of UTF encoding or null if no BOM found
+     */
+    public String getBOMEncoding() {
+        return this.bomEncoding;
+    }
+
+    /**
+     * @return the charset guessed by the detector, or null
+     */
+    public String getDetectedCharset() {
+        return this.detectedCharset;
+    }
+
+    /**
+     * @return number of bytes actually read from the file for detection
+     */
+    public long getBytesRead() {
+        return this.bytesRead;
+    }
+
+    /**
+     * @return true if detection looked at the whole file or stopped because
+     *         the detector was confident, false if it was cut short by the
+     *         sample budget
+     */
+    public boolean isComplete() {
+        return this.complete;
+    }
+
+    /**
+     * @return true if all bytes examined were 7-bit ASCII (only meaningful
+     *         for the whole file if the result is complete)
+     */
+    public boolean isAsciiOnly() {
+        return this.asciiOnly;
+    }
+
+    /**
+     * @return true if NUL bytes were found (without a UTF-16 or UTF-32 BOM),
+     *         i.e. the file most likely isn't text at all
+     */
+    public boolean isBinary() {
+        return this.binary;
+    }
+
+    /**
+     * @return number of layers of double encoding (UTF-8 read as
+     *         windows-1252 or ISO-8859-1 and encoded as UTF-8 again) found in
+     *         UTF-8 input, 0 if none
+     * @see DoubleEncodingRepair
+     */
+    public int getDoubleEncodingLayers() {
+        return this.doubleEncodingLayers;
+    }
+
+    /**
+     * @return confidence that the input really is double-encoded, from 0 to
+     *         1
+     */
+    public double getDoubleEncodingConfidence() {
+        return this.doubleEncodingConfidence;
+    }
+
+    public String toString() {
+        return "encoding=" + this.encoding + ", confidence=" + this.confidence + ", charset=" + this.detectedCharset + ", bom="
+                + this.bomEncoding + ", bytesRead=" + this.bytesRead + ", complete=" + this.complete + ", asciiOnly=" + this.asciiOnly
+                + ", binary=" + this.binary + ", doubleEncodingLayers=" + this.doubleEncodingLayers + ", doubleEncodingConfidence="
+                + this.doubleEncodingConfidence;
+    }
+}
@@ -0,0 +1,565 @@
+package net.e175.tools;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Undoes one layer of double encoding on raw UTF-8 bytes: text that was UTF-8,
+ * got decoded as windows-1252 or ISO-8859-1 and was then encoded as UTF-8
+ * again. Each character is mapped back to the single byte it was read from;
+ * wherever these bytes form a well-formed UTF-8 sequence, they replace the
+ * characters. Everything else is passed through unchanged, so correctly
+ * encoded text mixed in isn't harmed.
+ *
+ * Works as a stream (holding back at most one candidate sequence), like a
+ * {@link BlockCharFilter} for bytes. Counts repaired sequences and non-ASCII
+ * characters left alone, which gives a confidence that the input really is
+ * double-encoded. Chain instances to undo several layers; {@link Scanner}
+ * does this to find out how many layers there are.
+ *
+ * Instances are not thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public final class DoubleEncodingRepair {
+
+    /** the most layers looked for by the scanner */
+    public static final int MAX_LAYERS = 3;
+
+    /** the bytes windows-1252 maps to characters beyond U+00FF */
+    private static final char[] CP1252_CHARS;
+
+    private static final byte[] CP1252_BYTES;
+
+    static {
+        try {
+            final byte[] high = new byte[0x20];
+            for (int i = 0; i < high.length; i++) {
+                high[i] = (byte) (0x80 + i);
+            }
+            final String decoded = new String(high, BrokenGermanUTFConversionFilter.OLD_ENCODING);
+
+            final char[] chars = new char[high.length];
+            final byte[] bytes = new byte[high.length];
+            int n = 0;
+            for (int i = 0; i < high.length; i++) {
+                final char c = decoded.charAt(i);
+                if ((c >= 0x100) && (c != 0xFFFD)) {
+                    // insert sorted by character, for binary search
+                    int j = n++;
+                    while ((j > 0) && (chars[j - 1] > c)) {
+                        chars[j] = chars[j - 1];
+                        bytes[j] = bytes[j - 1];
+                        j--;
+                    }
+                    chars[j] = c;
+                    bytes[j] = high[i];
+                }
+            }
+            CP1252_CHARS = new char[n];
+            CP1252_BYTES = new byte[n];
+            System.arraycopy(chars, 0, CP1252_CHARS, 0, n);
+            System.arraycopy(bytes, 0, CP1252_BYTES, 0, n);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException("failed to initialize", e);
+        }
+    }
+
+    /** the longest sequence held back: four characters of three bytes */
+    private static final int MAX_HELD = 12;
+
+    /** bytes of the current (incomplete) input character */
+    private final byte[] charBytes = new byte[4];
+
+    private int charLength = 0;
+
+    private int charNeeded = 0;
+
+    /** original bytes of the candidate sequence */
+    private final byte[] held = new byte[MAX_HELD];
+
+    private int heldLength = 0;
+
+    private int heldChars = 0;
+
+    /** candidate sequence with each character mapped back to its byte */
+    private final byte[] reversed = new byte[4];
+
+    private int reversedLength = 0;
+
+    private int reversedNeeded = 0;
+
+    /** decided output not yet written */
+    private final byte[] output = new byte[MAX_HELD + 4];
+
+    private int outputStart = 0;
+
+    private int outputEnd = 0;
+
+    private boolean finished = false;
+
+    private long repaired = 0;
+
+    private long rejected = 0;
+
+    /**
+     * Repair bytes from one buffer into another, consuming as much input as
+     * possible. The call must be repeated with the same input after making
+     * room in the output buffer if it returns true.
+     *
+     * @param in
+     *            UTF-8 bytes (read mode)
+     * @param out
+     *            repaired bytes (write mode)
+     * @param endOfInput
+     *            true if in holds the last of the input
+     * @return true if out is full and more output is pending, false if all of
+     *         in has been consumed (and, at the end of input, all output has
+     *         been written)
+     */
+    public boolean repair(final ByteBuffer in, final ByteBuffer out, final boolean endOfInput) {
+        if (!this.writeOutput(out)) {
+            return true;
+        }
+
+        while (in.hasRemaining()) {
+            final byte b = in.get();
+            if ((b >= 0) && (this.charNeeded == 0) && (this.heldChars == 0) && out.hasRemaining()) {
+                // fast path: ASCII outside of any candidate
+                out.put(b);
+                continue;
+            }
+            this.accept(b);
+            if (!this.writeOutput(out)) {
+                return true;
+            }
+        }
+
+        if (endOfInput && !this.finished) {
+            this.finished = true;
+            this.reject();
+            this.emit(this.charBytes, this.charLength);
+            this.charLength = 0;
+            this.charNeeded = 0;
+            return !this.writeOutput(out);
+        }
+        return false;
+    }
+
+    /**
+     * Assemble input characters byte by byte.
+     */
+    private void accept(final byte b) {
+        final int v = b & 0xFF;
+        if (this.charNeeded > 0) {
+            if ((v & 0xC0) == 0x80) {
+                this.charBytes[this.charLength++] = b;
+                if (--this.charNeeded == 0) {
+                    this.acceptChar();
+                }
+                return;
+            }
+            // not UTF-8 after all: pass the broken character through
+            this.reject();
+            this.emit(this.charBytes, this.charLength);
+            this.charLength = 0;
+            this.charNeeded = 0;
+        }
+
+        this.charBytes[0] = b;
+        this.charLength = 1;
+        if (v < 0x80) {
+            this.acceptChar();
+        } else if ((v >= 0xC2) && (v < 0xE0)) {
+            this.charNeeded = 1;
+        } else if ((v >= 0xE0) && (v < 0xF0)) {
+            this.charNeeded = 2;
+        } else if ((v >= 0xF0) && (v < 0xF5)) {
+            this.charNeeded = 3;
+        } else {
+            this.reject();
+            this.emit(this.charBytes, 1);
+            this.charLength = 0;
+        }
+    }
+
+    /**
+     * Handle the complete character in charBytes.
+     */
+    private void acceptChar() {
+        final int reversedByte = reverse(this.charBytes, this.charLength);
+        this.charLength = 0;
+
+        if (this.heldChars > 0) {
+            if ((reversedByte >= 0x80) && (reversedByte < 0xC0)) {
+                this.hold(reversedByte);
+                if (this.reversedLength == this.reversedNeeded) {
+                    if (isWellFormed(this.reversed)) {
+                        this.emit(this.reversed, this.reversedLength);
+                        this.repaired++;
+                        this.heldLength = 0;
+                        this.heldChars = 0;
+                        this.reversedLength = 0;
+                    } else {
+                        this.reject();
+                    }
+                }
+                return;
+            }
+            // continuation characters can't start a sequence, so only the
+            // current character needs another look
+            this.reject();
+        }
+
+        final int needed = sequenceLength(reversedByte);
+        if (needed > 0) {
+            this.reversedNeeded = needed;
+            this.hold(reversedByte);
+        } else {
+            final int length = lengthOf(this.charBytes[0]);
+            if (length > 1) {
+                // non-ASCII character that isn't part of a sequence
+                this.rejected++;
+            }
+            this.emit(this.charBytes, length);
+        }
+    }
+
+    private static int lengthOf(final byte lead) {
+        final int v = lead & 0xFF;
+        return (v < 0x80) ? 1 : (v < 0xE0) ? 2 : (v < 0xF0) ? 3 : 4;
+    }
+
+    private void hold(final int reversedByte) {
+        final int length = lengthOf(this.charBytes[0]);
+        System.arraycopy(this.charBytes, 0, this.held, this.heldLength, length);
+        this.heldLength += length;
+        this.heldChars++;
+        this.reversed[this.reversedLength++] = (byte) reversedByte;
+    }
+
+    /**
+     * Give up the candidate, passing its original bytes through.
+     */
+    private void reject() {
+        this.emit(this.held, this.heldLength);
+        this.rejected += this.heldChars;
+        this.heldLength = 0;
+        this.heldChars = 0;
+        this.reversedLength = 0;
+    }
+
+    private void emit(final byte[] bytes, final int length) {
+        System.arraycopy(bytes, 0, this.output, this.outputEnd, length);
+        this.outputEnd += length;
+    }
+
+    /**
+     * @return true if all decided output has been written
+     */
+    private boolean writeOutput(final ByteBuffer out) {
+        final int n = Math.min(this.outputEnd - this.outputStart, out.remaining());
+        out.put(this.output, this.outputStart, n);
+        this.outputStart += n;
+        if (this.outputStart < this.outputEnd) {
+            return false;
+        }
+        this.outputStart = 0;
+        this.outputEnd = 0;
+        return true;
+    }
+
+    /**
+     * @return the byte a UTF-8 encoded character was read from by
+     *         windows-1252 or ISO-8859-1, or -1 if there is none
+     */
+    private static int reverse(final byte[] utf8, final int length) {
+        final int b0 = utf8[0] & 0xFF;
+        if (length == 1) {
+            return b0;
+        }
+
+        final int c;
+        if (length == 2) {
+            c = ((b0 & 0x1F) << 6) | (utf8[1] & 0x3F);
+        } else if (length == 3) {
+            c = ((b0 & 0x0F) << 12) | ((utf8[1] & 0x3F) << 6) | (utf8[2] & 0x3F);
+        } else {
+            return -1;
+        }
+
+        if (c < 0x100) {
+            return c;
+        }
+        final int i = Arrays.binarySearch(CP1252_CHARS, (char) c);
+        return (i >= 0) ? (CP1252_BYTES[i] & 0xFF) : -1;
+    }
+
+    /**
+     * Check the second byte of a complete sequence against the lead byte (the
+     * rest has been checked already), rejecting overlong forms, surrogates
+     * and code points above U+10FFFF.
+     */
+    private static boolean isWellFormed(final byte[] sequence) {
+        final int lead = sequence[0] & 0xFF;
+        final int second = sequence[1] & 0xFF;
+        switch (lead) {
+        case 0xE0:
+            return second >= 0xA0;
+        case 0xED:
+            return second <= 0x9F;
+        case 0xF0:
+            return second >= 0x90;
+        case 0xF4:
+            return second <= 0x8F;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return the length of the UTF-8 sequence starting with the given lead
+     *         byte, or 0 if it isn't a lead byte
+     */
+    private static int sequenceLength(final int lead) {
+        if ((lead >= 0xC2) && (lead < 0xE0)) {
+            return 2;
+        } else if ((lead >= 0xE0) && (lead < 0xF0)) {
+            return 3;
+        } else if ((lead >= 0xF0) && (lead < 0xF5)) {
+            return 4;
+        }
+        return 0;
+    }
+
+    /**
+     * Reset this instance for a new stream, including the counters.
+     */
+    public void reset() {
+        this.charLength = 0;
+        this.charNeeded = 0;
+        this.heldLength = 0;
+        this.heldChars = 0;
+        this.reversedLength = 0;
+        this.outputStart = 0;
+        this.outputEnd = 0;
+        this.finished = false;
+        this.repaired = 0;
+        this.rejected = 0;
+    }
+
+    /**
+     * @return number of double-encoded sequences repaired so far
+     */
+    public long getRepairedCount() {
+        return this.repaired;
+    }
+
+    /**
+     * @return number of non-ASCII characters left alone so far
+     */
+    public long getRejectedCount() {
+        return this.rejected;
+    }
+
+    /**
+     * @return share of repaired sequences among all non-ASCII text seen, from
+     *         0 (nothing looks double-encoded) to 1 (everything does)
+     */
+    public double getConfidence() {
+        final long total = this.repaired + this.rejected;
+        return (total == 0) ? 0 : (double) this.repaired / total;
+    }
+
+    /**
+     * Wrap a channel so that the given number of layers of double encoding
+     * are undone while reading.
+     *
+     * @param source
+     *            UTF-8 bytes
+     * @param layers
+     *            number of layers to undo, may be 0
+     * @return channel delivering the repaired bytes
+     */
+    public static ReadableByteChannel repairingChannel(ReadableByteChannel source, final int layers) {
+        for (int i = 0; i < layers; i++) {
+            source = new RepairingChannel(source);
+        }
+        return source;
+    }
+
+    /**
+     * Like {@link #repairingChannel(ReadableByteChannel, int)}, reading from
+     * a buffer (e.g. a memory-mapped file).
+     *
+     * @param source
+     *            UTF-8 bytes, consumed by reading
+     */
+    public static ReadableByteChannel repairingChannel(final ByteBuffer source, final int layers) {
+        return repairingChannel(new BufferChannel(source), layers);
+    }
+
+    /**
+     * Channel reading from a buffer.
+     */
+    private static final class BufferChannel implements ReadableByteChannel {
+
+        private final ByteBuffer source;
+
+        private boolean open = true;
+
+        BufferChannel(final ByteBuffer source) {
+            this.source = source;
+        }
+
+        public int read(final ByteBuffer dst) {
+            if (!this.source.hasRemaining()) {
+                return -1;
+            }
+            final int n = Math.min(dst.remaining(), this.source.remaining());
+            final ByteBuffer slice = this.source.slice();
+            slice.limit(n);
+            dst.put(slice);
+            this.source.position(this.source.position() + n);
+            return n;
+        }
+
+        public boolean isOpen() {
+            return this.open;
+        }
+
+        public void close() {
+            this.open = false;
+        }
+    }
+
+    /**
+     * Channel running one layer of repair on another channel.
+     */
+    private static final class RepairingChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel source;
+
+        private final DoubleEncodingRepair repair = new DoubleEncodingRepair();
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        private boolean endOfInput = false;
+
+        private boolean done = false;
+
+        RepairingChannel(final ReadableByteChannel source) {
+            this.source = source;
+            this.buffer.flip();
+        }
+
+        public int read(final ByteBuffer dst) throws IOException {
+            if (this.done) {
+                return -1;
+            }
+
+            final int start = dst.position();
+            while (dst.hasRemaining()) {
+                if (!this.buffer.hasRemaining() && !this.endOfInput) {
+                    this.buffer.clear();
+                    this.endOfInput = this.source.read(this.buffer) < 0;
+                    this.buffer.flip();
+                }
+
+                if (!this.repair.repair(this.buffer, dst, this.endOfInput)) {
+                    if (this.endOfInput) {
+                        this.done = true;
+                        break;
+                    }
+                    if (dst.position() > start) {
+                        // don't block for more input if there's something
+                        // to return
+                        break;
+                    }
+                }
+            }
+
+            final int n = dst.position() - start;
+            return ((n == 0) && this.done) ? -1 : n;
+        }
+
+        public boolean isOpen() {
+            return this.source.isOpen();
+        }
+
+        public void close() throws IOException {
+            this.source.close();
+        }
+    }
+
+    /**
+     * Runs chained repairs over a file's bytes during detection, without
+     * keeping any output, to find out how many layers of double encoding
+     * there are.
+     */
+    static final class Scanner {
+
+        private final DoubleEncodingRepair[] stages = new DoubleEncodingRepair[MAX_LAYERS];
+
+        private final ByteBuffer[] buffers = new ByteBuffer[MAX_LAYERS];
+
+        Scanner() {
+            for (int i = 0; i < MAX_LAYERS; i++) {
+                this.stages[i] = new DoubleEncodingRepair();
+                this.buffers[i] = ByteBuffer.allocate(4096);
+            }
+        }
+
+        void update(final byte[] buffer, final int offset, final int length) {
+            this.run(0, ByteBuffer.wrap(buffer, offset, length), false);
+        }
+
+        void finish() {
+            this.run(0, ByteBuffer.allocate(0), true);
+        }
+
+        /**
+         * Feed a stage and pass its output on to the next one.
+         */
+        private void run(final int stage, final ByteBuffer in, final boolean endOfInput) {
+            final ByteBuffer out = this.buffers[stage];
+            boolean overflow;
+            do {
+                overflow = this.stages[stage].repair(in, out, endOfInput);
+                out.flip();
+                if (stage + 1 < MAX_LAYERS) {
+                    this.run(stage + 1, out, endOfInput && !overflow);
+                }
+                out.clear();
+            } while (overflow);
+        }
+
+        /**
+         * @return the number of layers in which double-encoded sequences make
+         *         up the majority of the non-ASCII text
+         */
+        int getLayers() {
+            int layers = 0;
+            while ((layers < MAX_LAYERS) && (this.stages[layers].repaired > this.stages[layers].rejected)) {
+                layers++;
+            }
+            return layers;
+        }
+
+        /**
+         * @return the confidence of the weakest layer found, or of the first
+         *         layer if none was found
+         */
+        double getConfidence() {
+            final int layers = this.getLayers();
+            double confidence = this.stages[0].getConfidence();
+            for (int i = 1; i < layers; i++) {
+                confidence = Math.min(confidence, this.stages[i].getConfidence());
+            }
+            return confidence;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package net.e175.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Detects the encoding of files. Detectors hold nothing but their settings and
+ * keep no state between calls, so a single instance can be used by any number
+ * of threads at once. Each call returns an immutable {@link DetectionResult}.
+ *
+ * @author Klaus Brunner
+ */
+public final class EncodingDetector {
+
+    private final int sampleBudget;
+
+    private final long mapThreshold;
+
+    /**
+     * @param sampleBudget
+     *            maximum number of bytes read for detection, or
+     *            Convertee.UNLIMITED_SAMPLE_BUDGET
+     * @param mapThreshold
+     *            files at least this large are memory-mapped, or
+     *            Convertee.NO_MAPPING
+     */
+    public EncodingDetector(final int sampleBudget, final long mapThreshold) {
+        if (sampleBudget < 0) {
+            throw new IllegalArgumentException("sample budget must not be negative");
+        }
+        if (mapThreshold < 0) {
+            throw new IllegalArgumentException("map threshold must not be negative");
+        }
+        this.sampleBudget = sampleBudget;
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * Run BOM detection and check whether the file is UTF-8, reading no more
+     * than the sample budget allows. Detection stops early once the result is
+     * certain (i.e. as soon as invalid UTF-8 is found). Files larger than the
+     * budget are sampled at the head, middle and tail.
+     *
+     * @return the detection result
+     * @throws IOException
+     */
+    public DetectionResult detect(final File file) throws IOException {
+        return this.detect(file, false);
+    }
+
+    /**
+     * Guess the file's charset with the general (Mozilla) charset detector.
+     * This doesn't work very well for most encodings, the detector is rather
+     * biased towards Asian languages. However, it detects UTF-8 quite
+     * reliably.
+     *
+     * @return the detection result
+     * @throws IOException
+     */
+    public DetectionResult guess(final File file) throws IOException {
+        return this.detect(file, true);
+    }
+
+    private DetectionResult detect(final File file, final boolean guessCharset) throws IOException {
+        final long start = System.nanoTime();
+        final DetectionResult result;
+        try (FileInputStream in = new FileInputStream(file)) {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer mapping = Convertee.map(channel, this.mapThreshold);
+            if (mapping != null) {
+                result = Sniffer.detect(mapping, this.sampleBudget, guessCharset);
+            } else {
+                result = Sniffer.detect(channel, this.sampleBudget, guessCharset);
+            }
+        }
+        final ConversionStats stats = ConversionStats.getInstance();
+        stats.bytesRead(result.getBytesRead());
+        stats.timeSince(guessCharset ? ConversionStats.DETECT_CHARSET : ConversionStats.SNIFF, start);
+        return result;
+    }
+
+    /**
+     * Open a file and read as much of it as detection needs, keeping the bytes
+     * read for the conversion. The caller must close the input.
+     *
+     * @return the sniffed input
+     * @throws IOException
+     */
+    public SniffedInput sniff(final File file) throws IOException {
+        return new SniffedInput(file, SniffedInput.DEFAULT_MEMORY_LIMIT, this.sampleBudget, this.mapThreshold);
+    }
+
+    /**
+     * Try to determine the file's encoding from its BOM, if it has one.
+     *
+     * @return canonical name of UTF encoding or null if no BOM found
+     * @throws IOException
+     */
+    public String encodingAccordingToBOM(final File file) throws IOException {
+        final long start = System.nanoTime();
+        final byte[] bomBuffer = new byte[Sniffer.BOM_LENGTH];
+
+        // read bytes from file (or its mapping, if it's large)
+        final int readLength;
+        try (FileInputStream in = new FileInputStream(file)) {
+            final ByteBuffer mapping = Convertee.map(in.getChannel(), this.mapThreshold);
+            if (mapping != null) {
+                readLength = Math.min(bomBuffer.length, mapping.remaining());
+                mapping.get(bomBuffer, 0, readLength);
+            } else {
+                readLength = in.read(bomBuffer);
+            }
+        }
+        ConversionStats.getInstance().timeSince(ConversionStats.SNIFF, start);
+
+        return Sniffer.encodingAccordingToBOM(bomBuffer, readLength);
+    }
+
+    /**
+     * @return maximum number of bytes read for detection
+     */
+    public int getSampleBudget() {
+        return this.sampleBudget;
+    }
+
+    /**
+     * @return size from which files are memory-mapped
+     */
+    public long getMapThreshold() {
+        return this.mapThreshold;
+    }
+}
@@ -0,0 +1,188 @@
+package net.e175.tools;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs any number of filters one after the other in a single pass over the
+ * data. Each stage gets its own small intermediate buffer. Adjacent
+ * {@link CharMapping}s are fused into one stage that applies all of them to a
+ * character in the same loop, so they cost no extra buffers or passes.
+ *
+ * Build a chain completely before using it. Instances are not thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public final class FilterChain implements BlockCharFilter {
+
+    private static final int BUFFER_SIZE = 4096;
+
+    private final List<BlockCharFilter> stages = new ArrayList<BlockCharFilter>();
+
+    /** mappings collected for the next fused stage */
+    private final List<CharMapping> mappings = new ArrayList<CharMapping>();
+
+    private BlockCharFilter[] pipeline = null;
+
+    /** output of each stage but the last, in write mode between calls */
+    private CharBuffer[] buffers;
+
+    private boolean[] done;
+
+    /**
+     * Append a block filter. Single-character filters can be added through
+     * {@link CharFilterAdapter#forFilter(CharFilter)}.
+     *
+     * @return this chain
+     */
+    public FilterChain add(final BlockCharFilter filter) {
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        this.checkNotStarted();
+        this.fuseMappings();
+        this.stages.add(filter);
+        return this;
+    }
+
+    /**
+     * Append a stateless mapping. Consecutive mappings are fused.
+     *
+     * @return this chain
+     */
+    public FilterChain add(final CharMapping mapping) {
+        if (mapping == null) {
+            throw new IllegalArgumentException("mapping must not be null");
+        }
+        this.checkNotStarted();
+        this.mappings.add(mapping);
+        return this;
+    }
+
+    private void checkNotStarted() {
+        if (this.pipeline != null) {
+            throw new IllegalStateException("chain already in use");
+        }
+    }
+
+    private void fuseMappings() {
+        if (!this.mappings.isEmpty()) {
+            this.stages.add(new FusedMappings(this.mappings.toArray(new CharMapping[this.mappings.size()])));
+            this.mappings.clear();
+        }
+    }
+
+    /**
+     * @return number of stages after fusing mappings
+     */
+    public int getStageCount() {
+        return this.stages.size() + (this.mappings.isEmpty() ? 0 : 1);
+    }
+
+    private void start() {
+        this.fuseMappings();
+        this.pipeline = this.stages.toArray(new BlockCharFilter[this.stages.size()]);
+        final int n = Math.max(this.pipeline.length - 1, 0);
+        this.buffers = new CharBuffer[n];
+        for (int i = 0; i < n; i++) {
+            this.buffers[i] = CharBuffer.allocate(BUFFER_SIZE);
+        }
+        this.done = new boolean[this.pipeline.length];
+    }
+
+    public boolean filter(final CharBuffer in, final CharBuffer out, final boolean endOfInput) {
+        if (this.pipeline == null) {
+            this.start();
+        }
+
+        final int n = this.pipeline.length;
+        if (n == 0) {
+            final int length = Math.min(in.remaining(), out.remaining());
+            final int limit = in.limit();
+            in.limit(in.position() + length);
+            out.put(in);
+            in.limit(limit);
+            return in.hasRemaining();
+        }
+
+        boolean again;
+        do {
+            again = false;
+            CharBuffer src = in;
+            boolean srcComplete = endOfInput;
+            for (int i = 0; i < n; i++) {
+                final boolean last = (i == n - 1);
+                final CharBuffer dst = last ? out : this.buffers[i];
+
+                boolean overflow = false;
+                if (!this.done[i]) {
+                    overflow = this.pipeline[i].filter(src, dst, srcComplete);
+                    this.done[i] = srcComplete && !overflow;
+                }
+                if (i > 0) {
+                    src.compact();
+                }
+
+                if (last) {
+                    if (overflow) {
+                        return true;
+                    }
+                } else {
+                    // the next stage has to make room first
+                    again |= overflow;
+                    dst.flip();
+                }
+                src = dst;
+                srcComplete = this.done[i];
+            }
+        } while (again);
+        return false;
+    }
+
+    public void reset() {
+        if (this.pipeline == null) {
+            this.start();
+        }
+        for (int i = 0; i < this.pipeline.length; i++) {
+            this.pipeline[i].reset();
+            this.done[i] = false;
+        }
+        for (int i = 0; i < this.buffers.length; i++) {
+            this.buffers[i].clear();
+        }
+    }
+
+    /**
+     * Applies several mappings to each character in one loop.
+     */
+    private static final class FusedMappings implements BlockCharFilter {
+
+        private final CharMapping[] mappings;
+
+        FusedMappings(final CharMapping[] mappings) {
+            this.mappings = mappings;
+        }
+
+        public boolean filter(final CharBuffer in, final CharBuffer out, final boolean endOfInput) {
+            final CharMapping[] mappings = this.mappings;
+            while (in.hasRemaining()) {
+                if (!out.hasRemaining()) {
+                    return true;
+                }
+                int c = in.get();
+                for (int i = 0; (i < mappings.length) && (c != CharMapping.REMOVE); i++) {
+                    c = mappings[i].map((char) c);
+                }
+                if (c != CharMapping.REMOVE) {
+                    out.put((char) c);
+                }
+            }
+            return false;
+        }
+
+        public void reset() {
+            // stateless
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package net.e175.tools;
+
+/**
+ * Creates the filters applied to files of a certain kind, see
+ * {@link TreeConverter#setFilterFactory(String, FilterFactory)}. Filters keep
+ * state, so a new one is needed for each file. Called from worker threads.
+ *
+ * @author Klaus Brunner
+ */
+public interface FilterFactory {
+
+    /**
+     * @param convertee
+     *            the file about to be converted
+     * @return a new filter (e.g. a {@link FilterChain}), or null for none
+     */
+    BlockCharFilter newFilter(Convertee convertee);
+
+}
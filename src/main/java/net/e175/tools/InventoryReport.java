@@ -0,0 +1,318 @@
+package net.e175.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Aggregate report of the encodings found by a scan, for auditing a tree
+ * before anything is converted. Pass the report to
+ * {@link TreeConverter#scanTree(File, ScanCache, ScanListener)} and call
+ * {@link #finish()} once that has returned.
+ *
+ * The report is written as JSON lines, one object per line, so it can be
+ * processed with the usual line-oriented tools and doesn't need to be held in
+ * memory by either side:
+ *
+ * <pre>
+ * {"type":"undetectable","path":...,"size":...,"binary":...,"unreadable":...,"guess":...}
+ * {"type":"directory","path":...,"files":...,...}      (one per directory, sorted by path)
+ * {"type":"summary","root":...,"files":...,"bytes":...,"bom":...,"asciiOnly":...,"binary":...,"unreadable":...,"undetectable":...,"encodings":{...},"guessed":{...}}
+ * </pre>
+ *
+ * The lines for files whose encoding couldn't be determined are written as
+ * the scan finds them, in no particular order; only counts per directory are
+ * kept, and the directory lines and the summary are written at the end.
+ *
+ * "encodings" maps each encoding found to its number of files; files whose
+ * encoding couldn't be determined only count as "undetectable". For those, a
+ * general charset detector may still have made a guess; "guessed" counts
+ * these guesses separately, as they can easily be wrong (and "guess" is null
+ * where there is none).
+ *
+ * Thread-safe, as a scan reports from its worker threads.
+ *
+ * @author Klaus Brunner
+ */
+public final class InventoryReport implements ScanListener {
+
+    private final String root;
+
+    private final Writer out;
+
+    private final StringBuilder line = new StringBuilder(256);
+
+    private final Totals totals = new Totals();
+
+    /** counts by directory path */
+    private final Map<String, Totals> directories = new HashMap<String, Totals>();
+
+    /** the first error writing the report, rethrown by finish() */
+    private IOException failure = null;
+
+    /**
+     * Counts for the whole tree or a directory.
+     */
+    private static final class Totals {
+
+        /** files by encoding, sorted by name */
+        private final SortedMap<String, int[]> encodings = new TreeMap<String, int[]>();
+
+        private final SortedMap<String, int[]> guessed = new TreeMap<String, int[]>();
+
+        private int files = 0;
+
+        private long bytes = 0;
+
+        private int bom = 0;
+
+        private int asciiOnly = 0;
+
+        private int binary = 0;
+
+        private int unreadable = 0;
+
+        private int undetectable = 0;
+
+        void add(final long size, final DetectionResult result, final String guessedEncoding) {
+            this.files++;
+            this.bytes += size;
+            if (result == null) {
+                this.unreadable++;
+                this.undetectable++;
+                return;
+            }
+            if (result.getBOMEncoding() != null) {
+                this.bom++;
+            }
+            if (result.isAsciiOnly()) {
+                this.asciiOnly++;
+            }
+            if (result.isBinary()) {
+                this.binary++;
+            }
+            if (result.getEncoding() == null) {
+                this.undetectable++;
+                if (guessedEncoding != null) {
+                    increment(this.guessed, guessedEncoding);
+                }
+            } else {
+                increment(this.encodings, result.getEncoding());
+            }
+        }
+
+        private static void increment(final Map<String, int[]> counts, final String encoding) {
+            final int[] count = counts.get(encoding);
+            if (count == null) {
+                counts.put(encoding, new int[] { 1 });
+            } else {
+                count[0]++;
+            }
+        }
+    }
+
+    /**
+     * @param root
+     *            the directory that is scanned, as shown in the report
+     * @param out
+     *            receives the report (and isn't closed)
+     */
+    public InventoryReport(final String root, final Writer out) {
+        this.root = root;
+        this.out = out;
+    }
+
+    /**
+     * Count a file, and write its line right away if its encoding couldn't be
+     * determined.
+     */
+    public synchronized void scanned(final File file, final DetectionResult result, final String guessedEncoding) {
+        final long size = file.length();
+        this.totals.add(size, result, guessedEncoding);
+        final String directory = file.getParent();
+        Totals t = this.directories.get(directory);
+        if (t == null) {
+            t = new Totals();
+            this.directories.put(directory, t);
+        }
+        t.add(size, result, guessedEncoding);
+
+        if ((result == null) || (result.getEncoding() == null)) {
+            this.line.append("{\"type\":\"undetectable\",\"path\":");
+            appendString(this.line, file.getPath());
+            this.line.append(",\"size\":").append(size);
+            this.line.append(",\"binary\":").append((result != null) && result.isBinary());
+            this.line.append(",\"unreadable\":").append(result == null);
+            this.line.append(",\"guess\":");
+            if (guessedEncoding == null) {
+                this.line.append("null");
+            } else {
+                appendString(this.line, guessedEncoding);
+            }
+            this.line.append('}');
+            this.writeLine();
+        }
+    }
+
+    /**
+     * Write the directory lines and the summary, and flush the writer.
+     *
+     * @throws IOException
+     *             also if writing a line failed during the scan
+     */
+    public synchronized void finish() throws IOException {
+        for (final Map.Entry<String, Totals> directory : new TreeMap<String, Totals>(this.directories).entrySet()) {
+            this.line.append("{\"type\":\"directory\",\"path\":");
+            appendString(this.line, directory.getKey());
+            appendTotals(this.line, directory.getValue());
+            this.writeLine();
+        }
+
+        this.line.append("{\"type\":\"summary\",\"root\":");
+        appendString(this.line, this.root);
+        appendTotals(this.line, this.totals);
+        this.writeLine();
+
+        if (this.failure != null) {
+            throw this.failure;
+        }
+        this.out.flush();
+    }
+
+    public synchronized int getFileCount() {
+        return this.totals.files;
+    }
+
+    public synchronized long getByteCount() {
+        return this.totals.bytes;
+    }
+
+    /**
+     * @return number of files whose encoding couldn't be determined
+     *         (including unreadable ones)
+     */
+    public synchronized int getUndetectableCount() {
+        return this.totals.undetectable;
+    }
+
+    public synchronized int getUnreadableCount() {
+        return this.totals.unreadable;
+    }
+
+    public synchronized int getBOMCount() {
+        return this.totals.bom;
+    }
+
+    public synchronized int getAsciiOnlyCount() {
+        return this.totals.asciiOnly;
+    }
+
+    public synchronized int getBinaryCount() {
+        return this.totals.binary;
+    }
+
+    /**
+     * @param encoding
+     *            an encoding name as reported by detection
+     * @return number of files in that encoding
+     */
+    public synchronized int getEncodingCount(final String encoding) {
+        final int[] count = this.totals.encodings.get(encoding);
+        return (count == null) ? 0 : count[0];
+    }
+
+    /**
+     * @param encoding
+     *            a charset name as guessed for undetectable files
+     * @return number of undetectable files guessed to be in that charset
+     */
+    public synchronized int getGuessedCount(final String encoding) {
+        final int[] count = this.totals.guessed.get(encoding);
+        return (count == null) ? 0 : count[0];
+    }
+
+    /**
+     * Write the line built up, unless writing has failed before.
+     */
+    private void writeLine() {
+        this.line.append('\n');
+        if (this.failure == null) {
+            try {
+                this.out.append(this.line);
+            } catch (final IOException e) {
+                this.failure = e;
+            }
+        }
+        this.line.setLength(0);
+    }
+
+    private static void appendTotals(final StringBuilder line, final Totals t) {
+        line.append(",\"files\":").append(t.files);
+        line.append(",\"bytes\":").append(t.bytes);
+        line.append(",\"bom\":").append(t.bom);
+        line.append(",\"asciiOnly\":").append(t.asciiOnly);
+        line.append(",\"binary\":").append(t.binary);
+        line.append(",\"unreadable\":").append(t.unreadable);
+        line.append(",\"undetectable\":").append(t.undetectable);
+        line.append(",\"encodings\":");
+        appendHistogram(line, t.encodings);
+        line.append(",\"guessed\":");
+        appendHistogram(line, t.guessed);
+        line.append('}');
+    }
+
+    /**
+     * Append the counts as a JSON object, in name order.
+     */
+    private static void appendHistogram(final StringBuilder line, final SortedMap<String, int[]> counts) {
+        line.append('{');
+        boolean first = true;
+        for (final Map.Entry<String, int[]> count : counts.entrySet()) {
+            if (!first) {
+                line.append(',');
+            }
+            first = false;
+            appendString(line, count.getKey());
+            line.append(':').append(count.getValue()[0]);
+        }
+        line.append('}');
+    }
+
+    /**
+     * Append a string as a JSON string literal.
+     */
+    private static void appendString(final StringBuilder line, final String s) {
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+            case '"':
+                line.append("\\\"");
+                break;
+            case '\\':
+                line.append("\\\\");
+                break;
+            case '\n':
+                line.append("\\n");
+                break;
+            case '\r':
+                line.append("\\r");
+                break;
+            case '\t':
+                line.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    line.append(String.format("\\u%04x", Integer.valueOf(c)));
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,82 @@
+package net.e175.tools;
+
+import java.nio.CharBuffer;
+
+/**
+ * Normalises line endings: CR LF, a lone CR and a lone LF are all replaced by
+ * the same line separator. Instances are not thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public final class LineEndingFilter implements BlockCharFilter {
+
+    public static final String LF = "\n";
+
+    public static final String CRLF = "\r\n";
+
+    private final char[] separator;
+
+    /** a CR has been read, an LF following it belongs to the same break */
+    private boolean afterCR = false;
+
+    /** characters of the current separator not yet written */
+    private int pending = 0;
+
+    /**
+     * @param separator
+     *            the line separator to write, e.g. LF or CRLF
+     */
+    public LineEndingFilter(final String separator) {
+        if ((separator == null) || (separator.length() == 0)) {
+            throw new IllegalArgumentException("separator must not be empty");
+        }
+        this.separator = separator.toCharArray();
+    }
+
+    /**
+     * @return true if the whole separator has been written
+     */
+    private boolean writePending(final CharBuffer out) {
+        while (this.pending > 0) {
+            if (!out.hasRemaining()) {
+                return false;
+            }
+            out.put(this.separator[this.separator.length - this.pending]);
+            this.pending--;
+        }
+        return true;
+    }
+
+    public boolean filter(final CharBuffer in, final CharBuffer out, final boolean endOfInput) {
+        if (!this.writePending(out)) {
+            return true;
+        }
+
+        while (in.hasRemaining()) {
+            final char c = in.get();
+            if ((c == '\n') && this.afterCR) {
+                // second half of CR LF, already written
+                this.afterCR = false;
+                continue;
+            }
+            this.afterCR = (c == '\r');
+            if (this.afterCR || (c == '\n')) {
+                this.pending = this.separator.length;
+                if (!this.writePending(out)) {
+                    return true;
+                }
+            } else if (out.hasRemaining()) {
+                out.put(c);
+            } else {
+                in.position(in.position() - 1);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void reset() {
+        this.afterCR = false;
+        this.pending = 0;
+    }
+}
@@ -0,0 +1,334 @@
+package net.e175.tools;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk index of detection results for the files below a root directory.
+ * Each entry is keyed on the file's path (relative to the root) and is only
+ * used as long as the file's size and modification time are unchanged, so a
+ * rescan only needs to read files that have changed since.
+ *
+ * The index is a compact binary file, by default in the user's home directory
+ * (see {@link #defaultLocation(File)}) so that the tree itself isn't touched.
+ * Entries that weren't used during a scan are dropped when saving, which
+ * takes care of deleted files. Instances are thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public final class ScanCache {
+
+    private static final Logger LOG = Logger.getLogger(ScanCache.class.getName());
+
+    /** "TUSC" */
+    private static final int MAGIC = 0x54555343;
+
+    private static final int VERSION = 3;
+
+    private static final int FLAG_COMPLETE = 1;
+
+    private static final int FLAG_ASCII_ONLY = 2;
+
+    private static final int FLAG_BINARY = 4;
+
+    /**
+     * A cached detection result together with the file state it is valid for.
+     */
+    public static final class Entry {
+
+        private final long size;
+
+        private final long lastModified;
+
+        private final DetectionResult result;
+
+        /** looked up or added since loading */
+        private volatile boolean used;
+
+        Entry(final long size, final long lastModified, final DetectionResult result, final boolean used) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.result = result;
+            this.used = used;
+        }
+
+        /**
+         * @return file size when the entry was made
+         */
+        public long getSize() {
+            return this.size;
+        }
+
+        /**
+         * @return modification time when the entry was made
+         */
+        public long getLastModified() {
+            return this.lastModified;
+        }
+
+        /**
+         * @return the detection result
+         */
+        public DetectionResult getResult() {
+            return this.result;
+        }
+    }
+
+    private final File location;
+
+    private final File root;
+
+    private final int sampleBudget;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Create an empty cache.
+     *
+     * @param location
+     *            the index file
+     * @param root
+     *            the directory whose files are indexed
+     * @param sampleBudget
+     *            the sample budget detection is run with; results obtained
+     *            with a different budget aren't reused
+     */
+    public ScanCache(final File location, final File root, final int sampleBudget) {
+        if ((location == null) || (root == null)) {
+            throw new IllegalArgumentException("location and root must not be null");
+        }
+        this.location = location;
+        this.root = root.getAbsoluteFile();
+        this.sampleBudget = sampleBudget;
+    }
+
+    /**
+     * @param root
+     *            the directory whose files are indexed
+     * @return an index file in the user's home directory, named after the
+     *         root directory
+     */
+    public static File defaultLocation(final File root) {
+        final String path = root.getAbsolutePath();
+        final File dir = new File(new File(System.getProperty("user.home"), ".toutf"), "cache");
+        return new File(dir, Long.toHexString(hash(path)) + ".idx");
+    }
+
+    /**
+     * Load a cache. A missing or unreadable index (or one written for a
+     * different root or sample budget) yields an empty cache, so the files
+     * are simply detected again.
+     *
+     * @see #ScanCache(File, File, int)
+     */
+    public static ScanCache load(final File location, final File root, final int sampleBudget) {
+        final ScanCache cache = new ScanCache(location, root, sampleBudget);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(location.toPath())))) {
+            cache.read(in);
+        } catch (final NoSuchFileException e) {
+            // nothing cached yet
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "ignoring unreadable scan cache " + location, e);
+            cache.entries.clear();
+        }
+        return cache;
+    }
+
+    private void read(final DataInputStream in) throws IOException {
+        if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+            throw new IOException("not a scan cache");
+        }
+        if (!this.root.getPath().equals(in.readUTF()) || (in.readInt() != this.sampleBudget)) {
+            return;
+        }
+
+        final String[] encodings = new String[in.readInt()];
+        for (int i = 0; i < encodings.length; i++) {
+            encodings[i] = in.readUTF();
+        }
+
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final String path = in.readUTF();
+            final long size = in.readLong();
+            final long lastModified = in.readLong();
+
+            final int flags = in.readByte();
+            final String encoding = readEncoding(in, encodings);
+            final double confidence = in.readDouble();
+            final String bom = readEncoding(in, encodings);
+            final String detected = readEncoding(in, encodings);
+            final long bytesRead = in.readLong();
+            final int layers = in.readByte();
+            final double layersConfidence = in.readDouble();
+
+            final DetectionResult result = new DetectionResult(encoding, confidence, bom, detected, bytesRead,
+                    (flags & FLAG_COMPLETE) != 0, (flags & FLAG_ASCII_ONLY) != 0, (flags & FLAG_BINARY) != 0, layers, layersConfidence);
+            this.entries.put(path, new Entry(size, lastModified, result, false));
+        }
+    }
+
+    private static String readEncoding(final DataInputStream in, final String[] encodings) throws IOException {
+        final int index = in.readShort();
+        if (index >= encodings.length) {
+            throw new IOException("bad encoding index " + index);
+        }
+        return (index < 0) ? null : encodings[index];
+    }
+
+    /**
+     * Write all entries used since loading to the index file, replacing it
+     * atomically.
+     *
+     * @throws IOException
+     */
+    public void save() throws IOException {
+        final List<String> paths = new ArrayList<String>();
+        final List<Entry> used = new ArrayList<Entry>();
+        final List<String> encodings = new ArrayList<String>();
+        for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+            final Entry entry = e.getValue();
+            if (entry.used) {
+                paths.add(e.getKey());
+                used.add(entry);
+                addEncoding(encodings, entry.result.getEncoding());
+                addEncoding(encodings, entry.result.getBOMEncoding());
+                addEncoding(encodings, entry.result.getDetectedCharset());
+            }
+        }
+
+        final Path target = this.location.toPath();
+        if (target.getParent() != null) {
+            Files.createDirectories(target.getParent());
+        }
+        final Path temp = Files.createTempFile(target.getParent(), ".toutf_", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(this.root.getPath());
+                out.writeInt(this.sampleBudget);
+
+                out.writeInt(encodings.size());
+                for (final String encoding : encodings) {
+                    out.writeUTF(encoding);
+                }
+
+                out.writeInt(used.size());
+                for (int i = 0; i < used.size(); i++) {
+                    final Entry entry = used.get(i);
+                    final DetectionResult result = entry.result;
+                    out.writeUTF(paths.get(i));
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.lastModified);
+
+                    out.writeByte((result.isComplete() ? FLAG_COMPLETE : 0) | (result.isAsciiOnly() ? FLAG_ASCII_ONLY : 0)
+                            | (result.isBinary() ? FLAG_BINARY : 0));
+                    out.writeShort(encodings.indexOf(result.getEncoding()));
+                    out.writeDouble(result.getConfidence());
+                    out.writeShort(encodings.indexOf(result.getBOMEncoding()));
+                    out.writeShort(encodings.indexOf(result.getDetectedCharset()));
+                    out.writeLong(result.getBytesRead());
+                    out.writeByte(result.getDoubleEncodingLayers());
+                    out.writeDouble(result.getDoubleEncodingConfidence());
+                }
+            }
+
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void addEncoding(final List<String> encodings, final String encoding) {
+        if ((encoding != null) && !encodings.contains(encoding)) {
+            encodings.add(encoding);
+        }
+    }
+
+    /**
+     * Look up the entry for a file.
+     *
+     * @return the entry, or null if there is none or the file has changed
+     *         since
+     */
+    public Entry get(final File file) {
+        final Entry entry = this.entries.get(this.key(file));
+        if ((entry == null) || (entry.size != file.length()) || (entry.lastModified != file.lastModified())) {
+            return null;
+        }
+        entry.used = true;
+        return entry;
+    }
+
+    /**
+     * Record the detection result for a file. Size and modification time
+     * must be taken before detecting, so that a file changed while it was
+     * being read doesn't get an entry that looks current.
+     *
+     * @param size
+     *            file size before detection
+     * @param lastModified
+     *            modification time before detection
+     */
+    public void put(final File file, final long size, final long lastModified, final DetectionResult result) {
+        if (result == null) {
+            throw new IllegalArgumentException("result must not be null");
+        }
+        this.entries.put(this.key(file), new Entry(size, lastModified, result, true));
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+        return this.entries.size();
+    }
+
+    /**
+     * @return the index file
+     */
+    public File getLocation() {
+        return this.location;
+    }
+
+    /**
+     * @return path relative to the root, if the file is below it
+     */
+    private String key(final File file) {
+        final String path = file.getAbsolutePath();
+        final String prefix = this.root.getPath() + File.separator;
+        return path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+    }
+
+    /**
+     * 64-bit FNV-1a hash of a string.
+     */
+    private static long hash(final String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
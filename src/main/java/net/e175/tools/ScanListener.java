@@ -0,0 +1,27 @@
+package net.e175.tools;
+
+import java.io.File;
+
+/**
+ * Receives the results of a parallel scan as they come in, see
+ * {@link TreeConverter#scanTree(File, ScanCache, ScanListener)}. Methods are
+ * called from worker threads, so implementations must be thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public interface ScanListener {
+
+    /**
+     * A file has been examined.
+     *
+     * @param file
+     *            the file
+     * @param result
+     *            the detection result, or null if the file couldn't be read
+     * @param guessedEncoding
+     *            the charset the general detector guesses for a text file
+     *            whose encoding couldn't be determined, or null
+     */
+    void scanned(File file, DetectionResult result, String guessedEncoding);
+
+}
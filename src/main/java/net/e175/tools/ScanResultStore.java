@@ -0,0 +1,442 @@
+package net.e175.tools;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detection results for the files of a tree, kept in columns instead of one
+ * Convertee per file: directories are interned and referenced by id, file
+ * names are stored as UTF-8 bytes in one shared array, encodings are small
+ * ids into a table, and BOM, ASCII and binary flags are packed into a byte.
+ * That's about 30 bytes plus the name per file, so even trees of millions of
+ * files fit into a few hundred MB. Directories themselves are interned as a
+ * parent id and a name, so a deep tree doesn't store the same path prefixes
+ * over and over. Files whose encoding couldn't be determined may also have
+ * a guessed charset (see {@link #setGuessedEncoding(int, String)}), which is
+ * kept apart from the encodings known for certain. Files are identified by
+ * their row number;
+ * {@link #newConvertee(int)} creates a convertee for a row when it's needed.
+ *
+ * Instances are not thread-safe. To fill a store from several threads, give
+ * each thread its own and merge them with {@link #addAll(ScanResultStore)}.
+ * Once filled, a store may be read by several threads, as long as no rows
+ * are added meanwhile.
+ *
+ * @author Klaus Brunner
+ */
+public final class ScanResultStore {
+
+    /** the file starts with a BOM */
+    public static final int BOM = 1;
+
+    /** all bytes examined were 7-bit ASCII */
+    public static final int ASCII_ONLY = 2;
+
+    /** NUL bytes were found, see {@link DetectionResult#isBinary()} */
+    public static final int BINARY = 4;
+
+    /** detection saw the whole file (or was certain) */
+    public static final int COMPLETE = 8;
+
+    /** the file couldn't be read */
+    public static final int UNREADABLE = 16;
+
+    /** encoding id of files whose encoding couldn't be determined */
+    public static final int NO_ENCODING = -1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** a directory name under its parent, see nodeIds */
+    private static final class Node {
+
+        private final int parent;
+
+        private final String name;
+
+        Node(final int parent, final String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        public boolean equals(final Object o) {
+            return (o instanceof Node) && (((Node) o).parent == this.parent) && ((Node) o).name.equals(this.name);
+        }
+
+        public int hashCode() {
+            return 31 * this.parent + this.name.hashCode();
+        }
+    }
+
+    /** no parent: the node is a root (or a relative path's first segment) */
+    private static final int NO_PARENT = -1;
+
+    /** every directory on the way to the files, by node id */
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    private final Map<Node, Integer> nodeIds = new HashMap<Node, Integer>();
+
+    /** node of each directory that holds files, by directory id */
+    private final List<Integer> directories = new ArrayList<Integer>();
+
+    private final Map<Integer, Integer> directoryIds = new HashMap<Integer, Integer>();
+
+    /** files usually come a directory at a time, so remember the last one */
+    private String lastDirectory = null;
+
+    private int lastDirectoryId = -1;
+
+    private final List<String> encodings = new ArrayList<String>();
+
+    private int[] directoryColumn = new int[INITIAL_CAPACITY];
+
+    /** start of each name in names; the name ends where the next one starts */
+    private int[] nameOffsets = new int[INITIAL_CAPACITY + 1];
+
+    private byte[] names = new byte[INITIAL_CAPACITY * 16];
+
+    private long[] sizes = new long[INITIAL_CAPACITY];
+
+    private short[] encodingColumn = new short[INITIAL_CAPACITY];
+
+    private short[] guessColumn = new short[INITIAL_CAPACITY];
+
+    private byte[] flagColumn = new byte[INITIAL_CAPACITY];
+
+    private byte[] layerColumn = new byte[INITIAL_CAPACITY];
+
+    /** confidence of double encoding detection, in percent */
+    private byte[] layerConfidenceColumn = new byte[INITIAL_CAPACITY];
+
+    private int rows = 0;
+
+    /**
+     * Add a file with the result of its detection.
+     *
+     * @param result
+     *            the detection result, or null if the file couldn't be read
+     * @return the file's row
+     */
+    public int add(final File file, final DetectionResult result) {
+        if (result == null) {
+            return this.add(file, file.length(), null, UNREADABLE, 0, 0);
+        }
+        final int flags = ((result.getBOMEncoding() != null) ? BOM : 0) | (result.isAsciiOnly() ? ASCII_ONLY : 0)
+                | (result.isBinary() ? BINARY : 0) | (result.isComplete() ? COMPLETE : 0);
+        return this.add(file, file.length(), result.getEncoding(), flags, result.getDoubleEncodingLayers(),
+                result.getDoubleEncodingConfidence());
+    }
+
+    /**
+     * Add a file.
+     *
+     * @param size
+     *            the file's size
+     * @param encoding
+     *            the file's encoding, or null if unknown
+     * @param flags
+     *            combination of the flag constants
+     * @param doubleEncodingLayers
+     *            layers of double encoding found
+     * @param doubleEncodingConfidence
+     *            confidence of that, from 0 to 1
+     * @return the file's row
+     */
+    public int add(final File file, final long size, final String encoding, final int flags, final int doubleEncodingLayers,
+            final double doubleEncodingConfidence) {
+        final byte[] name = file.getName().getBytes(UTF8);
+        return this.addRow(this.directoryId(file.getParent()), name, 0, name.length, size, this.encodingId(encoding), NO_ENCODING,
+                flags, Math.min(doubleEncodingLayers, Byte.MAX_VALUE), (int) Math.round(doubleEncodingConfidence * 100));
+    }
+
+    /**
+     * Add all rows of another store (which isn't changed). Their row numbers
+     * change, of course.
+     */
+    public void addAll(final ScanResultStore other) {
+        final int[] directoryMap = new int[other.directories.size()];
+        for (int d = 0; d < directoryMap.length; d++) {
+            directoryMap[d] = this.directoryId(other.getDirectory(d));
+        }
+        final int[] encodingMap = new int[other.encodings.size()];
+        for (int e = 0; e < encodingMap.length; e++) {
+            encodingMap[e] = this.encodingId(other.encodings.get(e));
+        }
+
+        for (int row = 0; row < other.rows; row++) {
+            final int encoding = other.encodingColumn[row];
+            final int guess = other.guessColumn[row];
+            final int offset = other.nameOffsets[row];
+            this.addRow(directoryMap[other.directoryColumn[row]], other.names, offset, other.nameOffsets[row + 1] - offset,
+                    other.sizes[row], (encoding == NO_ENCODING) ? NO_ENCODING : encodingMap[encoding],
+                    (guess == NO_ENCODING) ? NO_ENCODING : encodingMap[guess], other.flagColumn[row], other.layerColumn[row],
+                    other.layerConfidenceColumn[row]);
+        }
+    }
+
+    private int addRow(final int directoryId, final byte[] name, final int nameOffset, final int nameLength, final long size,
+            final int encodingId, final int guessId, final int flags, final int layers, final int layerConfidence) {
+        if (this.rows == this.sizes.length) {
+            this.grow();
+        }
+        final int offset = this.nameOffsets[this.rows];
+        if (offset + nameLength > this.names.length) {
+            final long capacity = Math.max((long) this.names.length * 2, (long) offset + nameLength);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("too many file names");
+            }
+            final byte[] grown = new byte[(int) capacity];
+            System.arraycopy(this.names, 0, grown, 0, offset);
+            this.names = grown;
+        }
+        System.arraycopy(name, nameOffset, this.names, offset, nameLength);
+
+        final int row = this.rows++;
+        this.nameOffsets[this.rows] = offset + nameLength;
+        this.directoryColumn[row] = directoryId;
+        this.sizes[row] = size;
+        this.encodingColumn[row] = (short) encodingId;
+        this.guessColumn[row] = (short) guessId;
+        this.flagColumn[row] = (byte) flags;
+        this.layerColumn[row] = (byte) layers;
+        this.layerConfidenceColumn[row] = (byte) layerConfidence;
+        return row;
+    }
+
+    private int directoryId(final String directory) {
+        final String path = (directory != null) ? directory : "";
+        if (path.equals(this.lastDirectory)) {
+            return this.lastDirectoryId;
+        }
+
+        final Integer node = Integer.valueOf(this.nodeId(new File(path)));
+        Integer id = this.directoryIds.get(node);
+        if (id == null) {
+            id = Integer.valueOf(this.directories.size());
+            this.directories.add(node);
+            this.directoryIds.put(node, id);
+        }
+        this.lastDirectory = path;
+        this.lastDirectoryId = id.intValue();
+        return this.lastDirectoryId;
+    }
+
+    /**
+     * Intern a directory and its ancestors.
+     */
+    private int nodeId(final File directory) {
+        final File parent = directory.getParentFile();
+        final Node node = (parent == null) ? new Node(NO_PARENT, directory.getPath()) : new Node(this.nodeId(parent),
+                directory.getName());
+        Integer id = this.nodeIds.get(node);
+        if (id == null) {
+            id = Integer.valueOf(this.nodes.size());
+            this.nodes.add(node);
+            this.nodeIds.put(node, id);
+        }
+        return id.intValue();
+    }
+
+    /**
+     * Rebuild a directory's path from its interned names.
+     */
+    private String path(final int nodeId) {
+        final Node node = this.nodes.get(nodeId);
+        return (node.parent == NO_PARENT) ? node.name : new File(this.path(node.parent), node.name).getPath();
+    }
+
+    private int encodingId(final String encoding) {
+        if (encoding == null) {
+            return NO_ENCODING;
+        }
+        int id = this.encodings.indexOf(encoding);
+        if (id < 0) {
+            id = this.encodings.size();
+            this.encodings.add(encoding);
+        }
+        return id;
+    }
+
+    private void grow() {
+        final int capacity = this.sizes.length * 2;
+        final int[] newDirectories = new int[capacity];
+        System.arraycopy(this.directoryColumn, 0, newDirectories, 0, this.rows);
+        this.directoryColumn = newDirectories;
+        final int[] newOffsets = new int[capacity + 1];
+        System.arraycopy(this.nameOffsets, 0, newOffsets, 0, this.rows + 1);
+        this.nameOffsets = newOffsets;
+        final long[] newSizes = new long[capacity];
+        System.arraycopy(this.sizes, 0, newSizes, 0, this.rows);
+        this.sizes = newSizes;
+        final short[] newEncodings = new short[capacity];
+        System.arraycopy(this.encodingColumn, 0, newEncodings, 0, this.rows);
+        this.encodingColumn = newEncodings;
+        final short[] newGuesses = new short[capacity];
+        System.arraycopy(this.guessColumn, 0, newGuesses, 0, this.rows);
+        this.guessColumn = newGuesses;
+        this.flagColumn = this.grow(this.flagColumn, capacity);
+        this.layerColumn = this.grow(this.layerColumn, capacity);
+        this.layerConfidenceColumn = this.grow(this.layerConfidenceColumn, capacity);
+    }
+
+    private byte[] grow(final byte[] column, final int capacity) {
+        final byte[] grown = new byte[capacity];
+        System.arraycopy(column, 0, grown, 0, this.rows);
+        return grown;
+    }
+
+    /**
+     * @return number of files
+     */
+    public int size() {
+        return this.rows;
+    }
+
+    private void checkRow(final int row) {
+        if ((row < 0) || (row >= this.rows)) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + this.rows);
+        }
+    }
+
+    /**
+     * @return id of the file's directory, see {@link #getDirectory(int)}
+     */
+    public int getDirectoryId(final int row) {
+        this.checkRow(row);
+        return this.directoryColumn[row];
+    }
+
+    /**
+     * @return number of distinct directories
+     */
+    public int getDirectoryCount() {
+        return this.directories.size();
+    }
+
+    /**
+     * @param directoryId
+     *            a directory id
+     * @return the directory's path
+     */
+    public String getDirectory(final int directoryId) {
+        return this.path(this.directories.get(directoryId).intValue());
+    }
+
+    public String getName(final int row) {
+        this.checkRow(row);
+        final int offset = this.nameOffsets[row];
+        return new String(this.names, offset, this.nameOffsets[row + 1] - offset, UTF8);
+    }
+
+    public File getFile(final int row) {
+        return new File(this.getDirectory(this.getDirectoryId(row)), this.getName(row));
+    }
+
+    public long getSize(final int row) {
+        this.checkRow(row);
+        return this.sizes[row];
+    }
+
+    /**
+     * @return id of the file's encoding, or NO_ENCODING
+     */
+    public int getEncodingId(final int row) {
+        this.checkRow(row);
+        return this.encodingColumn[row];
+    }
+
+    /**
+     * @return number of distinct encodings
+     */
+    public int getEncodingCount() {
+        return this.encodings.size();
+    }
+
+    /**
+     * @param encodingId
+     *            an encoding id, or NO_ENCODING
+     * @return the encoding's name, or null for NO_ENCODING
+     */
+    public String getEncodingName(final int encodingId) {
+        return (encodingId == NO_ENCODING) ? null : this.encodings.get(encodingId);
+    }
+
+    /**
+     * @return the file's encoding, or null if it couldn't be determined
+     */
+    public String getEncoding(final int row) {
+        return this.getEncodingName(this.getEncodingId(row));
+    }
+
+    /**
+     * Record a guess for a file whose encoding couldn't be determined.
+     *
+     * @param encoding
+     *            the charset guessed, or null for none
+     */
+    public void setGuessedEncoding(final int row, final String encoding) {
+        this.checkRow(row);
+        this.guessColumn[row] = (short) this.encodingId(encoding);
+    }
+
+    /**
+     * @return id of the charset guessed for the file, or NO_ENCODING
+     */
+    public int getGuessedEncodingId(final int row) {
+        this.checkRow(row);
+        return this.guessColumn[row];
+    }
+
+    /**
+     * @return the charset guessed for the file, or null if there is no guess
+     */
+    public String getGuessedEncoding(final int row) {
+        return this.getEncodingName(this.getGuessedEncodingId(row));
+    }
+
+    /**
+     * @return combination of the flag constants
+     */
+    public int getFlags(final int row) {
+        this.checkRow(row);
+        return this.flagColumn[row];
+    }
+
+    public boolean hasFlag(final int row, final int flag) {
+        return (this.getFlags(row) & flag) != 0;
+    }
+
+    public int getDoubleEncodingLayers(final int row) {
+        this.checkRow(row);
+        return this.layerColumn[row];
+    }
+
+    /**
+     * @return confidence that the file is double-encoded, from 0 to 1 (in
+     *         steps of 0.01)
+     */
+    public double getDoubleEncodingConfidence(final int row) {
+        this.checkRow(row);
+        return this.layerConfidenceColumn[row] / 100.0;
+    }
+
+    /**
+     * Create a convertee for a file, with the source encoding set to the one
+     * detected (if any).
+     *
+     * @return a new convertee
+     */
+    public Convertee newConvertee(final int row) {
+        final Convertee c = new Convertee(this.getFile(row));
+        final String encoding = this.getEncoding(row);
+        if (encoding != null) {
+            c.setSourceEncoding(encoding);
+        }
+        return c;
+    }
+}
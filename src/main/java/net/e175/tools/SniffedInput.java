@@ -0,0 +1,233 @@
+package net.e175.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * An open file whose leading bytes have already been run through BOM and
+ * charset detection. The bytes consumed by detection are kept so that the
+ * conversion can continue from the same read instead of reading the file
+ * again, which would mean a second trip over the network on a network file
+ * system: up to a size limit in memory, and beyond that spooled to a local
+ * temporary file, which is deleted on {@link #close()}. Files above the map threshold are memory-mapped
+ * instead (though {@link Convertee#sniff()} doesn't map them on Windows);
+ * detection and conversion then both read from the same mapping, and nothing
+ * needs to be kept.
+ *
+ * Obtain instances from {@link Convertee#sniff()} or
+ * {@link EncodingDetector#sniff(File)} and always close them.
+ *
+ * @author Klaus Brunner
+ */
+public final class SniffedInput {
+
+    /** bytes kept in memory; beyond that, they are spooled to a file */
+    public static final int DEFAULT_MEMORY_LIMIT = 1024 * 1024;
+
+    private static final int BLOCK_SIZE = 8192;
+
+    private final FileInputStream in;
+
+    private final DetectionResult detectionResult;
+
+    private MappedByteBuffer mapping = null;
+
+    private byte[] memory = new byte[BLOCK_SIZE];
+
+    private int memoryLength = 0;
+
+    /** bytes read beyond the memory limit, or null */
+    private File spool = null;
+
+    private OutputStream spoolOut = null;
+
+    private InputStream spoolIn = null;
+
+    private boolean consumed = false;
+
+    /**
+     * Open a file and read as much of it as detection needs.
+     * 
+     * @param mapThreshold
+     *            files at least this large are mapped instead of read
+     */
+    SniffedInput(final File file, final int memoryLimit, final int sampleBudget, final long mapThreshold) throws IOException {
+        final long start = System.nanoTime();
+        this.in = new FileInputStream(file);
+        try {
+            this.mapping = Convertee.map(this.in.getChannel(), mapThreshold);
+            if (this.mapping != null) {
+                this.detectionResult = Sniffer.detect(this.mapping, sampleBudget, false);
+                ConversionStats.getInstance().timeSince(ConversionStats.SNIFF, start);
+                return;
+            }
+
+            final Sniffer sniffer = new Sniffer(sampleBudget, false);
+            final byte[] buf = new byte[BLOCK_SIZE];
+            boolean needMore = true;
+            long bytesRead = 0;
+            int len = 0;
+            while (needMore && ((len = this.in.read(buf, 0, buf.length)) != -1)) {
+                bytesRead += len;
+                needMore = sniffer.update(buf, len);
+                this.keep(buf, len, memoryLimit);
+            }
+            if (this.spoolOut != null) {
+                this.spoolOut.close();
+            }
+            sniffer.finish(len == -1);
+
+            this.detectionResult = sniffer.getResult(bytesRead, this.in.getChannel().size(), len == -1);
+            ConversionStats.getInstance().timeSince(ConversionStats.SNIFF, start);
+        } catch (final IOException e) {
+            this.close();
+            throw e;
+        } catch (final RuntimeException e) {
+            this.close();
+            throw e;
+        }
+    }
+
+    private void keep(final byte[] buf, final int len, final int memoryLimit) throws IOException {
+        if ((this.spool != null) || (this.memoryLength + len > memoryLimit)) {
+            if (this.spool == null) {
+                this.spool = File.createTempFile("toutf_", ".spool");
+                this.spoolOut = new BufferedOutputStream(new FileOutputStream(this.spool), BLOCK_SIZE * 8);
+            }
+            this.spoolOut.write(buf, 0, len);
+            return;
+        }
+
+        if (this.memoryLength + len > this.memory.length) {
+            final byte[] grown = new byte[Math.max(this.memory.length * 2, this.memoryLength + len)];
+            System.arraycopy(this.memory, 0, grown, 0, this.memoryLength);
+            this.memory = grown;
+        }
+        System.arraycopy(buf, 0, this.memory, this.memoryLength, len);
+        this.memoryLength += len;
+    }
+
+    /**
+     * @return result of detection on the bytes read so far
+     */
+    public DetectionResult getDetectionResult() {
+        return this.detectionResult;
+    }
+
+    /**
+     * @return canonical name of UTF encoding or null if no BOM found
+     */
+    public String getBOMEncoding() {
+        return this.detectionResult.getBOMEncoding();
+    }
+
+    /**
+     * @return the charset guessed by the detector, or null
+     */
+    public String getDetectedCharset() {
+        return this.detectionResult.getDetectedCharset();
+    }
+
+    /**
+     * @return true if the file is memory-mapped rather than read
+     */
+    public boolean isMapped() {
+        return this.mapping != null;
+    }
+
+    /**
+     * Get the complete file contents as a mapping, if the file is large
+     * enough to have been mapped. Can only be called once.
+     *
+     * @return read-only mapping of the whole file, or null if the contents
+     *         must be read from {@link #channel()}
+     */
+    ByteBuffer mapping() {
+        if (this.mapping == null) {
+            return null;
+        }
+        this.consume();
+        return this.mapping.duplicate();
+    }
+
+    /**
+     * Get the complete file contents: the bytes already read for detection,
+     * followed by the rest of the file. Can only be called once.
+     *
+     * @return channel positioned at the start of the file
+     * @throws IOException
+     */
+    ReadableByteChannel channel() throws IOException {
+        this.consume();
+
+        if (this.mapping != null) {
+            // nothing has been read from the stream
+            return this.in.getChannel();
+        }
+
+        final InputStream kept = new ByteArrayInputStream(this.memory, 0, this.memoryLength);
+        if (this.spool != null) {
+            this.spoolIn = new FileInputStream(this.spool);
+            return Channels.newChannel(new SequenceInputStream(Collections.enumeration(Arrays.asList(kept, this.spoolIn, this.in))));
+        }
+        return Channels.newChannel(new SequenceInputStream(kept, this.in));
+    }
+
+    private void consume() {
+        if (this.consumed) {
+            throw new IllegalStateException("input already consumed");
+        }
+        this.consumed = true;
+    }
+
+    /**
+     * Release the underlying file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (!this.consumed && (this.detectionResult != null)) {
+            // otherwise the conversion has counted these bytes
+            this.consumed = true;
+            ConversionStats.getInstance().bytesRead(this.detectionResult.getBytesRead());
+        }
+        this.memory = null;
+        this.mapping = null;
+        try {
+            this.in.close();
+        } finally {
+            this.deleteSpool();
+        }
+    }
+
+    private void deleteSpool() throws IOException {
+        if (this.spool == null) {
+            return;
+        }
+        try {
+            if (this.spoolOut != null) {
+                this.spoolOut.close();
+            }
+            if (this.spoolIn != null) {
+                this.spoolIn.close();
+            }
+        } finally {
+            Files.deleteIfExists(this.spool.toPath());
+            this.spool = null;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package net.e175.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.mozilla.intl.chardet.nsDetector;
+import org.mozilla.intl.chardet.nsICharsetDetectionObserver;
+import org.mozilla.intl.chardet.nsPSMDetector;
+
+/**
+ * Incremental BOM and charset sniffer. Blocks of raw bytes are fed in as they
+ * are read, so one read of a file can serve BOM detection, charset detection
+ * and (by buffering the same blocks) the conversion itself.
+ *
+ * By default, the sniffer only answers whether the input is UTF-8, using the
+ * fast {@link Utf8Validator}; the detected charset is then either UTF-8 or
+ * null. The general (and much slower) Mozilla charset detector only runs if
+ * a guess for other charsets is requested.
+ *
+ * @author Klaus Brunner
+ */
+final class Sniffer {
+
+    private static final String[] BOM_ENCODINGS = { "UTF-32BE", "UTF-32LE", "UTF-16BE", "UTF-16LE", "UTF-8" };
+
+    private static final byte[][] BOMS = { { 0, 0, (byte) 0xFE, (byte) 0xFF }, // UTF-32BE
+            { (byte) 0xFF, (byte) 0xFE, 0, 0 }, // UTF-32LE
+            { (byte) 0xFE, (byte) 0xFF }, // UTF-16BE
+            { (byte) 0xFF, (byte) 0xFE }, // UTF-16LE
+            { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF } // UTF-8
+    };
+
+    /** number of leading bytes needed to recognize any BOM */
+    static final int BOM_LENGTH = 4;
+
+    /** sample budget meaning "read as much as needed" */
+    static final int UNLIMITED = Convertee.UNLIMITED_SAMPLE_BUDGET;
+
+    private static final int BLOCK_SIZE = 8192;
+
+    /** size of input of unknown length, see getResult() */
+    static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * Check which BOM (if any) the given bytes start with.
+     *
+     * @param buffer
+     *            leading bytes of a file
+     * @param length
+     *            number of valid bytes in buffer
+     * @return canonical name of UTF encoding or null if no BOM found
+     */
+    static String encodingAccordingToBOM(final byte[] buffer, final int length) {
+        // check matching BOM sequences (rather stupidly, but good enough for a
+        // few bytes)
+        for (int i = 0; i < BOMS.length; i++) {
+            if (length >= BOMS[i].length) {
+                boolean match = true;
+                for (int j = 0; j < BOMS[i].length; j++) {
+                    if (buffer[j] != BOMS[i][j]) {
+                        match = false;
+                        break;
+                    }
+                }
+                if (match) {
+                    return BOM_ENCODINGS[i];
+                }
+            }
+        }
+
+        // no matching BOM found
+        return null;
+    }
+
+    private final nsDetector detector;
+
+    private final Utf8Validator validator;
+
+    /** looks for double encoding while the input is valid UTF-8 */
+    private final DoubleEncodingRepair.Scanner doubleEncoding;
+
+    private final byte[] head = new byte[BOM_LENGTH];
+
+    private int headLength = 0;
+
+    private String detectedCharset = null;
+
+    private boolean ascii = true;
+
+    /** a NUL byte has been seen */
+    private boolean nul = false;
+
+    /** the general detector has reported a charset it is sure about */
+    private boolean certain = false;
+
+    /** number of charsets the general detector considered probable */
+    private int probableCount = 0;
+
+    private boolean done = false;
+
+    private boolean finished = false;
+
+    private final int sampleBudget;
+
+    private long bytesSeen = 0;
+
+    Sniffer() {
+        this(UNLIMITED, false);
+    }
+
+    /**
+     * @param sampleBudget
+     *            maximum number of bytes to look at, or UNLIMITED
+     * @param guessCharset
+     *            whether to run the general charset detector instead of only
+     *            checking for UTF-8
+     */
+    Sniffer(final int sampleBudget, final boolean guessCharset) {
+        this.sampleBudget = sampleBudget;
+        if (guessCharset) {
+            this.validator = null;
+            this.doubleEncoding = null;
+            this.detector = new nsDetector(nsPSMDetector.ALL);
+            this.detector.Init(new nsICharsetDetectionObserver() {
+                public void Notify(final String charset) {
+                    Sniffer.this.detectedCharset = charset;
+                    Sniffer.this.certain = true;
+                }
+            });
+        } else {
+            this.validator = new Utf8Validator();
+            this.doubleEncoding = new DoubleEncodingRepair.Scanner();
+            this.detector = null;
+        }
+    }
+
+    /**
+     * Feed the next block of bytes.
+     *
+     * @param buffer
+     *            bytes read
+     * @param length
+     *            number of valid bytes in buffer
+     * @return true if more input may still change the result, false if the
+     *         sniffer has seen enough or the sample budget is used up
+     */
+    boolean update(final byte[] buffer, int length) {
+        if (this.finished) {
+            throw new IllegalStateException("sniffer already finished");
+        }
+
+        if (this.sampleBudget != UNLIMITED) {
+            length = (int) Math.min(length, this.sampleBudget - this.bytesSeen);
+        }
+        this.bytesSeen += length;
+
+        if (this.headLength < BOM_LENGTH) {
+            final int n = Math.min(length, BOM_LENGTH - this.headLength);
+            System.arraycopy(buffer, 0, this.head, this.headLength, n);
+            this.headLength += n;
+        }
+
+        if (!this.nul) {
+            this.nul = containsNul(buffer, length);
+        }
+
+        if (this.validator != null) {
+            // invalid UTF-8 can't become valid again
+            this.done = !this.validator.update(buffer, 0, length);
+            if (!this.done && !this.validator.isAscii()) {
+                // (nothing to repair as long as it's all ASCII)
+                this.doubleEncoding.update(buffer, 0, length);
+            }
+            return !this.done && !this.isBudgetUsedUp();
+        }
+
+        // Check if the stream is only ASCII
+        if (this.ascii) {
+            this.ascii = this.detector.isAscii(buffer, length);
+        }
+
+        // DoIt if non-ascii and not done yet.
+        if (!this.ascii && !this.done) {
+            this.done = this.detector.DoIt(buffer, length, false);
+        }
+
+        return !this.done && !this.isBudgetUsedUp();
+    }
+
+    private static boolean containsNul(final byte[] buffer, final int length) {
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isBudgetUsedUp() {
+        return (this.sampleBudget != UNLIMITED) && (this.bytesSeen >= this.sampleBudget);
+    }
+
+    /**
+     * Signal that no more input will be fed.
+     * 
+     * @param endOfInput
+     *            true if the input really ended, false if it was cut short
+     */
+    void finish(final boolean endOfInput) {
+        if (this.finished) {
+            return;
+        }
+        this.finished = true;
+
+        if (this.validator != null) {
+            if (this.validator.finish(endOfInput)) {
+                this.detectedCharset = Convertee.UTF8_ENCODING;
+                this.doubleEncoding.finish();
+            }
+            return;
+        }
+
+        this.detector.DataEnd();
+
+        if (this.detectedCharset == null) {
+            final String prob[] = this.detector.getProbableCharsets();
+            if (prob.length > 0) {
+                this.detectedCharset = prob[0];
+                this.probableCount = prob.length;
+            }
+        }
+    }
+
+    /**
+     * Get the result after finish().
+     * 
+     * @param bytesRead
+     *            number of bytes read from the file, to be reported
+     * @param size
+     *            size of the whole file, or UNKNOWN_SIZE for a stream
+     * @param endOfInput
+     *            whether the whole file has been fed
+     * @return the detection result
+     */
+    DetectionResult getResult(final long bytesRead, final long size, final boolean endOfInput) {
+        final boolean asciiOnly = (this.validator != null) ? this.validator.isAscii() : this.ascii;
+        int layers = 0;
+        double confidence = 0;
+        if ((this.doubleEncoding != null) && Convertee.UTF8_ENCODING.equals(this.detectedCharset)) {
+            layers = this.doubleEncoding.getLayers();
+            confidence = this.doubleEncoding.getConfidence();
+        }
+        final boolean complete = endOfInput || this.done;
+        final String bom = this.getBOMEncoding();
+        final String encoding = encodingFor(bom, this.getDetectedCharset());
+        // NUL is common in UTF-16 and UTF-32, but not in any text otherwise
+        final boolean binary = this.nul && ((bom == null) || Convertee.UTF8_ENCODING.equals(bom));
+
+        final double encodingConfidence;
+        if (encoding == null) {
+            encodingConfidence = 0;
+        } else if ((bom != null) || complete || this.certain || (size == 0)) {
+            encodingConfidence = 1;
+        } else if (size == UNKNOWN_SIZE) {
+            // valid so far, but there's no telling how much is still to come
+            encodingConfidence = 0.5;
+        } else if (this.validator != null) {
+            encodingConfidence = Math.min(1.0, (double) bytesRead / size);
+        } else {
+            encodingConfidence = 1.0 / Math.max(this.probableCount, 1);
+        }
+
+        return new DetectionResult(encoding, encodingConfidence, bom, this.getDetectedCharset(), bytesRead, complete, asciiOnly, binary, layers,
+                confidence);
+    }
+
+    /**
+     * Determine the encoding a file can reliably be read with. Currently,
+     * this is only possible for UTF-8, and other UTF encodings if a BOM is
+     * present.
+     * 
+     * @return the encoding, or null if unknown
+     */
+    private static String encodingFor(final String bom, final String detectedCharset) {
+        if ((bom == null) || Convertee.UTF8_ENCODING.equals(bom)) {
+            return Convertee.UTF8_ENCODING.equals(detectedCharset) ? Convertee.UTF8_ENCODING : null;
+        }
+        return bom;
+    }
+
+    /**
+     * @return canonical name of UTF encoding or null if no BOM found
+     */
+    String getBOMEncoding() {
+        return encodingAccordingToBOM(this.head, this.headLength);
+    }
+
+    /**
+     * @return the detected charset (only valid after finish())
+     */
+    String getDetectedCharset() {
+        if (!this.finished) {
+            throw new IllegalStateException("sniffer not finished yet");
+        }
+        return this.detectedCharset;
+    }
+
+    /**
+     * Detect the encoding of an open file. Files that fit into the sample
+     * budget are read from the start until the detector is confident; larger
+     * files are sampled at the head, middle and tail with positional reads.
+     * 
+     * @param channel
+     *            file to examine (its position is not changed)
+     * @param sampleBudget
+     *            maximum number of bytes to read (but at least enough for a
+     *            BOM in each sample), or UNLIMITED
+     * @param guessCharset
+     *            whether to run the general charset detector instead of only
+     *            checking for UTF-8
+     * @return the detection result
+     * @throws IOException
+     */
+    static DetectionResult detect(final FileChannel channel, final int sampleBudget, final boolean guessCharset) throws IOException {
+        return detect(channel, null, sampleBudget, guessCharset);
+    }
+
+    /**
+     * Detect the encoding of a file's contents held in a buffer (usually a
+     * mapping of the file), sampling it just like
+     * {@link #detect(FileChannel, int, boolean)}. Only the bytes actually
+     * examined are touched, so a mapping is only paged in where sampled.
+     * 
+     * @param contents
+     *            the file contents (from position 0 to the limit; the
+     *            buffer's position is not changed)
+     * @see #detect(FileChannel, int, boolean)
+     */
+    static DetectionResult detect(final ByteBuffer contents, final int sampleBudget, final boolean guessCharset) throws IOException {
+        return detect(null, contents, sampleBudget, guessCharset);
+    }
+
+    /**
+     * @param channel
+     *            file to read from, or null if reading from contents
+     * @param contents
+     *            file contents, or null if reading from channel
+     */
+    private static DetectionResult detect(final FileChannel channel, final ByteBuffer contents, final int sampleBudget,
+            final boolean guessCharset) throws IOException {
+        final long size = (channel != null) ? channel.size() : contents.limit();
+        // each of the three samples must at least hold a BOM
+        final int budget = (sampleBudget == UNLIMITED) ? UNLIMITED : Math.max(sampleBudget, 3 * BOM_LENGTH);
+        final Sniffer sniffer = new Sniffer(budget, guessCharset);
+
+        if ((budget == UNLIMITED) || (size <= budget)) {
+            final ByteBuffer buf = ByteBuffer.allocate(BLOCK_SIZE);
+            long position = 0;
+            boolean needMore = true;
+            int len = 0;
+            while (needMore && ((len = read(channel, contents, buf, position)) != -1)) {
+                position += len;
+                needMore = sniffer.update(buf.array(), len);
+                buf.clear();
+            }
+            final boolean endOfInput = (len == -1) || (position >= size);
+            sniffer.finish(endOfInput);
+            return sniffer.getResult(position, size, endOfInput);
+        }
+
+        // sample head (including any BOM), middle and tail in equal parts
+        final int sampleLength = budget / 3;
+        final long[] positions = { 0, (size - sampleLength) / 2, size - sampleLength };
+        final ByteBuffer buf = ByteBuffer.allocate(sampleLength);
+        final byte[] data = buf.array();
+        long bytesRead = 0;
+        for (int i = 0; i < positions.length; i++) {
+            buf.clear();
+            int len;
+            while (buf.hasRemaining() && ((len = read(channel, contents, buf, positions[i] + buf.position())) != -1)) {
+                bytesRead += len;
+            }
+
+            // don't feed the detector partial (UTF-8) sequences at the seams
+            final int start = (i > 0) ? skipContinuationBytes(data, 0, buf.position()) : 0;
+            final int end = (i < positions.length - 1) ? trimIncompleteSequence(data, start, buf.position()) : buf.position();
+            System.arraycopy(data, start, data, 0, end - start);
+
+            if (!sniffer.update(data, end - start)) {
+                break;
+            }
+        }
+        sniffer.finish(false);
+        return sniffer.getResult(bytesRead, size, false);
+    }
+
+    /**
+     * Positional read from either a channel or a buffer.
+     * 
+     * @return number of bytes read, or -1 at the end
+     */
+    private static int read(final FileChannel channel, final ByteBuffer contents, final ByteBuffer dst, final long position)
+            throws IOException {
+        if (channel != null) {
+            return channel.read(dst, position);
+        }
+
+        if (position >= contents.limit()) {
+            return -1;
+        }
+        final ByteBuffer src = contents.duplicate();
+        src.position((int) position);
+        src.limit((int) Math.min(src.limit(), position + dst.remaining()));
+        final int n = src.remaining();
+        dst.put(src);
+        return n;
+    }
+
+    /**
+     * @return index of the first byte at or after start that is not a UTF-8
+     *         continuation byte (skipping at most three)
+     */
+    private static int skipContinuationBytes(final byte[] data, final int start, final int end) {
+        int i = start;
+        while ((i < end) && (i < start + 3) && ((data[i] & 0xC0) == 0x80)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * @return end index that excludes a UTF-8 sequence cut off at the end
+     */
+    private static int trimIncompleteSequence(final byte[] data, final int start, final int end) {
+        for (int i = end - 1; (i >= start) && (i >= end - 4); i--) {
+            final int b = data[i] & 0xFF;
+            if (b < 0x80) {
+                return end;
+            }
+            if (b >= 0xC0) {
+                final int needed = (b >= 0xF0) ? 4 : (b >= 0xE0) ? 3 : 2;
+                return (end - i >= needed) ? end : i;
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,129 @@
+package net.e175.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.MalformedInputException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.logging.Logger;
+
+/**
+ * Converts a stream of unknown length to UTF-8, e.g. in a pipe. The encoding
+ * is detected on a bounded prefix (BOM and a sample), the same way files are
+ * detected; the prefix is then converted along with the rest of the stream.
+ * Memory use is constant no matter how long the stream is.
+ *
+ * Unless a BOM or the end of the stream was found, a UTF-8 verdict only holds
+ * for the prefix. If the rest of the stream isn't UTF-8 after all, conversion
+ * fails there (unless {@link ConversionOptions#isReplaceMalformedInput()}).
+ *
+ * Converters hold nothing but their settings, so one instance can be used by
+ * several threads at once.
+ *
+ * @author Klaus Brunner
+ */
+public final class StreamConverter {
+
+    private static final Logger LOG = Logger.getLogger(StreamConverter.class.getName());
+
+    /** bytes examined by default before conversion starts */
+    public static final int DEFAULT_PREFIX_LENGTH = 64 * 1024;
+
+    private static final int BLOCK_SIZE = 8192;
+
+    private final ConversionOptions options;
+
+    private final int prefixLength;
+
+    /**
+     * @param options
+     *            conversion settings (the backup settings don't apply); must
+     *            not be changed afterwards
+     * @param prefixLength
+     *            maximum number of bytes examined for detection; output only
+     *            starts once they have been read (or detection is certain)
+     */
+    public StreamConverter(final ConversionOptions options, final int prefixLength) {
+        if (options == null) {
+            throw new IllegalArgumentException("options must not be null");
+        }
+        if (prefixLength < Sniffer.BOM_LENGTH) {
+            throw new IllegalArgumentException("prefix must hold at least a BOM");
+        }
+        this.options = options;
+        this.prefixLength = prefixLength;
+    }
+
+    /**
+     * Convert a stream. Neither stream is closed, but the output is flushed.
+     *
+     * @param in
+     *            bytes in any encoding
+     * @param out
+     *            receives UTF-8
+     * @return the result of detection on the prefix, or null if the encoding
+     *         was forced
+     * @throws IOException
+     *             also if input after the prefix turns out to be malformed
+     */
+    public DetectionResult convert(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] prefix = new byte[this.prefixLength];
+        int length = 0;
+        DetectionResult detection = null;
+        String sourceEncoding = this.options.getDefaultEncoding();
+
+        if (!this.options.isForceDefaultEncoding()) {
+            final long start = System.nanoTime();
+            final Sniffer sniffer = new Sniffer(this.prefixLength, false);
+            final byte[] block = new byte[BLOCK_SIZE];
+            boolean needMore = true;
+            int len = 0;
+            while (needMore && (length < prefix.length)
+                    && ((len = in.read(block, 0, Math.min(block.length, prefix.length - length))) != -1)) {
+                System.arraycopy(block, 0, prefix, length, len);
+                length += len;
+                needMore = sniffer.update(block, len);
+            }
+            final boolean endOfInput = (len == -1);
+            sniffer.finish(endOfInput);
+            detection = sniffer.getResult(length, endOfInput ? length : Sniffer.UNKNOWN_SIZE, endOfInput);
+            if (detection.getEncoding() != null) {
+                sourceEncoding = detection.getEncoding();
+            }
+            ConversionStats.getInstance().timeSince(ConversionStats.SNIFF, start);
+            LOG.fine("detected " + detection);
+        }
+
+        ReadableByteChannel channel = Channels.newChannel(new SequenceInputStream(new ByteArrayInputStream(prefix, 0, length), in));
+        BlockCharFilter filter = null;
+        if (Convertee.UTF8_ENCODING.equals(sourceEncoding)) {
+            if (this.options.isRepairDoubleEncoding() && (detection != null) && (detection.getDoubleEncodingLayers() > 0)
+                    && (detection.getDoubleEncodingConfidence() >= this.options.getMinDoubleEncodingConfidence())) {
+                channel = DoubleEncodingRepair.repairingChannel(channel, detection.getDoubleEncodingLayers());
+            }
+            if (this.options.isRepairBrokenUTF8()) {
+                filter = new BrokenGermanUTFConversionFilter();
+            }
+        }
+
+        // a verdict on the prefix alone mustn't silently mangle the rest
+        final boolean prefixOnly = (detection != null) && (detection.getEncoding() != null) && !detection.isComplete()
+                && (detection.getBOMEncoding() == null);
+        final Transcoder transcoder = new Transcoder();
+        transcoder.setReportMalformedInput(prefixOnly && !this.options.isReplaceMalformedInput());
+
+        final WritableByteChannel target = Channels.newChannel(out);
+        try {
+            transcoder.transcode(channel, sourceEncoding, target, Convertee.UTF8_ENCODING, this.options.isStripBOM(), filter);
+        } catch (final MalformedInputException e) {
+            throw new IOException("input isn't " + sourceEncoding + " after all, only the first " + length + " bytes were examined", e);
+        } finally {
+            out.flush();
+        }
+        return detection;
+    }
+}
@@ -0,0 +1,358 @@
+package net.e175.tools;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line front end for batch conversion, e.g. on build servers. Doesn't
+ * touch AWT or Swing, so it runs headless and starts quickly. One
+ * tab-separated line per file is written to standard output as soon as the
+ * file is done:
+ *
+ * <pre>
+ * converted &lt;path&gt; &lt;source encoding&gt;
+ * skipped   &lt;path&gt; &lt;source encoding&gt;
+ * failed    &lt;path&gt; &lt;error message&gt;
+ * </pre>
+ *
+ * A summary goes to standard error. The exit code is 0 on success, 1 if any
+ * file failed and 2 for usage errors.
+ *
+ * Given "-" instead of a directory, standard input is converted to standard
+ * output instead (see {@link StreamConverter}).
+ *
+ * With --report, nothing is converted: the tree is only scanned and an
+ * {@link InventoryReport} is written. With --watch, files created or changed
+ * after the initial conversion are converted as well, until the process is
+ * stopped (see {@link TreeWatcher}).
+ *
+ * Throughput and phase timings are published over JMX while it runs (see
+ * {@link ConversionStats}).
+ *
+ * @author Klaus Brunner
+ */
+public final class ToUTFCommandLine {
+
+    public static final int EXIT_OK = 0;
+
+    public static final int EXIT_FAILURES = 1;
+
+    public static final int EXIT_USAGE = 2;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String USAGE = "usage: java -cp to-utf.jar " + ToUTFCommandLine.class.getName()
+            + " [options] <root directory | ->\n" //
+            + "  -e, --extensions <list>       file extensions, comma-separated (default: .java)\n" //
+            + "  -s, --source-encoding <enc>   encoding assumed if none can be detected (default: "
+            + Convertee.DEFAULT_SOURCE_ENCODING + ")\n" //
+            + "  -f, --force                   always use the source encoding, don't detect\n" //
+            + "  -b, --backups                 keep a backup of each converted file\n" //
+            + "      --backup-extension <ext>  extension for backups (default: " + ConversionOptions.DEFAULT_BACKUP_EXTENSION + ")\n" //
+            + "      --keep-bom                keep byte order marks\n" //
+            + "  -r, --repair                  repair UTF-8 mangled by a CP-1252 round trip\n" //
+            + "      --repair-double-encoding  undo repeated UTF-8 encoding\n" //
+            + "      --deduplicate             convert identical files only once\n" //
+            + "  -j, --threads <n>             number of files converted concurrently\n" //
+            + "  -w, --watch                   keep converting new and changed files until stopped\n" //
+            + "      --report <file>           only scan, write an encoding inventory as JSON lines to <file>\n" //
+            + "                                (\"-\" for standard output)\n" //
+            + "  -p, --prefix <bytes>          bytes of standard input examined for detection (default: "
+            + StreamConverter.DEFAULT_PREFIX_LENGTH + ")\n" //
+            + "      --replace-malformed       replace standard input that turns out not to be in the\n" //
+            + "                                detected encoding, instead of failing\n" //
+            + "  -h, --help                    show this help\n";
+
+    private ToUTFCommandLine() {
+        // use main() or run()
+    }
+
+    public static void main(final String[] args) {
+        ConversionStats.register();
+        System.exit(run(args, System.in, System.out, System.err));
+    }
+
+    /**
+     * Like {@link #run(String[], InputStream, PrintStream, PrintStream)},
+     * reading from System.in.
+     */
+    public static int run(final String[] args, final PrintStream out, final PrintStream err) {
+        return run(args, System.in, out, err);
+    }
+
+    /**
+     * Parse the arguments and convert the tree (or the input).
+     *
+     * @param args
+     *            command line arguments
+     * @param in
+     *            input to convert in pipe mode
+     * @param out
+     *            receives a line per file, or the converted input
+     * @param err
+     *            receives usage errors and the summary
+     * @return the exit code
+     */
+    public static int run(final String[] args, final InputStream in, final PrintStream out, final PrintStream err) {
+        final ConversionOptions options = new ConversionOptions();
+        final TreeConverter converter = new TreeConverter(new String[] { ".java" });
+        File root = null;
+        int prefixLength = StreamConverter.DEFAULT_PREFIX_LENGTH;
+        String report = null;
+        boolean watch = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                final String arg = args[i];
+                if ("-h".equals(arg) || "--help".equals(arg)) {
+                    out.print(USAGE);
+                    return EXIT_OK;
+                } else if ("-e".equals(arg) || "--extensions".equals(arg)) {
+                    converter.setFileExtensions(parseExtensions(value(args, ++i, arg)));
+                } else if ("-s".equals(arg) || "--source-encoding".equals(arg)) {
+                    options.setDefaultEncoding(parseEncoding(value(args, ++i, arg)));
+                } else if ("-f".equals(arg) || "--force".equals(arg)) {
+                    options.setForceDefaultEncoding(true);
+                } else if ("-b".equals(arg) || "--backups".equals(arg)) {
+                    options.setCreateBackups(true);
+                } else if ("--backup-extension".equals(arg)) {
+                    options.setBackupExtension(value(args, ++i, arg));
+                } else if ("--keep-bom".equals(arg)) {
+                    options.setStripBOM(false);
+                } else if ("-r".equals(arg) || "--repair".equals(arg)) {
+                    options.setRepairBrokenUTF8(true);
+                } else if ("--repair-double-encoding".equals(arg)) {
+                    options.setRepairDoubleEncoding(true);
+                } else if ("--deduplicate".equals(arg)) {
+                    converter.setDeduplicate(true);
+                } else if ("-j".equals(arg) || "--threads".equals(arg)) {
+                    converter.setParallelism(parseNumber(value(args, ++i, arg), 1, "number of threads"));
+                } else if ("-p".equals(arg) || "--prefix".equals(arg)) {
+                    prefixLength = parseNumber(value(args, ++i, arg), Sniffer.BOM_LENGTH, "prefix length");
+                } else if ("--replace-malformed".equals(arg)) {
+                    options.setReplaceMalformedInput(true);
+                } else if ("-w".equals(arg) || "--watch".equals(arg)) {
+                    watch = true;
+                } else if ("--report".equals(arg)) {
+                    report = value(args, ++i, arg);
+                } else if (arg.startsWith("-") && !"-".equals(arg)) {
+                    throw new IllegalArgumentException("unknown option " + arg);
+                } else if (root == null) {
+                    root = new File(arg);
+                } else {
+                    throw new IllegalArgumentException("only one root directory allowed");
+                }
+            }
+
+            if (root == null) {
+                throw new IllegalArgumentException("no root directory given");
+            }
+            if ("-".equals(root.getPath())) {
+                return pipe(in, out, err, options, prefixLength);
+            }
+            if (!root.isDirectory()) {
+                throw new IllegalArgumentException(root + " is not a directory");
+            }
+            if (report != null) {
+                return report(converter, root, report, out, err);
+            }
+        } catch (final IllegalArgumentException e) {
+            err.println(e.getMessage());
+            err.print(USAGE);
+            return EXIT_USAGE;
+        }
+
+        final AtomicInteger converted = new AtomicInteger();
+        final AtomicInteger skipped = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final long start = System.currentTimeMillis();
+        final ConversionListener listener = new ConversionListener() {
+            public void converted(final Convertee convertee) {
+                converted.incrementAndGet();
+                out.println("converted\t" + convertee.getFile() + "\t" + sourceEncoding(convertee, options));
+            }
+
+            public void skipped(final Convertee convertee) {
+                skipped.incrementAndGet();
+                out.println("skipped\t" + convertee.getFile() + "\t" + sourceEncoding(convertee, options));
+            }
+
+            public void failed(final Convertee convertee, final IOException e) {
+                failed.incrementAndGet();
+                out.println("failed\t" + convertee.getFile() + "\t" + e.getMessage());
+            }
+        };
+        try {
+            if (watch) {
+                watch(new TreeWatcher(converter, root, options, listener));
+            } else {
+                converter.convertTree(root, options, listener);
+            }
+        } catch (final IOException e) {
+            err.println("cannot watch " + root + ": " + e.getMessage());
+            return EXIT_FAILURES;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("interrupted");
+            return EXIT_FAILURES;
+        }
+
+        err.println(converted.get() + " converted, " + skipped.get() + " unchanged, " + failed.get() + " failed in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return (failed.get() > 0) ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    /**
+     * Watch until interrupted. Watching usually ends with Ctrl-C, so a
+     * shutdown hook stops the watcher and waits for the files being converted,
+     * which leaves no temporary files behind.
+     */
+    private static void watch(final TreeWatcher watcher) throws IOException, InterruptedException {
+        final Thread watching = Thread.currentThread();
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final Thread hook = new Thread("stop watching") {
+            public void run() {
+                try {
+                    watcher.close();
+                } catch (final IOException e) {
+                    // interrupting is enough
+                }
+                watching.interrupt();
+                try {
+                    stopped.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            watcher.watch();
+        } finally {
+            watcher.close();
+            stopped.countDown();
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (final IllegalStateException e) {
+                // already shutting down
+            }
+        }
+    }
+
+    /**
+     * Scan the tree and write the inventory, without converting anything.
+     * The lines for single files are written as the scan goes.
+     */
+    private static int report(final TreeConverter converter, final File root, final String report, final PrintStream out,
+            final PrintStream err) {
+        final long start = System.currentTimeMillis();
+        final InventoryReport inventory;
+        try {
+            final Writer writer = "-".equals(report) ? new OutputStreamWriter(out, UTF8) : new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(report), UTF8));
+            try {
+                inventory = new InventoryReport(root.getPath(), writer);
+                converter.scanTree(root, null, inventory);
+                inventory.finish();
+            } finally {
+                if (!"-".equals(report)) {
+                    writer.close();
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("interrupted");
+            return EXIT_FAILURES;
+        } catch (final IOException e) {
+            err.println("failed to write report: " + e.getMessage());
+            return EXIT_FAILURES;
+        }
+
+        err.println(inventory.getFileCount() + " files, " + inventory.getUndetectableCount() + " undetectable, "
+                + inventory.getUnreadableCount() + " unreadable in " + (System.currentTimeMillis() - start) + " ms");
+        return (inventory.getUnreadableCount() > 0) ? EXIT_FAILURES : EXIT_OK;
+    }
+
+    /**
+     * Convert standard input to standard output.
+     */
+    private static int pipe(final InputStream in, final PrintStream out, final PrintStream err, final ConversionOptions options,
+            final int prefixLength) {
+        try {
+            final DetectionResult detection = new StreamConverter(options, prefixLength).convert(in, out);
+            err.println("read as " + (((detection != null) && (detection.getEncoding() != null)) ? detection.getEncoding() : options
+                    .getDefaultEncoding()));
+            return EXIT_OK;
+        } catch (final IOException e) {
+            err.println("failed: " + e.getMessage());
+            return EXIT_FAILURES;
+        }
+    }
+
+    /**
+     * @return the encoding the file was read with (detected or assumed)
+     */
+    private static String sourceEncoding(final Convertee convertee, final ConversionOptions options) {
+        final DetectionResult detection = convertee.getDetectionResult();
+        if (!options.isForceDefaultEncoding() && (detection != null) && (detection.getEncoding() != null)) {
+            return detection.getEncoding();
+        }
+        return options.getDefaultEncoding();
+    }
+
+    private static String value(final String[] args, final int i, final String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("missing value for " + option);
+        }
+        return args[i];
+    }
+
+    private static String[] parseExtensions(final String value) {
+        final List<String> extensions = new ArrayList<String>();
+        final String[] parts = value.split("[,\\s]+");
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].length() > 0) {
+                extensions.add(parts[i]);
+            }
+        }
+        if (extensions.isEmpty()) {
+            throw new IllegalArgumentException("no file extensions given");
+        }
+        return extensions.toArray(new String[extensions.size()]);
+    }
+
+    private static String parseEncoding(final String value) {
+        try {
+            if (Charset.isSupported(value)) {
+                return Charset.forName(value).name();
+            }
+        } catch (final IllegalCharsetNameException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("unsupported encoding " + value);
+    }
+
+    private static int parseNumber(final String value, final int min, final String what) {
+        try {
+            final int number = Integer.parseInt(value);
+            if (number >= min) {
+                return number;
+            }
+        } catch (final NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("invalid " + what + " " + value);
+    }
+}
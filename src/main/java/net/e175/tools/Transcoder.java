@@ -0,0 +1,280 @@
+package net.e175.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Block-oriented transcoding engine. Bytes are decoded and encoded a whole
+ * buffer at a time instead of one character per call, using buffers that are
+ * allocated once per instance and reused for every conversion.
+ *
+ * Malformed and unmappable input is replaced just like InputStreamReader and
+ * OutputStreamWriter do, so the output is byte-identical to a plain
+ * reader/writer copy. Alternatively, malformed input can be reported (see
+ * {@link #setReportMalformedInput(boolean)}).
+ *
+ * Instances are not thread-safe; use one per thread. Bytes and times of each
+ * conversion are added to the {@link ConversionStats} when it's done.
+ *
+ * @author Klaus Brunner
+ */
+public final class Transcoder {
+
+    public static final int DEFAULT_BUFFER_SIZE = 16384;
+
+    private static final char BOM = (char) 0xFEFF; // Unicode Byte Order Mark
+
+    private final ByteBuffer inBuffer;
+
+    private final CharBuffer charBuffer;
+
+    private final CharBuffer filteredBuffer;
+
+    private final ByteBuffer outBuffer;
+
+    private CharsetEncoder encoder;
+
+    private WritableByteChannel out;
+
+    /** nanoseconds spent in the filter during the current conversion */
+    private long filterTime;
+
+    /** bytes written during the current conversion */
+    private long written;
+
+    private boolean reportMalformedInput = false;
+
+    public Transcoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize
+     *            size of each of the internal buffers (in bytes or chars)
+     */
+    public Transcoder(final int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("buffer size must be at least 16");
+        }
+        this.inBuffer = ByteBuffer.allocate(bufferSize);
+        this.charBuffer = CharBuffer.allocate(bufferSize);
+        this.filteredBuffer = CharBuffer.allocate(bufferSize);
+        this.outBuffer = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * @return whether malformed input fails the conversion
+     */
+    public boolean isReportMalformedInput() {
+        return this.reportMalformedInput;
+    }
+
+    /**
+     * @param reportMalformedInput
+     *            true to fail with a {@link java.nio.charset.MalformedInputException}
+     *            at the first malformed input (some of the output before it
+     *            may not have been written then), false to replace it
+     */
+    public void setReportMalformedInput(final boolean reportMalformedInput) {
+        this.reportMalformedInput = reportMalformedInput;
+    }
+
+    /**
+     * Transcode everything readable from the input channel to the output
+     * channel. Neither channel is closed.
+     *
+     * @param in
+     *            source of encoded bytes
+     * @param sourceEncoding
+     *            encoding of the source bytes
+     * @param out
+     *            sink for the transcoded bytes
+     * @param targetEncoding
+     *            encoding to write
+     * @param stripBOM
+     *            whether a leading BOM should be dropped (only applies to UTF
+     *            source encodings)
+     * @param filter
+     *            character filter to apply, may be null (wrap single-char
+     *            filters in a {@link CharFilterAdapter})
+     * @throws IOException
+     */
+    public void transcode(final ReadableByteChannel in, final String sourceEncoding, final WritableByteChannel out, final String targetEncoding,
+            final boolean stripBOM, final BlockCharFilter filter) throws IOException {
+        this.transcode(in, null, sourceEncoding, out, targetEncoding, stripBOM, filter);
+    }
+
+    /**
+     * Transcode the remaining bytes of a buffer (e.g. a memory-mapped file)
+     * to the output channel. Bytes are decoded straight from the buffer,
+     * without copying them to the input buffer first. The buffer's position is
+     * advanced to its limit; the channel is not closed.
+     *
+     * @param in
+     *            encoded bytes
+     * @see #transcode(ReadableByteChannel, String, WritableByteChannel,
+     *      String, boolean, BlockCharFilter)
+     */
+    public void transcode(final ByteBuffer in, final String sourceEncoding, final WritableByteChannel out, final String targetEncoding,
+            final boolean stripBOM, final BlockCharFilter filter) throws IOException {
+        this.transcode(null, in, sourceEncoding, out, targetEncoding, stripBOM, filter);
+    }
+
+    /**
+     * @param channel
+     *            source channel, or null if reading from bytes
+     * @param bytes
+     *            source buffer, or null if reading from channel
+     */
+    private void transcode(final ReadableByteChannel channel, final ByteBuffer bytes, final String sourceEncoding, final WritableByteChannel out,
+            final String targetEncoding, final boolean stripBOM, final BlockCharFilter filter) throws IOException {
+        final CharsetDecoder decoder = Charset.forName(sourceEncoding).newDecoder().onMalformedInput(
+                this.reportMalformedInput ? CodingErrorAction.REPORT : CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+        this.encoder = Charset.forName(targetEncoding).newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(
+                CodingErrorAction.REPLACE);
+        this.out = out;
+
+        this.inBuffer.clear();
+        this.charBuffer.clear();
+        this.filteredBuffer.clear();
+        this.outBuffer.clear();
+
+        if (filter != null) {
+            filter.reset();
+        }
+
+        final long start = System.nanoTime();
+        this.filterTime = 0;
+        this.written = 0;
+        long read = (channel == null) ? bytes.remaining() : 0;
+        try {
+            boolean checkBOM = stripBOM && sourceEncoding.startsWith("UTF-");
+            // a buffer holds all input already
+            boolean endOfInput = (channel == null);
+            final ByteBuffer source = (channel == null) ? bytes : this.inBuffer;
+            CoderResult result;
+            do {
+                if (channel != null) {
+                    if (!endOfInput) {
+                        final int len = channel.read(this.inBuffer);
+                        endOfInput = len < 0;
+                        if (len > 0) {
+                            read += len;
+                        }
+                    }
+                    this.inBuffer.flip();
+                }
+
+                result = decoder.decode(source, this.charBuffer, endOfInput);
+                if (channel != null) {
+                    this.inBuffer.compact();
+                }
+                checkResult(result);
+
+                this.charBuffer.flip();
+                if (checkBOM && this.charBuffer.hasRemaining()) {
+                    checkBOM = false;
+                    if (this.charBuffer.get(this.charBuffer.position()) == BOM) {
+                        this.charBuffer.get();
+                    }
+                }
+                this.processChars(filter, false);
+            } while (!endOfInput || result.isOverflow());
+
+            do {
+                result = decoder.flush(this.charBuffer);
+                this.charBuffer.flip();
+                this.processChars(filter, false);
+            } while (result.isOverflow());
+
+            if (filter != null) {
+                // release whatever the filter has been holding back
+                this.charBuffer.flip();
+                this.processChars(filter, true);
+            }
+
+            final CharBuffer remaining = (filter != null) ? this.filteredBuffer : this.charBuffer;
+            remaining.flip();
+            this.encode(remaining, true);
+            this.charBuffer.clear();
+            this.filteredBuffer.clear();
+            do {
+                result = this.encoder.flush(this.outBuffer);
+                this.drain();
+            } while (result.isOverflow());
+        } finally {
+            this.encoder = null;
+            this.out = null;
+
+            final ConversionStats stats = ConversionStats.getInstance();
+            stats.bytesRead(read);
+            stats.bytesWritten(this.written);
+            stats.time(ConversionStats.FILTER, this.filterTime);
+            stats.time(ConversionStats.TRANSCODE, System.nanoTime() - start - this.filterTime);
+        }
+    }
+
+    /**
+     * Hand decoded characters (charBuffer in read mode) on to the encoder,
+     * passing them through the filter first if there is one. Leaves
+     * charBuffer in write mode.
+     */
+    private void processChars(final BlockCharFilter filter, final boolean endOfInput) throws IOException {
+        if (filter == null) {
+            this.encode(this.charBuffer, false);
+            this.charBuffer.compact();
+            return;
+        }
+
+        boolean full;
+        do {
+            final long start = System.nanoTime();
+            full = filter.filter(this.charBuffer, this.filteredBuffer, endOfInput);
+            this.filterTime += System.nanoTime() - start;
+            if (full) {
+                this.filteredBuffer.flip();
+                this.encode(this.filteredBuffer, false);
+                this.filteredBuffer.compact();
+            }
+        } while (full);
+        this.charBuffer.clear();
+    }
+
+    /**
+     * Encode chars (in read mode) as far as possible, writing out full
+     * output blocks. An incomplete surrogate pair may be left in chars unless
+     * this is the end of input.
+     */
+    private void encode(final CharBuffer chars, final boolean endOfInput) throws IOException {
+        CoderResult result;
+        while ((result = this.encoder.encode(chars, this.outBuffer, endOfInput)).isOverflow()) {
+            this.drain();
+        }
+        checkResult(result);
+    }
+
+    private void drain() throws IOException {
+        this.outBuffer.flip();
+        this.written += this.outBuffer.remaining();
+        while (this.outBuffer.hasRemaining()) {
+            this.out.write(this.outBuffer);
+        }
+        this.outBuffer.clear();
+    }
+
+    private static void checkResult(final CoderResult result) throws CharacterCodingException {
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+}
@@ -1,32 +1,64 @@
 package net.e175.tools;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 /**
  * Runs encoding conversion on an entire directory tree.
  * 
+ * A tree converter holds only its settings, which are read without locking;
+ * any number of threads may use one instance concurrently. The per-file state
+ * lives in {@link Convertee}s, each of which is confined to the worker
+ * converting it.
+ * 
  * @author Klaus Brunner
  */
 public final class TreeConverter {
 
-    private String[] fileExtensions;
+    private static final Logger LOG = Logger.getLogger(TreeConverter.class.getName());
 
-    private FileFilter fileFilter;
+    /** never modified, replaced as a whole */
+    private volatile String[] fileExtensions;
 
-    private final FileFilter directoryFilter = new FileFilter() {
-        public boolean accept(File pathname) {
-            return pathname.isDirectory();
-        }
-    };
+    private volatile int sampleBudget = Convertee.UNLIMITED_SAMPLE_BUDGET;
+
+    private volatile long mapThreshold = Convertee.DEFAULT_MAP_THRESHOLD;
+
+    private volatile int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private volatile ExecutorService executor = null;
+
+    private volatile boolean deduplicate = false;
 
-    private Convertee newConvertee(final File f) {
-        return new Convertee(f);
+    /** filters by file extension */
+    private final Map<String, FilterFactory> filterFactories = new ConcurrentHashMap<String, FilterFactory>();
+
+    Convertee newConvertee(final File f) {
+        final Convertee c = new Convertee(f);
+        c.setSampleBudget(this.sampleBudget);
+        c.setMapThreshold(this.mapThreshold);
+        return c;
     }
 
     public TreeConverter() {
@@ -49,32 +81,185 @@ public final class TreeConverter {
      * @param List
      *            of Convertees
      */
-    public synchronized void listTree(final File rootDirectory, final List converteeList) {
-        if ((rootDirectory == null) || !rootDirectory.isDirectory()) {
-            throw new IllegalArgumentException("root directory must not be null and must be a directory");
-        }
-
+    public void listTree(final File rootDirectory, final List converteeList) {
         if (converteeList == null) {
             throw new IllegalArgumentException("convertee list must not be null");
         }
 
-        final File[] targetFiles = rootDirectory.listFiles(this.fileFilter);
-        for (int i = 0; i < targetFiles.length; i++) {
-            final Convertee c = this.newConvertee(targetFiles[i]);
-            converteeList.add(c);
+        for (final Iterator<Convertee> it = this.walk(rootDirectory); it.hasNext();) {
+            converteeList.add(it.next());
+        }
+    }
+
+    /**
+     * Detect the encodings of all files in a tree concurrently and add the
+     * results to a store. Unlike {@link #listTree(File, List)}, no convertee
+     * is kept per file, so this works for trees of millions of files.
+     * Blocks until all files have been examined.
+     * 
+     * @param rootDirectory
+     * @param cache
+     *            detection results from earlier scans to reuse (and add to),
+     *            or null
+     * @param store
+     *            receives a row per file, in no particular order (and
+     *            nothing until all workers are done)
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers; the files
+     *             scanned so far are still added to the store
+     */
+    public void scanTree(final File rootDirectory, final ScanCache cache, final ScanResultStore store) throws InterruptedException {
+        if (store == null) {
+            throw new IllegalArgumentException("store must not be null");
+        }
+        // a store per worker thread, so they don't contend for a lock
+        final Map<Thread, ScanResultStore> parts = new ConcurrentHashMap<Thread, ScanResultStore>();
+        try {
+            this.scanTree(rootDirectory, cache, new ScanListener() {
+                public void scanned(final File file, final DetectionResult result, final String guessedEncoding) {
+                    ScanResultStore part = parts.get(Thread.currentThread());
+                    if (part == null) {
+                        part = new ScanResultStore();
+                        parts.put(Thread.currentThread(), part);
+                    }
+                    final int row = part.add(file, result);
+                    if (guessedEncoding != null) {
+                        part.setGuessedEncoding(row, guessedEncoding);
+                    }
+                }
+            });
+        } finally {
+            for (final ScanResultStore part : parts.values()) {
+                store.addAll(part);
+            }
+        }
+    }
+
+    /**
+     * Detect the encodings of all files in a tree concurrently and pass each
+     * result on as soon as it's there, so nothing is kept per file. For text
+     * files whose encoding can't be determined, the general charset detector
+     * is asked for a guess. Blocks until all files have been examined.
+     * 
+     * @param rootDirectory
+     * @param cache
+     *            detection results from earlier scans to reuse (and add to),
+     *            or null
+     * @param listener
+     *            receives the result for each file (from worker threads)
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public void scanTree(final File rootDirectory, final ScanCache cache, final ScanListener listener) throws InterruptedException {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.run(source(this.walk(rootDirectory)), Integer.MAX_VALUE, new Work() {
+            public void process(final Convertee c) {
+                final DetectionResult result = detect(c, cache);
+                final String guessed = ((result != null) && (result.getEncoding() == null) && !result.isBinary()) ? guess(c) : null;
+                listener.scanned(c.getFile(), result, guessed);
+            }
+        });
+    }
+
+    /**
+     * @return the charset the general detector guesses, or null
+     */
+    private static String guess(final Convertee c) {
+        try {
+            return c.detectCharset();
+        } catch (final IOException e) {
+            LOG.fine("failed to guess charset of " + c + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the detection result, or null if the file can't be read
+     */
+    private static DetectionResult detect(final Convertee c, final ScanCache cache) {
+        if (cache != null) {
+            c.detectAndSetSourceEncoding(cache);
+            return c.getDetectionResult();
+        }
+        try {
+            return c.detect();
+        } catch (final IOException e) {
+            LOG.fine("failed to detect encoding of " + c + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Walk the tree below the root directory lazily: each directory is only
+     * listed once the convertees found before have been consumed, so work can
+     * start before the walk is complete. Symbolic links are followed, link
+     * loops are detected. The iterator is not thread-safe.
+     * 
+     * @param rootDirectory
+     * @return iterator over the convertees in the tree
+     */
+    public Iterator<Convertee> walk(final File rootDirectory) {
+        checkRootDirectory(rootDirectory);
+        return new TreeWalker(this, rootDirectory);
+    }
+
+    /**
+     * Walk the tree below the root directory, traversing sibling subtrees in
+     * parallel. Blocks until the walk is complete.
+     * 
+     * @param rootDirectory
+     * @param listener
+     *            receives the convertees found (from worker threads)
+     */
+    public void walk(final File rootDirectory, final WalkListener listener) {
+        checkRootDirectory(rootDirectory);
+        final ForkJoinPool pool = new ForkJoinPool(this.getParallelism());
+        try {
+            pool.invoke(new TreeWalker.ParallelWalk(this, rootDirectory, listener));
+        } finally {
+            pool.shutdown();
         }
+    }
 
-        // recurse into subdirs
-        final File[] subdirs = rootDirectory.listFiles(this.directoryFilter);
-        for (int i = 0; i < subdirs.length; i++) {
-            this.listTree(subdirs[i], converteeList);
+    private static void checkRootDirectory(final File rootDirectory) {
+        if ((rootDirectory == null) || !rootDirectory.isDirectory()) {
+            throw new IllegalArgumentException("root directory must not be null and must be a directory");
         }
     }
 
+    /**
+     * @return the configured extensions (not a copy, don't modify), or null
+     *         for all files
+     */
+    String[] fileExtensionsForWalk() {
+        return this.fileExtensions;
+    }
+
+    /**
+     * Check whether a file's name matches the given extensions.
+     * 
+     * @param extensions
+     *            file extensions, or null to accept all files
+     */
+    static boolean acceptsFileName(final String[] extensions, final File f) {
+        if (extensions == null) {
+            return true;
+        }
+        final String name = f.toString();
+        for (int i = 0; i < extensions.length; i++) {
+            if (name.endsWith(extensions[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * @return the fileExtensions
      */
-    public synchronized String[] getFileExtensions() {
+    public String[] getFileExtensions() {
         return (this.fileExtensions != null) ? (String[]) this.fileExtensions.clone() : new String[0];
     }
 
@@ -82,29 +267,778 @@ public final class TreeConverter {
      * @param fileExtensions
      *            the fileExtensions to set
      */
-    public synchronized void setFileExtensions(final String[] fileExt) {
+    public void setFileExtensions(final String[] fileExt) {
         this.fileExtensions = (fileExt != null) ? (String[]) fileExt.clone() : null;
+    }
 
-        this.fileFilter = new FileFilter() {
-            public boolean accept(final File pathname) {
-                if (!pathname.isFile()) {
-                    return false;
+    /**
+     * @param extension
+     *            a file extension as in {@link #setFileExtensions(String[])}
+     * @return the filter factory set for the extension, or null
+     */
+    public FilterFactory getFilterFactory(final String extension) {
+        return this.filterFactories.get(extension);
+    }
+
+    /**
+     * Set the filters applied to files with the given extension, in addition
+     * to the repair filters selected in the conversion options. If several
+     * extensions match a file name, the longest one wins.
+     * 
+     * @param extension
+     *            a file extension as in {@link #setFileExtensions(String[])}
+     * @param factory
+     *            creates the filters for each file, or null to remove them
+     */
+    public void setFilterFactory(final String extension, final FilterFactory factory) {
+        if (extension == null) {
+            throw new IllegalArgumentException("extension must not be null");
+        }
+        if (factory == null) {
+            this.filterFactories.remove(extension);
+        } else {
+            this.filterFactories.put(extension, factory);
+        }
+    }
+
+    /**
+     * @return the filter factory for the longest extension matching the
+     *         file's name, or null
+     */
+    private FilterFactory filterFactoryFor(final File f) {
+        final String name = f.toString();
+        String match = null;
+        FilterFactory factory = null;
+        for (final Map.Entry<String, FilterFactory> entry : this.filterFactories.entrySet()) {
+            final String extension = entry.getKey();
+            if (name.endsWith(extension) && ((match == null) || (extension.length() > match.length()))) {
+                match = extension;
+                factory = entry.getValue();
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * @return the detection sample budget given to new convertees
+     */
+    public int getSampleBudget() {
+        return this.sampleBudget;
+    }
+
+    /**
+     * Limit the bytes read per file when scanning (e.g. for
+     * {@link #scanTree(File, ScanCache, ScanResultStore)}). Conversion always
+     * reads as much as it takes to be sure, see {@link Convertee#sniff()}.
+     * 
+     * @param sampleBudget
+     *            the detection sample budget given to new convertees
+     * @see Convertee#setSampleBudget(int)
+     */
+    public void setSampleBudget(final int sampleBudget) {
+        this.sampleBudget = sampleBudget;
+    }
+
+    /**
+     * @return the memory-mapping threshold given to new convertees
+     */
+    public long getMapThreshold() {
+        return this.mapThreshold;
+    }
+
+    /**
+     * @param mapThreshold
+     *            the memory-mapping threshold given to new convertees
+     * @see Convertee#setMapThreshold(long)
+     */
+    public void setMapThreshold(final long mapThreshold) {
+        this.mapThreshold = mapThreshold;
+    }
+
+    /**
+     * @return the number of files converted concurrently
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * @param parallelism
+     *            the number of files converted concurrently
+     */
+    public void setParallelism(final int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * @return the executor used for conversion, or null if a work-stealing
+     *         pool is created for each run
+     */
+    public ExecutorService getExecutor() {
+        return this.executor;
+    }
+
+    /**
+     * @param executor
+     *            the executor used for conversion (not shut down by this
+     *            class), or null to create a work-stealing pool with the
+     *            configured parallelism for each run
+     */
+    public void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return whether identical files are converted only once
+     */
+    public boolean isDeduplicate() {
+        return this.deduplicate;
+    }
+
+    /**
+     * Convert identical files only once. Files of the same size are hashed
+     * (see {@link ContentHash}) and compared, and of each set of identical
+     * files (that get the same filters) only one is detected and converted;
+     * its output is then written to all the others. Trees are walked
+     * completely before conversion starts in this mode.
+     * 
+     * @param deduplicate
+     *            whether identical files are converted only once
+     */
+    public void setDeduplicate(final boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * Detect and convert a number of files concurrently. The largest files
+     * are started first, so that one big file doesn't end up running alone at
+     * the end. Blocks until all files have been processed.
+     * 
+     * @param convertees
+     *            the files to convert
+     * @param options
+     *            conversion settings
+     * @param listener
+     *            receives the result for each file (from worker threads)
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public void convert(final List<Convertee> convertees, final ConversionOptions options, final ConversionListener listener)
+            throws InterruptedException {
+        final ConversionListener counted = ConversionStats.counting(listener);
+        if (this.deduplicate) {
+            this.convertDeduplicated(convertees, options, counted);
+            return;
+        }
+
+        final Convertee[] queue = largestFirst(convertees);
+        this.convert(source(queue), queue.length, options, counted);
+    }
+
+    /**
+     * Convert files of a scan concurrently, like
+     * {@link #convert(List, ConversionOptions, ConversionListener)}. Only the
+     * rows are held and sorted; each convertee is created when a worker takes
+     * its row (see {@link ScanResultStore#newConvertee(int)}), so converting
+     * millions of rows doesn't take a convertee per file (except when
+     * deduplicating, which compares all files first). The store must not
+     * change until this returns.
+     * 
+     * @param store
+     *            the scan's results
+     * @param rows
+     *            the rows to convert (not changed)
+     * @param options
+     *            conversion settings
+     * @param listener
+     *            receives the result for each file (from worker threads)
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public void convert(final ScanResultStore store, final int[] rows, final ConversionOptions options,
+            final ConversionListener listener) throws InterruptedException {
+        if (this.deduplicate) {
+            final List<Convertee> convertees = new ArrayList<Convertee>(rows.length);
+            for (final int row : rows) {
+                convertees.add(store.newConvertee(row));
+            }
+            this.convert(convertees, options, listener);
+            return;
+        }
+
+        this.convert(source(store, largestFirst(store, rows)), rows.length, options, ConversionStats.counting(listener));
+    }
+
+    /**
+     * Walk a tree and convert the files found concurrently. Conversion starts
+     * as soon as the first files are found; the tree is never held in memory
+     * as a whole. Blocks until all files have been processed.
+     * 
+     * @param rootDirectory
+     * @param options
+     *            conversion settings
+     * @param listener
+     *            receives the result for each file (from worker threads)
+     * @throws InterruptedException
+     *             if interrupted while waiting for the workers
+     */
+    public void convertTree(final File rootDirectory, final ConversionOptions options, final ConversionListener listener)
+            throws InterruptedException {
+        final ConversionListener counted = ConversionStats.counting(listener);
+        if (this.deduplicate) {
+            final List<Convertee> convertees = Collections.synchronizedList(new ArrayList<Convertee>());
+            this.walk(rootDirectory, new WalkListener() {
+                public void found(final Convertee convertee) {
+                    convertees.add(convertee);
                 }
+            });
+            this.convertDeduplicated(convertees, options, counted);
+            return;
+        }
 
-                if (TreeConverter.this.fileExtensions != null) {
-                    for (int i = 0; i < TreeConverter.this.fileExtensions.length; i++) {
-                        if (pathname.toString().endsWith(TreeConverter.this.fileExtensions[i])) {
-                            return true;
-                        }
+        this.convert(source(this.walk(rootDirectory)), Integer.MAX_VALUE, options, counted);
+    }
+
+    /**
+     * Convert one file of each set of identical files, then write the result
+     * to the others. Files that have changed since they were compared are
+     * converted on their own.
+     */
+    private void convertDeduplicated(final List<Convertee> convertees, final ConversionOptions options,
+            final ConversionListener listener) throws InterruptedException {
+        final Map<Convertee, List<Convertee>> copies = this.findCopies(convertees);
+        final Convertee[] queue = largestFirst(new ArrayList<Convertee>(copies.keySet()));
+        this.run(source(queue), queue.length, new Work() {
+            public void process(final Convertee c) {
+                if (c.hasFileChanged()) {
+                    // no longer the same as the copies
+                    TreeConverter.this.convertAlone(c, options, listener);
+                    for (final Convertee copy : copies.get(c)) {
+                        TreeConverter.this.convertAlone(copy, options, listener);
                     }
-                    return false;
+                    return;
+                }
+
+                final boolean converted;
+                try {
+                    converted = TreeConverter.this.convert(c, options);
+                } catch (final IOException e) {
+                    listener.failed(c, e);
+                    // the copies might still work out on their own
+                    for (final Convertee copy : copies.get(c)) {
+                        TreeConverter.this.convertAlone(copy, options, listener);
+                    }
+                    return;
+                }
+                report(c, converted, listener);
+
+                for (final Convertee copy : copies.get(c)) {
+                    if (copy.hasFileChanged()) {
+                        TreeConverter.this.convertAlone(copy, options, listener);
+                        continue;
+                    }
+                    if (!converted) {
+                        listener.skipped(copy);
+                        continue;
+                    }
+                    try {
+                        copy.replaceWith(c, backupFile(copy, options));
+                        listener.converted(copy);
+                    } catch (final IOException e) {
+                        listener.failed(copy, e);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Convert a file that was grouped with others on its own, as it is now.
+     */
+    private void convertAlone(final Convertee c, final ConversionOptions options, final ConversionListener listener) {
+        c.recordFileState();
+        this.convert(c, options, listener);
+    }
+
+    /**
+     * Group identical files. Only files of the same size that get the same
+     * filters are hashed, and files with equal hashes are compared byte by
+     * byte. The state of each file hashed is recorded, so later changes are
+     * noticed.
+     * 
+     * @return the first file of each group, mapped to the other files in the
+     *         group
+     */
+    private Map<Convertee, List<Convertee>> findCopies(final List<Convertee> convertees) throws InterruptedException {
+        final Map<List<Object>, List<Convertee>> candidates = new LinkedHashMap<List<Object>, List<Convertee>>();
+        for (final Convertee c : convertees) {
+            final List<Object> key = Arrays.<Object> asList(Long.valueOf(c.getFile().length()), this.filterFactoryFor(c.getFile()));
+            List<Convertee> group = candidates.get(key);
+            if (group == null) {
+                group = new ArrayList<Convertee>(1);
+                candidates.put(key, group);
+            }
+            group.add(c);
+        }
+
+        final List<Convertee> toHash = new ArrayList<Convertee>();
+        for (final List<Convertee> group : candidates.values()) {
+            if (group.size() > 1) {
+                toHash.addAll(group);
+            }
+        }
+        final Map<Convertee, Long> hashes = new ConcurrentHashMap<Convertee, Long>();
+        final Convertee[] queue = toHash.toArray(new Convertee[toHash.size()]);
+        this.run(source(queue), queue.length, new Work() {
+            public void process(final Convertee c) {
+                try {
+                    c.recordFileState();
+                    hashes.put(c, Long.valueOf(ContentHash.of(c.getFile())));
+                } catch (final IOException e) {
+                    // leave it alone, it'll fail again during conversion
+                    LOG.fine("failed to hash " + c + ": " + e);
+                }
+            }
+        });
+
+        final Map<Convertee, List<Convertee>> copies = new LinkedHashMap<Convertee, List<Convertee>>();
+        for (final List<Convertee> group : candidates.values()) {
+            final Map<Long, List<Convertee>> originals = new HashMap<Long, List<Convertee>>();
+            for (final Convertee c : group) {
+                final Long hash = hashes.get(c);
+                final Convertee original = (hash != null) ? findOriginal(originals, hash, c) : null;
+                if (original != null) {
+                    copies.get(original).add(c);
                 } else {
-                    return true;
+                    copies.put(c, new ArrayList<Convertee>(0));
+                }
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * @return a file seen before with the same contents, or null if c is the
+     *         first one (it's then recorded)
+     */
+    private static Convertee findOriginal(final Map<Long, List<Convertee>> originals, final Long hash, final Convertee c) {
+        List<Convertee> candidates = originals.get(hash);
+        if (candidates == null) {
+            candidates = new ArrayList<Convertee>(1);
+            originals.put(hash, candidates);
+        }
+        for (final Convertee original : candidates) {
+            try {
+                if (Convertee.contentEquals(original.getFile().toPath(), c.getFile().toPath())) {
+                    return original;
                 }
+            } catch (final IOException e) {
+                LOG.fine("failed to compare " + c + ": " + e);
+                return null;
+            }
+        }
+        candidates.add(c);
+        return null;
+    }
+
+    /**
+     * @return a source handing out the convertees in order
+     */
+    private static Source source(final Convertee[] queue) {
+        final AtomicInteger next = new AtomicInteger();
+        return new Source() {
+            public Convertee next() {
+                final int i = next.getAndIncrement();
+                return (i < queue.length) ? queue[i] : null;
             }
         };
     }
 
+    /**
+     * @return a source creating convertees for the rows in order
+     */
+    private static Source source(final ScanResultStore store, final int[] rows) {
+        final AtomicInteger next = new AtomicInteger();
+        return new Source() {
+            public Convertee next() {
+                final int i = next.getAndIncrement();
+                return (i < rows.length) ? store.newConvertee(rows[i]) : null;
+            }
+        };
+    }
+
+    /**
+     * @return a source handing out the convertees of a walk as it goes
+     */
+    private static Source source(final Iterator<Convertee> walk) {
+        return new Source() {
+            public Convertee next() {
+                // the walk itself isn't thread-safe
+                synchronized (walk) {
+                    return walk.hasNext() ? walk.next() : null;
+                }
+            }
+        };
+    }
+
+    /**
+     * Convertees shared by the workers of one run.
+     */
+    private interface Source {
+
+        /**
+         * @return the next convertee, or null if there are no more
+         */
+        Convertee next();
+    }
+
+    /**
+     * What the workers of a run do with each convertee.
+     */
+    private interface Work {
+
+        void process(Convertee c);
+    }
+
+    /**
+     * Let worker threads take convertees from a shared source and convert
+     * them.
+     * 
+     * @param maxWorkers
+     *            upper bound for the number of workers (e.g. number of files)
+     */
+    private void convert(final Source source, final int maxWorkers, final ConversionOptions options,
+            final ConversionListener listener) throws InterruptedException {
+        this.run(source, maxWorkers, new Work() {
+            public void process(final Convertee c) {
+                TreeConverter.this.convert(c, options, listener);
+            }
+        });
+    }
+
+    /**
+     * Convert a single file and report the outcome.
+     */
+    private void convert(final Convertee c, final ConversionOptions options, final ConversionListener listener) {
+        try {
+            report(c, this.convert(c, options), listener);
+        } catch (final IOException e) {
+            listener.failed(c, e);
+        }
+    }
+
+    private static void report(final Convertee c, final boolean converted, final ConversionListener listener) {
+        if (converted) {
+            listener.converted(c);
+        } else {
+            listener.skipped(c);
+        }
+    }
+
+    /**
+     * Let worker threads take convertees from a shared source and process
+     * them. Blocks until the source is exhausted. If interrupted (or a worker
+     * fails), the workers stop taking convertees, and this only returns once
+     * they have finished the ones they're working on, so no file is still
+     * being written afterwards.
+     * 
+     * @param maxWorkers
+     *            upper bound for the number of workers (e.g. number of files)
+     */
+    private void run(final Source source, final int maxWorkers, final Work work) throws InterruptedException {
+        final int workers = Math.min(this.parallelism, maxWorkers);
+        if (workers == 0) {
+            return;
+        }
+
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final CountDownLatch finished = new CountDownLatch(workers);
+        final Runnable worker = new Runnable() {
+            public void run() {
+                try {
+                    while (!stopped.get() && !Thread.currentThread().isInterrupted()) {
+                        final Convertee c = source.next();
+                        if (c == null) {
+                            return;
+                        }
+                        work.process(c);
+                    }
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+
+        ExecutorService service = this.executor;
+        final boolean ownService = (service == null);
+        if (ownService) {
+            service = new ForkJoinPool(workers);
+        }
+
+        final Future<?>[] futures = new Future<?>[workers];
+        boolean completed = false;
+        try {
+            for (int i = 0; i < workers; i++) {
+                futures[i] = service.submit(worker);
+            }
+            for (int i = 0; i < workers; i++) {
+                try {
+                    futures[i].get();
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new IllegalStateException("conversion failed", e.getCause());
+                }
+            }
+            completed = true;
+        } finally {
+            if (!completed) {
+                stopped.set(true);
+                // workers that haven't started yet stop right away
+                awaitUninterruptibly(finished, workers - countSubmitted(futures));
+            }
+            if (ownService) {
+                service.shutdown();
+            }
+        }
+    }
+
+    private static int countSubmitted(final Future<?>[] futures) {
+        int submitted = 0;
+        for (final Future<?> f : futures) {
+            if (f != null) {
+                submitted++;
+            }
+        }
+        return submitted;
+    }
+
+    /**
+     * Wait for the workers submitted, even if interrupted meanwhile (the
+     * interrupt status is restored afterwards).
+     * 
+     * @param unsubmitted
+     *            number of workers that were never submitted
+     */
+    private static void awaitUninterruptibly(final CountDownLatch finished, final int unsubmitted) {
+        for (int i = 0; i < unsubmitted; i++) {
+            finished.countDown();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                finished.await();
+                break;
+            } catch (final InterruptedException e) {
+                // keep waiting, files may still be being written
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sort convertees by file size, largest first. Sizes are looked up once.
+     */
+    private static Convertee[] largestFirst(final List<Convertee> convertees) {
+        final Convertee[] sorted = convertees.toArray(new Convertee[convertees.size()]);
+        final long[] sizes = new long[sorted.length];
+        final Integer[] order = new Integer[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sizes[i] = sorted[i].getFile().length();
+            order[i] = Integer.valueOf(i);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(final Integer a, final Integer b) {
+                final long sa = sizes[a.intValue()];
+                final long sb = sizes[b.intValue()];
+                return (sa > sb) ? -1 : (sa < sb) ? 1 : 0;
+            }
+        });
+
+        final Convertee[] result = new Convertee[sorted.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = sorted[order[i].intValue()];
+        }
+        return result;
+    }
+
+    /**
+     * Sort rows by the sizes recorded in the store, largest first. Row and
+     * size are packed into a long each and sorted as primitives; files of
+     * 4 GB and more count as equally large.
+     */
+    private static int[] largestFirst(final ScanResultStore store, final int[] rows) {
+        final long[] keys = new long[rows.length];
+        for (int i = 0; i < rows.length; i++) {
+            keys[i] = (Math.min(store.getSize(rows[i]), 0xFFFFFFFFL) << 32) | rows[i];
+        }
+        Arrays.sort(keys);
+
+        final int[] result = new int[keys.length];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (int) keys[keys.length - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Detect the encoding of a single file (unless forced) and convert it in
+     * place, using one read of the original. Files that are known not to
+     * change (see {@link Convertee#isNoop()}) aren't converted at all, and
+     * files whose converted bytes turn out to be identical to the original
+     * aren't written back, so their timestamps are preserved. No backup is
+     * created for files left untouched. Files are replaced atomically, see
+     * {@link Convertee#recodeInPlace(SniffedInput, File)}.
+     * 
+     * @param c
+     *            the file to convert
+     * @param options
+     *            conversion settings
+     * @return true if the file has been rewritten, false if it was left
+     *         untouched
+     * @throws IOException
+     */
+    public boolean convert(final Convertee c, final ConversionOptions options) throws IOException {
+        SniffedInput input = null;
+        try {
+            if (options.isForceDefaultEncoding()) {
+                // always force selected encoding
+                c.setSourceEncoding(options.getDefaultEncoding());
+            } else {
+                // override selected encoding if reliably detectable; the
+                // sniffed input is reused for the conversion below
+                input = c.sniff();
+                if (!c.detectAndSetSourceEncoding(input)) {
+                    c.setSourceEncoding(options.getDefaultEncoding());
+                }
+            }
+
+            this.prepare(c, options);
+            try {
+                // only trust a detection made just now
+                if ((input != null) && c.isNoop()) {
+                    LOG.fine("no conversion needed for " + c);
+                    return false;
+                }
+
+                LOG.fine("converting " + c);
+                if (!c.recodeInPlace(input, backupFile(c, options))) {
+                    LOG.fine("conversion leaves " + c + " unchanged");
+                    return false;
+                }
+                return true;
+            } finally {
+                unprepare(c);
+            }
+        } finally {
+            if (input != null) {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * @return where to back up the file, or null for no backup
+     */
+    private static File backupFile(final Convertee c, final ConversionOptions options) {
+        return options.isCreateBackups() ? new File(c.getFile().getAbsolutePath() + options.getBackupExtension()) : null;
+    }
+
+    /**
+     * Check whether a convertee whose encoding has been detected (e.g. while
+     * scanning a tree) can be skipped, i.e. converting it with the given
+     * options wouldn't change it. Filters configured by extension aren't
+     * considered, see {@link #isNoopWithFilters(Convertee, ConversionOptions)}
+     * for that.
+     * 
+     * @param c
+     *            a convertee after {@link Convertee#detectAndSetSourceEncoding()}
+     * @param options
+     *            conversion settings
+     * @return true if the file needn't be converted
+     */
+    public static boolean isNoop(final Convertee c, final ConversionOptions options) {
+        return isNoop(c, options, null);
+    }
+
+    /**
+     * Check like {@link #isNoop(Convertee, ConversionOptions)} whether a
+     * convertee can be skipped, taking this converter's filters for the
+     * file's extension into account.
+     * 
+     * @return true if the file needn't be converted
+     */
+    public boolean isNoopWithFilters(final Convertee c, final ConversionOptions options) {
+        return isNoop(c, options, this.filterFactoryFor(c.getFile()));
+    }
+
+    private static boolean isNoop(final Convertee c, final ConversionOptions options, final FilterFactory factory) {
+        prepare(c, options, factory);
+        try {
+            return c.isNoop();
+        } finally {
+            unprepare(c);
+        }
+    }
+
+    /**
+     * Apply per-file settings for conversion: the repair filters go first,
+     * followed by the filters configured for the file's extension. The
+     * caller must call unprepare() afterwards.
+     */
+    private void prepare(final Convertee c, final ConversionOptions options) {
+        prepare(c, options, this.filterFactoryFor(c.getFile()));
+    }
+
+    /**
+     * @param factory
+     *            creates the extension filters, or null for none
+     */
+    private static void prepare(final Convertee c, final ConversionOptions options, final FilterFactory factory) {
+        if (Convertee.UTF8_ENCODING.equals(c.getSourceEncoding())) {
+            if (options.isRepairDoubleEncoding()) {
+                final DetectionResult detection = c.getDetectionResult();
+                if ((detection != null) && (detection.getDoubleEncodingLayers() > 0)
+                        && (detection.getDoubleEncodingConfidence() >= options.getMinDoubleEncodingConfidence())) {
+                    c.setDoubleEncodingLayers(detection.getDoubleEncodingLayers());
+                    LOG.fine("undoing " + detection.getDoubleEncodingLayers() + " layer(s) of double encoding in " + c);
+                }
+            }
+            if (options.isRepairBrokenUTF8()) {
+                c.addFilter(new BrokenGermanUTFConversionFilter());
+                LOG.fine("applying BrokenGermanUTFConversionFilter to " + c);
+            }
+        }
+
+        if (factory != null) {
+            final BlockCharFilter filter = factory.newFilter(c);
+            if (filter != null) {
+                c.addFilter(filter);
+                LOG.fine("applying extension filters to " + c);
+            }
+        }
+        c.setStripBOM(options.isStripBOM());
+    }
+
+    /**
+     * Drop the per-file state set up by prepare().
+     */
+    private static void unprepare(final Convertee c) {
+        c.setFilter(null);
+        c.setDoubleEncodingLayers(0);
+    }
+
     /**
      * Copy source file to target file.
      * 
@@ -113,6 +1047,7 @@ public final class TreeConverter {
      * @throws IOException
      */
     public static void copyFile(final File source, final File target) throws IOException {
+        final long start = System.nanoTime();
         final FileChannel srcChannel = new FileInputStream(source).getChannel();
         final FileChannel dstChannel = new FileOutputStream(target).getChannel();
 
@@ -120,6 +1055,7 @@ public final class TreeConverter {
 
         srcChannel.close();
         dstChannel.close();
+        ConversionStats.getInstance().timeSince(ConversionStats.COPY, start);
     }
 
 }
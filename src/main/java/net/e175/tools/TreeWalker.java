@@ -0,0 +1,205 @@
+package net.e175.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Walks a directory tree without recursion, listing each directory exactly
+ * once and looking at each entry's attributes exactly once. Symbolic links
+ * are followed, but directories already visited (by file key) are skipped,
+ * so link loops end the walk instead of hanging it.
+ *
+ * The sequential walk is an Iterator that only lists the next directory when
+ * the files found so far have been consumed. {@link ParallelWalk} traverses
+ * sibling subtrees concurrently in a fork/join pool.
+ *
+ * @author Klaus Brunner
+ */
+final class TreeWalker implements Iterator<Convertee> {
+
+    private static final Logger LOG = Logger.getLogger(TreeWalker.class.getName());
+
+    private final TreeConverter converter;
+
+    private final Set<Object> visited = new HashSet<Object>();
+
+    private final Deque<Path> directories = new ArrayDeque<Path>();
+
+    private final Deque<Convertee> pending = new ArrayDeque<Convertee>();
+
+    TreeWalker(final TreeConverter converter, final File rootDirectory) {
+        this.converter = converter;
+        final Path root = rootDirectory.toPath();
+        if (markVisited(this.visited, root)) {
+            this.directories.push(root);
+        }
+    }
+
+    public boolean hasNext() {
+        while (this.pending.isEmpty() && !this.directories.isEmpty()) {
+            final List<Path> subdirs = list(this.directories.pop(), this.converter, this.visited, this.pending);
+            // push in reverse so that subdirectories are visited in listing
+            // order
+            for (int i = subdirs.size() - 1; i >= 0; i--) {
+                this.directories.push(subdirs.get(i));
+            }
+        }
+        return !this.pending.isEmpty();
+    }
+
+    public Convertee next() {
+        if (!this.hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return this.pending.removeFirst();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * List one directory in a single pass. Matching files are added to the
+     * given collection, subdirectories not visited before are marked and
+     * returned.
+     */
+    private static List<Path> list(final Path directory, final TreeConverter converter, final Set<Object> visited,
+            final Deque<Convertee> files) {
+        final long start = System.nanoTime();
+        final int found = files.size();
+        final String[] extensions = converter.fileExtensionsForWalk();
+        final List<Path> subdirs = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path entry : stream) {
+                final BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(entry, BasicFileAttributes.class);
+                } catch (final IOException e) {
+                    // e.g. dangling symbolic link
+                    LOG.log(Level.FINE, "skipping " + entry, e);
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    if (markVisited(visited, entry, attrs.fileKey())) {
+                        subdirs.add(entry);
+                    }
+                } else if (attrs.isRegularFile()) {
+                    final File f = entry.toFile();
+                    if (TreeConverter.acceptsFileName(extensions, f)) {
+                        files.add(converter.newConvertee(f));
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "cannot list directory " + directory, e);
+        }
+        final ConversionStats stats = ConversionStats.getInstance();
+        stats.filesScanned(files.size() - found);
+        stats.timeSince(ConversionStats.WALK, start);
+        return subdirs;
+    }
+
+    /**
+     * @return true if the directory hasn't been visited before
+     */
+    private static boolean markVisited(final Set<Object> visited, final Path directory) {
+        Object key = null;
+        try {
+            key = Files.readAttributes(directory, BasicFileAttributes.class).fileKey();
+        } catch (final IOException e) {
+            LOG.log(Level.FINE, "cannot read attributes of " + directory, e);
+        }
+        return markVisited(visited, directory, key);
+    }
+
+    /**
+     * @param fileKey
+     *            the directory's file key, or null if not available
+     * @return true if the directory hasn't been visited before
+     */
+    private static boolean markVisited(final Set<Object> visited, final Path directory, final Object fileKey) {
+        Object key = fileKey;
+        if (key == null) {
+            // file keys aren't available on all platforms
+            try {
+                key = directory.toRealPath();
+            } catch (final IOException e) {
+                LOG.log(Level.FINE, "cannot identify directory " + directory, e);
+                key = directory.toAbsolutePath().normalize();
+            }
+        }
+
+        if (!visited.add(key)) {
+            LOG.fine("skipping already visited directory " + directory);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fork/join task walking one directory and, in parallel, its
+     * subdirectories.
+     */
+    static final class ParallelWalk extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeConverter converter;
+
+        private final Set<Object> visited;
+
+        private final Path directory;
+
+        private final WalkListener listener;
+
+        ParallelWalk(final TreeConverter converter, final File rootDirectory, final WalkListener listener) {
+            this(converter, Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>()), rootDirectory.toPath(), listener);
+            markVisited(this.visited, this.directory);
+        }
+
+        private ParallelWalk(final TreeConverter converter, final Set<Object> visited, final Path directory, final WalkListener listener) {
+            this.converter = converter;
+            this.visited = visited;
+            this.directory = directory;
+            this.listener = listener;
+        }
+
+        protected void compute() {
+            final Deque<Convertee> files = new ArrayDeque<Convertee>();
+            final List<Path> subdirs = list(this.directory, this.converter, this.visited, files);
+
+            final List<ParallelWalk> tasks = new ArrayList<ParallelWalk>(subdirs.size());
+            for (final Path subdir : subdirs) {
+                final ParallelWalk task = new ParallelWalk(this.converter, this.visited, subdir, this.listener);
+                task.fork();
+                tasks.add(task);
+            }
+
+            for (final Convertee c : files) {
+                this.listener.found(c);
+            }
+
+            for (int i = tasks.size() - 1; i >= 0; i--) {
+                tasks.get(i).join();
+            }
+        }
+    }
+}
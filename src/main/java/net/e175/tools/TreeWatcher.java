@@ -0,0 +1,310 @@
+package net.e175.tools;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a tree converted: after converting the whole tree once, it waits for
+ * file system events and converts only the files created or modified since.
+ *
+ * Every directory in the tree is registered with a {@link WatchService};
+ * directories created later are registered (and their files converted) as
+ * they show up, and the registrations of deleted directories are dropped.
+ * Events are collected until there has been no new event for the debounce
+ * delay (but no longer than {@link #getMaxDelay()}), so a file written in
+ * several steps or a checkout touching thousands of files is handled as one
+ * batch. Files modified within the debounce delay when their batch is due
+ * are probably still being written; they're put off until they have been
+ * left alone that long. Files this watcher has just written itself are
+ * recognised by their timestamp and not examined again.
+ *
+ * Not thread-safe, except for {@link #close()}, which may be called from any
+ * thread to stop {@link #watch()}.
+ *
+ * @author Klaus Brunner
+ */
+public final class TreeWatcher implements Closeable {
+
+    private static final Logger LOG = Logger.getLogger(TreeWatcher.class.getName());
+
+    public static final long DEFAULT_DEBOUNCE = 500;
+
+    private final TreeConverter converter;
+
+    private final File rootDirectory;
+
+    private final ConversionOptions options;
+
+    private final ConversionListener listener;
+
+    private final WatchService watchService;
+
+    /** the directory each registration is for */
+    private final Map<WatchKey, Path> directories = new ConcurrentHashMap<WatchKey, Path>();
+
+    /** modification time of files converted, to ignore our own changes */
+    private final Map<File, Long> written = new ConcurrentHashMap<File, Long>();
+
+    private long debounce = DEFAULT_DEBOUNCE;
+
+    private long maxDelay = 20 * DEFAULT_DEBOUNCE;
+
+    /**
+     * @param converter
+     *            converts the files (and selects them by extension)
+     * @param rootDirectory
+     *            the tree to watch
+     * @param options
+     *            conversion settings
+     * @param listener
+     *            receives the result for each file converted (from worker
+     *            threads)
+     * @throws IOException
+     *             if no watch service is available
+     */
+    public TreeWatcher(final TreeConverter converter, final File rootDirectory, final ConversionOptions options,
+            final ConversionListener listener) throws IOException {
+        if ((rootDirectory == null) || !rootDirectory.isDirectory()) {
+            throw new IllegalArgumentException("root directory must not be null and must be a directory");
+        }
+        this.converter = converter;
+        this.rootDirectory = rootDirectory;
+        this.options = options;
+        this.listener = new ConversionListener() {
+            public void converted(final Convertee convertee) {
+                final File f = convertee.getFile();
+                TreeWatcher.this.written.put(f, Long.valueOf(f.lastModified()));
+                listener.converted(convertee);
+            }
+
+            public void skipped(final Convertee convertee) {
+                listener.skipped(convertee);
+            }
+
+            public void failed(final Convertee convertee, final IOException e) {
+                listener.failed(convertee, e);
+            }
+        };
+        this.watchService = rootDirectory.toPath().getFileSystem().newWatchService();
+    }
+
+    /**
+     * @return milliseconds without events before a batch is converted
+     */
+    public long getDebounce() {
+        return this.debounce;
+    }
+
+    public void setDebounce(final long debounce) {
+        if (debounce < 0) {
+            throw new IllegalArgumentException("debounce must not be negative");
+        }
+        this.debounce = debounce;
+    }
+
+    /**
+     * @return milliseconds after which a batch is converted even if events
+     *         keep coming in
+     */
+    public long getMaxDelay() {
+        return this.maxDelay;
+    }
+
+    public void setMaxDelay(final long maxDelay) {
+        if (maxDelay < 0) {
+            throw new IllegalArgumentException("maximum delay must not be negative");
+        }
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return number of directories currently watched
+     */
+    public int getWatchedDirectoryCount() {
+        return this.directories.size();
+    }
+
+    /**
+     * Convert the tree, then keep converting changed files until closed.
+     *
+     * @throws IOException
+     *             if the root directory can't be watched
+     * @throws InterruptedException
+     *             if interrupted while waiting for events or workers
+     */
+    public void watch() throws IOException, InterruptedException {
+        // register first, so that nothing changed during the initial
+        // conversion is missed
+        this.register(this.rootDirectory.toPath(), null);
+        this.converter.convertTree(this.rootDirectory, this.options, this.listener);
+
+        try {
+            Set<File> changed = new LinkedHashSet<File>();
+            while (true) {
+                // files put off are retried after the debounce delay, even
+                // without new events
+                final WatchKey first = changed.isEmpty() ? this.watchService.take()
+                        : this.watchService.poll(this.debounce, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    this.collect(first, changed);
+                }
+                final long deadline = System.currentTimeMillis() + this.maxDelay;
+                WatchKey key;
+                while ((key = this.watchService.poll(Math.min(this.debounce, Math.max(deadline - System.currentTimeMillis(), 0)),
+                        TimeUnit.MILLISECONDS)) != null) {
+                    this.collect(key, changed);
+                }
+                changed = this.convert(changed);
+            }
+        } catch (final ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Stop watching. {@link #watch()} returns once the current batch is done.
+     */
+    public void close() throws IOException {
+        this.watchService.close();
+    }
+
+    /**
+     * Take the events of one directory.
+     */
+    private void collect(final WatchKey key, final Set<File> changed) {
+        final Path directory = this.directories.get(key);
+        if (directory == null) {
+            key.cancel();
+            return;
+        }
+
+        final String[] extensions = this.converter.fileExtensionsForWalk();
+        for (final WatchEvent<?> event : key.pollEvents()) {
+            final WatchEvent.Kind<?> kind = event.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                LOG.warning("missed events in " + directory + ", rescanning it");
+                this.register(directory, changed);
+                continue;
+            }
+
+            final Path child = directory.resolve((Path) event.context());
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                // deleted directories are dropped when their key is reset
+                changed.remove(child.toFile());
+                continue;
+            }
+
+            final BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(child, BasicFileAttributes.class);
+            } catch (final IOException e) {
+                // gone again already
+                LOG.log(Level.FINE, "skipping " + child, e);
+                continue;
+            }
+            if (attrs.isDirectory()) {
+                if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+                    // files may have been put there before it was registered
+                    this.register(child, changed);
+                }
+            } else if (attrs.isRegularFile() && TreeConverter.acceptsFileName(extensions, child.toFile())) {
+                changed.add(child.toFile());
+            }
+        }
+
+        if (!key.reset()) {
+            // deleted or no longer accessible
+            this.directories.remove(key);
+        }
+    }
+
+    /**
+     * Register a directory and all directories below it.
+     *
+     * @param found
+     *            receives the matching files found, or null
+     */
+    private void register(final Path start, final Set<File> found) {
+        final String[] extensions = this.converter.fileExtensionsForWalk();
+        try {
+            Files.walkFileTree(start, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+                public FileVisitResult preVisitDirectory(final Path dir, final BasicFileAttributes attrs) throws IOException {
+                    final WatchKey key = dir.register(TreeWatcher.this.watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+                    TreeWatcher.this.directories.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFile(final Path file, final BasicFileAttributes attrs) {
+                    if ((found != null) && attrs.isRegularFile() && TreeConverter.acceptsFileName(extensions, file.toFile())) {
+                        found.add(file.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(final Path file, final IOException e) {
+                    // e.g. a link loop or a dangling link
+                    LOG.log(Level.FINE, "skipping " + file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (final IOException e) {
+            LOG.log(Level.WARNING, "cannot watch " + start, e);
+        }
+    }
+
+    /**
+     * Convert a batch of changed files, except those we wrote ourselves and
+     * those modified too recently.
+     *
+     * @return the files put off, to be tried again with the next batch
+     */
+    private Set<File> convert(final Set<File> changed) throws InterruptedException {
+        final List<Convertee> convertees = new ArrayList<Convertee>(changed.size());
+        final Set<File> pending = new LinkedHashSet<File>();
+        final long now = System.currentTimeMillis();
+        for (final File f : changed) {
+            final long lastModified = f.lastModified();
+            final Long ours = this.written.remove(f);
+            if (!f.isFile() || ((ours != null) && (ours.longValue() == lastModified))) {
+                continue;
+            }
+            // a timestamp in the future (clock skew) doesn't mean it's busy
+            if ((now >= lastModified) && (now - lastModified < this.debounce)) {
+                if (ours != null) {
+                    this.written.put(f, ours);
+                }
+                pending.add(f);
+                continue;
+            }
+            convertees.add(this.converter.newConvertee(f));
+        }
+        if (!convertees.isEmpty()) {
+            LOG.fine("converting " + convertees.size() + " changed files");
+            this.converter.convert(convertees, this.options, this.listener);
+        }
+        return pending;
+    }
+}
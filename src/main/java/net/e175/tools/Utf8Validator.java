@@ -0,0 +1,149 @@
+package net.e175.tools;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental, strict UTF-8 validator. Runs of ASCII are skipped eight bytes
+ * at a time by testing the high bits of a whole long; only multi-byte
+ * sequences are checked byte by byte (against the well-formed sequences of
+ * the Unicode standard, so overlong forms, surrogates and code points above
+ * U+10FFFF are rejected).
+ *
+ * This answers "is this valid UTF-8?" much faster than running the full
+ * charset detector, which also has to drive the state machines of all Asian
+ * multi-byte encodings.
+ *
+ * @author Klaus Brunner
+ */
+public final class Utf8Validator {
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
+
+    /** continuation bytes still expected for the current sequence */
+    private int remaining = 0;
+
+    /** allowed range for the next continuation byte */
+    private int lower = 0x80;
+
+    private int upper = 0xBF;
+
+    private boolean valid = true;
+
+    private boolean ascii = true;
+
+    /**
+     * Check a complete byte array.
+     *
+     * @return true if the bytes are well-formed UTF-8
+     */
+    public static boolean isValid(final byte[] buffer, final int offset, final int length) {
+        final Utf8Validator validator = new Utf8Validator();
+        validator.update(buffer, offset, length);
+        return validator.finish(true);
+    }
+
+    /**
+     * Feed the next block of bytes. Sequences may span blocks.
+     *
+     * @return false if the input seen so far is not valid UTF-8 (no need to
+     *         feed any more), true otherwise
+     */
+    public boolean update(final byte[] buffer, final int offset, final int length) {
+        if (!this.valid) {
+            return false;
+        }
+
+        final ByteBuffer words = ByteBuffer.wrap(buffer);
+        final int end = offset + length;
+        int remaining = this.remaining;
+        int lower = this.lower;
+        int upper = this.upper;
+        boolean ascii = this.ascii;
+
+        int i = offset;
+        while (i < end) {
+            if (remaining == 0) {
+                // skip ASCII runs a long at a time
+                while ((i + 8 <= end) && ((words.getLong(i) & HIGH_BITS) == 0)) {
+                    i += 8;
+                }
+                if (i >= end) {
+                    break;
+                }
+
+                final int b = buffer[i++] & 0xFF;
+                if (b < 0x80) {
+                    continue;
+                }
+
+                ascii = false;
+                if (b < 0xC2) {
+                    // continuation byte without lead, or overlong 2-byte form
+                    return this.invalid();
+                } else if (b < 0xE0) {
+                    remaining = 1;
+                } else if (b < 0xF0) {
+                    remaining = 2;
+                    lower = (b == 0xE0) ? 0xA0 : 0x80; // no overlongs
+                    upper = (b == 0xED) ? 0x9F : 0xBF; // no surrogates
+                } else if (b < 0xF5) {
+                    remaining = 3;
+                    lower = (b == 0xF0) ? 0x90 : 0x80; // no overlongs
+                    upper = (b == 0xF4) ? 0x8F : 0xBF; // nothing above U+10FFFF
+                } else {
+                    return this.invalid();
+                }
+            } else {
+                final int b = buffer[i++] & 0xFF;
+                if ((b < lower) || (b > upper)) {
+                    return this.invalid();
+                }
+                remaining--;
+                lower = 0x80;
+                upper = 0xBF;
+            }
+        }
+
+        this.remaining = remaining;
+        this.lower = lower;
+        this.upper = upper;
+        this.ascii = ascii;
+        return true;
+    }
+
+    private boolean invalid() {
+        this.valid = false;
+        this.ascii = false;
+        return false;
+    }
+
+    /**
+     * Signal that no more input will be fed.
+     *
+     * @param endOfInput
+     *            true if the input really ended here, false if it was only
+     *            sampled up to here (an incomplete sequence at the end is then
+     *            tolerated)
+     * @return true if the input is valid UTF-8
+     */
+    public boolean finish(final boolean endOfInput) {
+        if (endOfInput && (this.remaining != 0)) {
+            this.valid = false;
+        }
+        return this.valid;
+    }
+
+    /**
+     * @return true if all input so far was valid UTF-8
+     */
+    public boolean isValid() {
+        return this.valid;
+    }
+
+    /**
+     * @return true if all input so far was 7-bit ASCII
+     */
+    public boolean isAscii() {
+        return this.ascii;
+    }
+}
@@ -0,0 +1,19 @@
+package net.e175.tools;
+
+/**
+ * Receives the files found by a parallel directory walk. Methods are called
+ * from worker threads, so implementations must be thread-safe.
+ *
+ * @author Klaus Brunner
+ */
+public interface WalkListener {
+
+    /**
+     * A file matching the file extensions has been found.
+     *
+     * @param convertee
+     *            the file found
+     */
+    void found(Convertee convertee);
+
+}
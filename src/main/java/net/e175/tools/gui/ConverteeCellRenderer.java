@@ -0,0 +1,27 @@
+package net.e175.tools.gui;
+
+import java.awt.Component;
+
+import javax.swing.DefaultListCellRenderer;
+import javax.swing.JList;
+import javax.swing.ListModel;
+
+/**
+ * Renders rows of a {@link ConverteeListModel}, formatting the description
+ * only for the rows actually painted.
+ *
+ * @author Klaus Brunner
+ */
+final class ConverteeCellRenderer extends DefaultListCellRenderer {
+
+    private static final long serialVersionUID = 1L;
+
+    public Component getListCellRendererComponent(JList list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+        ListModel model = list.getModel();
+        Object text = value;
+        if ((model instanceof ConverteeListModel) && (index >= 0) && (index < model.getSize())) {
+            text = ((ConverteeListModel) model).describe(index);
+        }
+        return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+    }
+}
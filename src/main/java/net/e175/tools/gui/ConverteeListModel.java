@@ -0,0 +1,202 @@
+package net.e175.tools.gui;
+
+import java.io.File;
+import java.util.BitSet;
+
+import javax.swing.AbstractListModel;
+
+import net.e175.tools.ScanResultStore;
+
+/**
+ * List model for the files of a scan. The files are kept in a
+ * {@link ScanResultStore} (compact columns instead of a Convertee per file),
+ * plus a bit per file telling whether it needs conversion. No display string
+ * is kept; strings are formatted by {@link ConverteeCellRenderer} when a row
+ * is painted, and convertees are created by the converter as it takes the
+ * rows.
+ *
+ * Rows are added in batches with {@link #add} and made visible by
+ * {@link #commit()}, which fires a single event per batch. Use on the EDT
+ * only.
+ *
+ * @author Klaus Brunner
+ */
+final class ConverteeListModel extends AbstractListModel {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ScanResultStore store = new ScanResultStore();
+
+    private final BitSet noops = new BitSet();
+
+    /** shown for files whose encoding hasn't been detected */
+    private final String assumedEncoding;
+
+    /** rows visible to the list */
+    private int size = 0;
+
+    /** row with the longest description, for sizing the list */
+    private int longest = -1;
+
+    private int longestLength = 0;
+
+    /**
+     * @param assumedEncoding
+     *            encoding used for files whose encoding isn't known
+     */
+    ConverteeListModel(String assumedEncoding) {
+        this.assumedEncoding = assumedEncoding;
+    }
+
+    /**
+     * Add a row, without notifying the list yet.
+     *
+     * @param encoding
+     *            the encoding detected, or null if it's assumed
+     * @param flags
+     *            combination of the ScanResultStore flags
+     * @param noop
+     *            true if converting the file wouldn't change it
+     * @see ScanResultStore#add(File, long, String, int, int, double)
+     */
+    void add(File file, long fileSize, String encoding, int flags, int doubleEncodingLayers, double doubleEncodingConfidence, boolean noop) {
+        int row = store.add(file, fileSize, encoding, flags, doubleEncodingLayers, doubleEncodingConfidence);
+        noops.set(row, noop);
+        // not just the path, the suffixes vary in length too
+        int length = describedLength(file.getPath().length(), encoding, flags, doubleEncodingLayers,
+                Math.round(doubleEncodingConfidence * 100), noop);
+        if (length > longestLength) {
+            longest = row;
+            longestLength = length;
+        }
+    }
+
+    /**
+     * Make the rows added since the last commit visible.
+     */
+    void commit() {
+        int count = store.size();
+        if (count > size) {
+            int first = size;
+            size = count;
+            fireIntervalAdded(this, first, size - 1);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the file's name
+     */
+    public Object getElementAt(int index) {
+        checkIndex(index);
+        return store.getName(index);
+    }
+
+    private void checkIndex(int index) {
+        if ((index < 0) || (index >= size)) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + size);
+        }
+    }
+
+    boolean isNoop(int index) {
+        checkIndex(index);
+        return noops.get(index);
+    }
+
+    /**
+     * @return the rows, for converting them (see
+     *         {@link net.e175.tools.TreeConverter#convert(ScanResultStore, int[], net.e175.tools.ConversionOptions, net.e175.tools.ConversionListener)});
+     *         it may hold rows not committed yet
+     */
+    ScanResultStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the visible row with the longest description, or -1 if there
+     *         is none
+     */
+    int getLongestRow() {
+        return (longest < size) ? longest : -1;
+    }
+
+    /**
+     * Format a row for display.
+     */
+    String describe(int index) {
+        checkIndex(index);
+        return format(index);
+    }
+
+    /**
+     * Length of what {@link #format(int)} makes of a row, worked out from
+     * its parts without building the string (which would mean rebuilding the
+     * path). Must be kept in line with format().
+     */
+    private int describedLength(int pathLength, String encoding, int flags, int layers, long percent, boolean noop) {
+        int length = pathLength;
+        if (encoding != null) {
+            length += " (".length() + encoding.length();
+        } else {
+            length += " (assuming ".length() + assumedEncoding.length();
+        }
+
+        if ((flags & ScanResultStore.BOM) != 0) {
+            length += ", BOM detected".length();
+        }
+
+        // the store keeps at most a byte's worth of layers
+        layers = Math.min(layers, Byte.MAX_VALUE);
+        if (layers > 0) {
+            length += ", double-encoded".length();
+            if (layers > 1) {
+                length += " x".length() + digits(layers);
+            }
+            length += " (".length() + digits(percent) + "% certain)".length();
+        }
+
+        if (noop) {
+            length += ", no conversion needed".length();
+        }
+        return length + ")".length();
+    }
+
+    private static int digits(long n) {
+        int digits = (n < 0) ? 2 : 1;
+        for (long rest = Math.abs(n); rest >= 10; rest /= 10) {
+            digits++;
+        }
+        return digits;
+    }
+
+    private String format(int index) {
+        String encoding = store.getEncoding(index);
+        StringBuilder s = new StringBuilder(store.getFile(index).getPath());
+        if (encoding != null) {
+            s.append(" (").append(encoding);
+        } else {
+            s.append(" (assuming ").append(assumedEncoding);
+        }
+
+        if (store.hasFlag(index, ScanResultStore.BOM)) {
+            s.append(", BOM detected");
+        }
+
+        int layers = store.getDoubleEncodingLayers(index);
+        if (layers > 0) {
+            s.append(", double-encoded");
+            if (layers > 1) {
+                s.append(" x").append(layers);
+            }
+            s.append(" (").append(Math.round(store.getDoubleEncodingConfidence(index) * 100)).append("% certain)");
+        }
+
+        if (noops.get(index)) {
+            s.append(", no conversion needed");
+        }
+        return s.append(")").toString();
+    }
+}
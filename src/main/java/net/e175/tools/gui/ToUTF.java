@@ -1,7 +1,7 @@
 package net.e175.tools.gui;
 
 import java.awt.BorderLayout;
-import java.awt.Cursor;
+import java.awt.Component;
 import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -11,15 +11,16 @@ import java.awt.event.KeyEvent;
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.swing.ButtonGroup;
-import javax.swing.DefaultListModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFileChooser;
@@ -30,15 +31,22 @@ import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JProgressBar;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
-import javax.swing.ListModel;
+import javax.swing.ListSelectionModel;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileFilter;
 
-import net.e175.tools.BrokenGermanUTFConversionFilter;
+import net.e175.tools.ConversionListener;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.ConversionStats;
 import net.e175.tools.Convertee;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.ScanCache;
+import net.e175.tools.ScanResultStore;
 import net.e175.tools.TreeConverter;
 
 /**
@@ -51,8 +59,6 @@ import net.e175.tools.TreeConverter;
  */
 public final class ToUTF {
 	
-    private static final String UTF_8 = "UTF-8";
-
     private static final String APPLICATION_INFO = "To-UTF 1.0.4: A simple converter to UTF-8 encoding. \n K. Brunner, 2006-2009";
 
     private static final String DEFAULT_DEFAULT_ENCODING = "ISO-8859-1"; // @jve:decl-index=0:
@@ -60,6 +66,12 @@ public final class ToUTF {
     private static final String BACKUP_FILE_EXTENSION = ".backup";
 
     private static final boolean SHOW_ALL_ENCODINGS = false;
+
+    /** bytes read per file for encoding detection while scanning (conversion reads all it needs) */
+    private static final int DETECTION_SAMPLE_BUDGET = 256 * 1024;
+
+    /** conversion errors listed in the dialog; all of them are logged */
+    private static final int MAX_ERRORS_SHOWN = 10;
     
     private static final Logger LOG = Logger.getLogger(ToUTF.class.getName());
 
@@ -83,8 +95,6 @@ public final class ToUTF {
 
     private TreeConverter converter = null; // @jve:decl-index=0:
 
-    private List convertees = null;
-
     private JScrollPane jScrollPane = null;
 
     private JList jList = null;
@@ -99,6 +109,8 @@ public final class ToUTF {
 
     private JCheckBoxMenuItem jRepairUTFMenuItem = null;
 
+    private JCheckBoxMenuItem jRepairDoubleEncodingMenuItem = null;
+
     private JMenuItem jExtensionsMenuItem = null;
 
     private String[] fileExtensions = { ".java" };
@@ -109,6 +121,17 @@ public final class ToUTF {
 
     private JCheckBoxMenuItem jStripBomMenuItem = null;
 
+    private JPanel jStatusPanel = null;
+
+    private JProgressBar jProgressBar = null;
+
+    private JButton jCancelButton = null;
+
+    /** the scan or conversion running in the background, or null (EDT only) */
+    private SwingWorker<Void, ?> worker = null;
+
+    private boolean workerConverting = false;
+
     /**
      * This method initializes openMenuItem
      * 
@@ -258,7 +281,12 @@ public final class ToUTF {
     private JList getJList() {
         if (jList == null) {
             jList = new JList();
-
+            jList.setCellRenderer(new ConverteeCellRenderer());
+            // with fixed cell sizes, the list doesn't render every row to
+            // find out how large it is
+            Component row = jList.getCellRenderer().getListCellRendererComponent(jList, "X", -1, false, false);
+            jList.setFixedCellHeight(row.getPreferredSize().height);
+            jList.setFixedCellWidth(row.getPreferredSize().width);
         }
         return jList;
     }
@@ -278,6 +306,7 @@ public final class ToUTF {
             optionsMenu.add(getJCreateBackupsMenuItem());
             optionsMenu.add(getJStripBomMenuItem());
             optionsMenu.add(getJRepairUTFMenuItem());            
+            optionsMenu.add(getJRepairDoubleEncodingMenuItem());
         }
         return optionsMenu;
     }
@@ -325,6 +354,21 @@ public final class ToUTF {
         return jRepairUTFMenuItem;
     }
 
+    /**
+     * This method initializes jRepairDoubleEncodingMenuItem
+     * 
+     * @return javax.swing.JCheckBoxMenuItem
+     */
+    private JCheckBoxMenuItem getJRepairDoubleEncodingMenuItem() {
+        if (jRepairDoubleEncodingMenuItem == null) {
+            jRepairDoubleEncodingMenuItem = new JCheckBoxMenuItem();
+            jRepairDoubleEncodingMenuItem.setText("Repair double-encoded UTF-8");
+            jRepairDoubleEncodingMenuItem
+                    .setToolTipText("EXPERIMENTAL: undoes UTF-8 that was read as windows-1252 or ISO-8859-1 and saved as UTF-8 again. Use backups, check results carefully!");
+        }
+        return jRepairDoubleEncodingMenuItem;
+    }
+
     /**
      * This method initializes jExtensionsMenuItem
      * 
@@ -412,6 +456,7 @@ public final class ToUTF {
      * @param args
      */
     public static void main(String[] args) {
+        ConversionStats.register();
         SwingUtilities.invokeLater(new Runnable() {
             public void run() {
                 try {
@@ -452,12 +497,64 @@ public final class ToUTF {
         if (jContentPane == null) {
             jContentPane = new JPanel();
             jContentPane.setLayout(new BorderLayout());
-            jContentPane.add(getJRunButton(), BorderLayout.SOUTH);
+            jContentPane.add(getJStatusPanel(), BorderLayout.SOUTH);
             jContentPane.add(getJScrollPane(), BorderLayout.CENTER);
         }
         return jContentPane;
     }
 
+    /**
+     * This method initializes jStatusPanel
+     * 
+     * @return javax.swing.JPanel
+     */
+    private JPanel getJStatusPanel() {
+        if (jStatusPanel == null) {
+            jStatusPanel = new JPanel();
+            jStatusPanel.setLayout(new BorderLayout());
+            jStatusPanel.add(getJProgressBar(), BorderLayout.CENTER);
+            jStatusPanel.add(getJCancelButton(), BorderLayout.EAST);
+            jStatusPanel.add(getJRunButton(), BorderLayout.SOUTH);
+        }
+        return jStatusPanel;
+    }
+
+    /**
+     * This method initializes jProgressBar
+     * 
+     * @return javax.swing.JProgressBar
+     */
+    private JProgressBar getJProgressBar() {
+        if (jProgressBar == null) {
+            jProgressBar = new JProgressBar();
+            jProgressBar.setStringPainted(true);
+            jProgressBar.setString("");
+        }
+        return jProgressBar;
+    }
+
+    /**
+     * This method initializes jCancelButton
+     * 
+     * @return javax.swing.JButton
+     */
+    private JButton getJCancelButton() {
+        if (jCancelButton == null) {
+            jCancelButton = new JButton();
+            jCancelButton.setText("Cancel");
+            jCancelButton.setEnabled(false);
+            jCancelButton.addActionListener(new java.awt.event.ActionListener() {
+                public void actionPerformed(java.awt.event.ActionEvent e) {
+                    if (worker != null) {
+                        jCancelButton.setEnabled(false);
+                        worker.cancel(workerConverting);
+                    }
+                }
+            });
+        }
+        return jCancelButton;
+    }
+
     /**
      * This method initializes jJMenuBar
      * 
@@ -523,114 +620,436 @@ public final class ToUTF {
     }
 
     /**
-     * Display the list of files.
+     * Display the list of files. The tree is scanned in the background; files
+     * appear in the list as soon as their encoding has been detected.
      * 
      * @param select
      *            true if files should be selected
      */
     private void initializeList(boolean select) {
-        jFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
         converter = new TreeConverter();
         converter.setFileExtensions(this.getFileExtensions());
+        converter.setSampleBudget(DETECTION_SAMPLE_BUDGET);
 
-        convertees = new LinkedList();
-        converter.listTree(currentRootDir, convertees);
+        ScanWorker scan = new ScanWorker(currentRootDir, converter, getConversionOptions(), select);
+        jList.setModel(scan.model);
+        jRunButton.setEnabled(false);
+        start(scan, false);
+    }
+
+    /**
+     * Cancel whatever runs in the background, then start a new worker.
+     * 
+     * @param converting
+     *            true if the worker modifies files
+     */
+    private void start(SwingWorker<Void, ?> newWorker, boolean converting) {
+        if (worker != null) {
+            worker.cancel(workerConverting);
+        }
+        worker = newWorker;
+        workerConverting = converting;
+
+        // no changes to the settings while files are being modified
+        getOpenMenuItem().setEnabled(!converting);
+        getOptionsMenu().setEnabled(!converting);
+        jProgressBar.setIndeterminate(!converting);
+        jProgressBar.setValue(0);
+        jProgressBar.setString(converting ? "Converting..." : "Scanning...");
+        jCancelButton.setEnabled(true);
+        newWorker.execute();
+    }
 
-        DefaultListModel newListModel = new DefaultListModel();
-        jList.setModel(newListModel);
+    /**
+     * Called on the EDT when the current worker is done.
+     */
+    private void finished(String status) {
+        worker = null;
+        workerConverting = false;
+        getOpenMenuItem().setEnabled(true);
+        getOptionsMenu().setEnabled(true);
+        jProgressBar.setIndeterminate(false);
+        jProgressBar.setString(status);
+        jCancelButton.setEnabled(false);
+    }
 
-        for (Iterator it = convertees.iterator(); it.hasNext();) {
-            Convertee c = (Convertee) it.next();
+    /**
+     * Detect a file's encoding (unless forced) and collect what the list
+     * shows about it.
+     */
+    private static Scanned scan(TreeConverter treeConverter, Convertee c, ScanCache cache, ConversionOptions options) {
+        String encoding = null;
+        int flags = 0;
+        int layers = 0;
+        double confidence = 0;
+        boolean noop = false;
+
+        try {
+            if (!options.isForceDefaultEncoding() && c.detectAndSetSourceEncoding(cache)) {
+                encoding = c.getSourceEncoding();
+            } else {
+                c.setSourceEncoding(options.getDefaultEncoding());
+            }
 
-            StringBuffer converteeString = new StringBuffer(c.toString());
+            if (c.hasBOM()) {
+                flags |= ScanResultStore.BOM;
+            }
 
-            try {
-                if (!this.jForceDefaultEncodingMenuItem.isSelected() && c.detectAndSetSourceEncoding()) {
-                    converteeString.append(" (");
-                    converteeString.append(c.getSourceEncoding());
-                } else {
-                    converteeString.append(" (assuming ");
-                    converteeString.append(this.getSelectedSourceEncoding());
-                    c.setSourceEncoding(this.getSelectedSourceEncoding());
+            DetectionResult detection = c.getDetectionResult();
+            if (detection != null) {
+                if (detection.isAsciiOnly()) {
+                    flags |= ScanResultStore.ASCII_ONLY;
                 }
-
-                if (c.hasBOM()) {
-                    converteeString.append(", BOM detected");
+                if (detection.isBinary()) {
+                    flags |= ScanResultStore.BINARY;
                 }
-
-                converteeString.append(")");
-            } catch (IOException ex) {
-                LOG.log(Level.WARNING, ex.getMessage(), ex);
+                if (detection.isComplete()) {
+                    flags |= ScanResultStore.COMPLETE;
+                }
+                layers = detection.getDoubleEncodingLayers();
+                confidence = detection.getDoubleEncodingConfidence();
             }
 
-            c.setStringRepresentation(converteeString.toString());
-            newListModel.addElement(c);
+            noop = treeConverter.isNoopWithFilters(c, options);
+        } catch (IOException ex) {
+            LOG.log(Level.WARNING, ex.getMessage(), ex);
+            flags |= ScanResultStore.UNREADABLE;
         }
-        jFrame.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
 
-        if (select) {
-            jList.getSelectionModel().setSelectionInterval(0, newListModel.getSize() - 1);
-        }
-        jList.ensureIndexIsVisible(0);
+        return new Scanned(c.getFile(), c.getFile().length(), encoding, flags, layers, confidence, noop);
+    }
 
-        jRunButton.setEnabled(newListModel.getSize() > 0);
+    /**
+     * @return conversion settings according to the current menu selections
+     */
+    private ConversionOptions getConversionOptions() {
+        ConversionOptions options = new ConversionOptions();
+        options.setDefaultEncoding(getSelectedSourceEncoding());
+        options.setForceDefaultEncoding(this.jForceDefaultEncodingMenuItem.isSelected());
+        options.setCreateBackups(this.jCreateBackupsMenuItem.isSelected());
+        options.setBackupExtension(BACKUP_FILE_EXTENSION);
+        options.setStripBOM(this.jStripBomMenuItem.isSelected());
+        options.setRepairBrokenUTF8(this.jRepairUTFMenuItem.isSelected());
+        options.setRepairDoubleEncoding(this.jRepairDoubleEncodingMenuItem.isSelected());
+        return options;
     }
 
     /**
-     * Run the actual conversion process.
+     * Run the actual conversion process in the background.
      * 
      */
     private void runConversion() {
-        jFrame.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
-        ListModel model = jList.getModel();
-        int[] selectedIndices = jList.getSelectedIndices();
+        ConverteeListModel model = (ConverteeListModel) jList.getModel();
+        ListSelectionModel selection = jList.getSelectionModel();
+
+        // walk the selection twice instead of collecting boxed indices
+        int first = Math.max(selection.getMinSelectionIndex(), 0);
+        int last = Math.min(selection.getMaxSelectionIndex(), model.getSize() - 1);
+        int count = 0;
+        for (int i = first; i <= last; i++) {
+            if (selection.isSelectedIndex(i)) {
+                count++;
+            }
+        }
+        int[] selected = new int[count];
+        count = 0;
+        for (int i = first; i <= last; i++) {
+            if (selection.isSelectedIndex(i)) {
+                selected[count++] = i;
+            }
+        }
+
+        jRunButton.setEnabled(false);
+        jProgressBar.setMaximum(selected.length);
+        start(new ConversionWorker(converter, model.getStore(), selected, getConversionOptions()), true);
+    }
 
-        for (int i = 0; i < selectedIndices.length; i++) {
-            Convertee c = (Convertee) model.getElementAt(selectedIndices[i]);
+    /**
+     * A file as found by the scan, see {@link ConverteeListModel#add}.
+     */
+    private static final class Scanned {
 
-            if (this.jForceDefaultEncodingMenuItem.isSelected()) {
-                // always force selected encoding
-                c.setSourceEncoding(getSelectedSourceEncoding());
-            } else {
-                // override selected encoding if reliably detectable
-                if (!c.detectAndSetSourceEncoding()) {
-                    c.setSourceEncoding(getSelectedSourceEncoding());
-                }
-            }
+        private final File file;
+
+        private final long size;
+
+        private final String encoding;
+
+        private final int flags;
+
+        private final int layers;
 
-            File tempFile;
+        private final double confidence;
+
+        private final boolean noop;
+
+        Scanned(File file, long size, String encoding, int flags, int layers, double confidence, boolean noop) {
+            this.file = file;
+            this.size = size;
+            this.encoding = encoding;
+            this.flags = flags;
+            this.layers = layers;
+            this.confidence = confidence;
+            this.noop = noop;
+        }
+    }
+
+    /**
+     * Start time and bytes read at the start of a background run, for
+     * throughput figures.
+     */
+    private static final class Progress {
+
+        private final long startTime = System.nanoTime();
+
+        private final long startBytes = ConversionStats.getInstance().getBytesRead();
+
+        String describe(int files) {
+            double seconds = Math.max(System.nanoTime() - startTime, 1L) / 1e9;
+            double megabytes = (ConversionStats.getInstance().getBytesRead() - startBytes) / (1024.0 * 1024.0);
+            return String.format("%d files, %.0f files/s, %.1f MB/s", Integer.valueOf(files), Double.valueOf(files / seconds),
+                    Double.valueOf(megabytes / seconds));
+        }
+    }
+
+    /**
+     * Walks the tree and detects encodings, publishing files to its list
+     * model as they are done. Cancelling lets the file at hand finish, so
+     * the scan cache is still saved.
+     */
+    private final class ScanWorker extends SwingWorker<Void, Scanned> {
+
+        private final File root;
+
+        private final TreeConverter treeConverter;
+
+        private final ConversionOptions options;
+
+        private final boolean select;
+
+        private final ConverteeListModel model;
+
+        private final Progress progress = new Progress();
+
+        ScanWorker(File root, TreeConverter treeConverter, ConversionOptions options, boolean select) {
+            this.model = new ConverteeListModel(options.getDefaultEncoding());
+            this.root = root;
+            this.treeConverter = treeConverter;
+            this.options = options;
+            this.select = select;
+        }
+
+        protected Void doInBackground() {
+            // unchanged files aren't read again
+            ScanCache cache = ScanCache.load(ScanCache.defaultLocation(root), root, DETECTION_SAMPLE_BUDGET);
             try {
-                LOG.fine("converting " + c);
-                if (this.jCreateBackupsMenuItem.isSelected()) {
-                    File backupFile = new File(c.getFile().getAbsolutePath() + BACKUP_FILE_EXTENSION);
-                    LOG.fine("copying to backup file " + backupFile);
-                    TreeConverter.copyFile(c.getFile(), backupFile);
+                for (Iterator<Convertee> it = treeConverter.walk(root); it.hasNext() && !isCancelled();) {
+                    Convertee c = it.next();
+                    publish(scan(treeConverter, c, cache, options));
+                }
+            } finally {
+                try {
+                    cache.save();
+                } catch (IOException ex) {
+                    LOG.log(Level.WARNING, "failed to save scan cache: " + ex.getMessage(), ex);
                 }
+            }
+            return null;
+        }
+
+        protected void process(List<Scanned> chunk) {
+            int first = model.getSize();
+            int longest = model.getLongestRow();
+            for (Scanned scanned : chunk) {
+                model.add(scanned.file, scanned.size, scanned.encoding, scanned.flags, scanned.layers, scanned.confidence, scanned.noop);
+            }
+            model.commit();
+            if (worker != this) {
+                return;
+            }
 
-                tempFile = File.createTempFile("toutf_", "txt");
-                tempFile.deleteOnExit();
+            if (select) {
+                selectConvertible(first);
+            }
+            if (model.getLongestRow() != longest) {
+                // the widest row is as wide as all of them, see getJList()
+                Component row = jList.getCellRenderer().getListCellRendererComponent(jList, null, model.getLongestRow(), false, false);
+                jList.setFixedCellWidth(row.getPreferredSize().width);
+            }
+            jProgressBar.setString(progress.describe(model.getSize()));
+        }
 
-                if (this.jRepairUTFMenuItem.isSelected() && c.getSourceEncoding().equals(UTF_8)) {
-                    c.setFilter(new BrokenGermanUTFConversionFilter());
-                    LOG.fine("applying BrokenGermanUTFConversionFilter to " + c);
+        /**
+         * Select the rows from first on that need conversion, a run of rows
+         * at a time.
+         */
+        private void selectConvertible(int first) {
+            ListSelectionModel selection = jList.getSelectionModel();
+            selection.setValueIsAdjusting(true);
+            int runStart = -1;
+            for (int i = first; i <= model.getSize(); i++) {
+                boolean convertible = (i < model.getSize()) && !model.isNoop(i);
+                if (convertible && (runStart < 0)) {
+                    runStart = i;
+                } else if (!convertible && (runStart >= 0)) {
+                    selection.addSelectionInterval(runStart, i - 1);
+                    runStart = -1;
                 }
+            }
+            selection.setValueIsAdjusting(false);
+        }
+
+        protected void done() {
+            if (worker != this) {
+                // superseded by another run
+                return;
+            }
+            try {
+                get();
+            } catch (CancellationException ex) {
+                // stopped by the user
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException ex) {
+                LOG.log(Level.WARNING, "scan failed", ex.getCause());
+                JOptionPane.showMessageDialog(jFrame, "Error scanning " + root + ": " + ex.getCause(), "Scan Error", JOptionPane.ERROR_MESSAGE);
+            }
+            finished((isCancelled() ? "Scan cancelled: " : "") + progress.describe(model.getSize()));
+            jRunButton.setEnabled(model.getSize() > 0);
+        }
+    }
+
+    /**
+     * Converts the selected files. Cancelling interrupts the files in
+     * progress; since files are replaced atomically, they are either
+     * converted or left as they were.
+     */
+    private final class ConversionWorker extends SwingWorker<Void, Convertee> {
+
+        private final TreeConverter treeConverter;
+
+        private final ScanResultStore store;
+
+        /** rows of the store */
+        private final int[] selected;
+
+        private final ConversionOptions options;
+
+        /** the first few error messages, guarded by itself */
+        private final List<String> errors = new ArrayList<String>();
+
+        /** guarded by errors */
+        private int errorCount = 0;
+
+        private final Progress progress = new Progress();
+
+        /** EDT only */
+        private int done = 0;
+
+        /** set when doInBackground() is about to return */
+        private volatile boolean returned = false;
+
+        ConversionWorker(TreeConverter treeConverter, ScanResultStore store, int[] selected, ConversionOptions options) {
+            this.treeConverter = treeConverter;
+            this.store = store;
+            this.selected = selected;
+            this.options = options;
+        }
+
+        protected Void doInBackground() {
+            try {
+                treeConverter.convert(store, selected, options, new ConversionListener() {
+                    public void converted(Convertee c) {
+                        LOG.fine("converted " + c);
+                        publish(c);
+                    }
+
+                    public void skipped(Convertee c) {
+                        LOG.fine("left unchanged: " + c);
+                        publish(c);
+                    }
 
-                c.setStripBOM(this.jStripBomMenuItem.isSelected());
+                    public void failed(Convertee c, IOException ex) {
+                        if (isCancelled()) {
+                            // interrupted, the file is unchanged
+                            return;
+                        }
+                        LOG.log(Level.WARNING, "problem converting " + c, ex);
+                        synchronized (errors) {
+                            errorCount++;
+                            if (errors.size() < MAX_ERRORS_SHOWN) {
+                                errors.add(ex.getMessage());
+                            }
+                        }
+                        publish(c);
+                    }
+                });
+            } catch (InterruptedException ex) {
+                // cancelled
+            } finally {
+                // all workers have stopped now
+                returned = true;
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run() {
+                        if (isCancelled()) {
+                            afterConversion();
+                        }
+                    }
+                });
+            }
+            return null;
+        }
 
-                c.recode(tempFile);
+        protected void process(List<Convertee> chunk) {
+            done += chunk.size();
+            jProgressBar.setValue(done);
+            jProgressBar.setString(progress.describe(done));
+        }
 
-                c.setFilter(null);
+        protected void done() {
+            if (isCancelled() && !returned) {
+                // files may still be being written, don't rescan yet
+                jProgressBar.setString("Cancelling...");
+                return;
+            }
+            afterConversion();
+        }
 
-                TreeConverter.copyFile(tempFile, c.getFile());
-            } catch (IOException ex) {
-                LOG.log(Level.WARNING, "problem converting " + c, ex);
-                JOptionPane.showMessageDialog(jFrame, "Error converting " + ex.getMessage(), "Conversion Error", JOptionPane.ERROR_MESSAGE);
-            } 
+        /**
+         * Show a single dialog for all errors, listing the first few.
+         */
+        private void showErrors() {
+            StringBuilder message = new StringBuilder();
+            synchronized (errors) {
+                if (errorCount == 0) {
+                    return;
+                }
+                message.append(errorCount).append(errorCount == 1 ? " file" : " files").append(" could not be converted:\n");
+                for (String error : errors) {
+                    message.append('\n').append(error);
+                }
+                if (errorCount > errors.size()) {
+                    message.append("\n\n(").append(errorCount - errors.size()).append(" more, see the log)");
+                }
+            }
+            JOptionPane.showMessageDialog(jFrame, message.toString(), "Conversion Error", JOptionPane.ERROR_MESSAGE);
         }
 
-        this.jForceDefaultEncodingMenuItem.setSelected(false);
-        initializeList(false);
-        jFrame.setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+        /**
+         * Show the outcome and rescan. Called on the EDT once the conversion
+         * has really stopped; does nothing if called again.
+         */
+        private void afterConversion() {
+            if (worker != this) {
+                return;
+            }
+            finished((isCancelled() ? "Conversion cancelled: " : "") + progress.describe(done));
+
+            showErrors();
+
+            jForceDefaultEncodingMenuItem.setSelected(false);
+            initializeList(false);
+        }
     }
 
     /**
@@ -1,8 +1,10 @@
 package net.e175.tools.test;
 
 import java.io.File;
+import java.nio.CharBuffer;
 
 import junit.framework.TestCase;
+import net.e175.tools.BlockCharFilter;
 import net.e175.tools.BrokenGermanUTFConversionFilter;
 import net.e175.tools.Convertee;
 
@@ -29,4 +31,88 @@ public class BrokenGermanUTFConversionFilterTest extends TestCase {
         assertTrue("converted file should be identical to reference", Support.fileContentsEqual(target, Support.getFile("de_utf-8-ok.txt")));
 
     }
+
+    public void testBlockFilterMatchesCharFilter() throws Exception {
+        // "\u00C3\u00A4" is a broken a-umlaut, "\u00E2\u201A\u00AC" a broken euro sign
+        final String[] inputs = { "", "plain", "\u00C3\u00A4", "x\u00C3\u00A4y\u00E2\u201A\u00ACz", "\u00C3", "a\u00C3", "\u00E2\u201A",
+                "\u00C3\u00C3\u00A4\u00E2\u00E2\u201A\u00AC\u00C3x" };
+
+        for (int i = 0; i < inputs.length; i++) {
+            final BrokenGermanUTFConversionFilter filter = new BrokenGermanUTFConversionFilter();
+            final StringBuffer expected = new StringBuffer();
+            for (int j = 0; j < inputs[i].length(); j++) {
+                expected.append(filter.filter(inputs[i].charAt(j)));
+            }
+            expected.append(filter.filter(-1));
+
+            for (int outSize = 1; outSize <= 4; outSize++) {
+                filter.reset();
+                assertEquals(inputs[i] + " with output size " + outSize, expected.toString(), filterBlocks(filter, inputs[i], outSize));
+            }
+        }
+        assertEquals("x\u00E4y\u20ACz", filterBlocks(new BrokenGermanUTFConversionFilter(), inputs[3], 2));
+    }
+
+    public void testLatin1SupplementAndCp1252() throws Exception {
+        final StringBuffer text = new StringBuffer();
+        for (char c = 0xA0; c <= 0xFF; c++) {
+            text.append(c);
+        }
+        text.append("\u20AC\u201A\u201E\u2026\u2018\u2019\u201C\u201D\u2013\u2014\u2122\u0160\u0152\u017D\u0192\u02C6\u02DC");
+        final String original = text.toString();
+
+        // break it character by character, as the botched conversion would
+        final StringBuffer broken = new StringBuffer();
+        for (int i = 0; i < original.length(); i++) {
+            final byte[] utf8 = original.substring(i, i + 1).getBytes("UTF-8");
+            for (int j = 0; j < utf8.length; j++) {
+                final String c = new String(utf8, j, 1, BrokenGermanUTFConversionFilter.OLD_ENCODING);
+                // bytes undefined in CP-1252 end up as C1 controls
+                broken.append("\uFFFD".equals(c) ? (char) (utf8[j] & 0xFF) : c.charAt(0));
+            }
+            broken.append(' ');
+        }
+
+        final StringBuffer expected = new StringBuffer();
+        for (int i = 0; i < original.length(); i++) {
+            expected.append(original.charAt(i)).append(' ');
+        }
+        assertEquals(expected.toString(), filterBlocks(new BrokenGermanUTFConversionFilter(), broken.toString(), 16));
+    }
+
+    public void testBoundedLookAhead() {
+        // one endless line of gibberish and text: output must keep up with
+        // the input instead of waiting for a line end
+        final BrokenGermanUTFConversionFilter filter = new BrokenGermanUTFConversionFilter();
+        final CharBuffer in = CharBuffer.wrap("ab\u00C3\u00A4cd\u00E2\u201A\u00ACe\u00C3");
+        final CharBuffer out = CharBuffer.allocate(64);
+        long produced = 0;
+        for (int i = 1; i <= 100000; i++) {
+            in.rewind();
+            assertFalse(filter.filter(in, out, false));
+            produced += out.position();
+            out.clear();
+            // eight characters per round, only the trailing one is held back
+            assertEquals(8L * i - 1, produced);
+        }
+    }
+
+    private static String filterBlocks(final BlockCharFilter filter, final String input, final int outSize) {
+        final StringBuffer result = new StringBuffer();
+        final CharBuffer out = CharBuffer.allocate(outSize);
+        // feed one character at a time, so that matches span blocks
+        for (int i = 0; i <= input.length(); i++) {
+            final CharBuffer in = CharBuffer.wrap(input, i, Math.min(i + 1, input.length()));
+            final boolean endOfInput = (i == input.length());
+            while (filter.filter(in, out, endOfInput)) {
+                out.flip();
+                result.append(out);
+                out.clear();
+            }
+            out.flip();
+            result.append(out);
+            out.clear();
+        }
+        return result.toString();
+    }
 }
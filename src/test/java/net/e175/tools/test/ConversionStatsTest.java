@@ -0,0 +1,82 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+import net.e175.tools.ConversionListener;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.ConversionStats;
+import net.e175.tools.Convertee;
+import net.e175.tools.TreeConverter;
+
+public class ConversionStatsTest extends TestCase {
+
+    private static final String[] SOURCES = { "de_iso8859-1.txt", "de_utf-8.txt", "de_utf-8-ok_bom.txt", "de_utf-16be-ok_bom.txt" };
+
+    private File root;
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("conversionStatsTest");
+        for (int i = 0; i < SOURCES.length; i++) {
+            TreeConverter.copyFile(Support.getFile(SOURCES[i]), new File(this.root, i + ".txt"));
+        }
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+    }
+
+    public void testCountsConversion() throws Exception {
+        long size = 0;
+        for (int i = 0; i < SOURCES.length; i++) {
+            size += new File(this.root, i + ".txt").length();
+        }
+
+        final ConversionStats stats = ConversionStats.getInstance();
+        stats.reset();
+        final ConversionOptions options = new ConversionOptions();
+        options.setCreateBackups(true);
+        new TreeConverter(new String[] { ".txt" }).convertTree(this.root, options, new ConversionListener() {
+            public void converted(Convertee convertee) {
+            }
+
+            public void skipped(Convertee convertee) {
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                fail(e.toString());
+            }
+        });
+
+        assertEquals(SOURCES.length, stats.getFilesScanned());
+        assertEquals(3, stats.getFilesConverted());
+        assertEquals(1, stats.getFilesSkipped());
+        assertEquals(0, stats.getFilesFailed());
+        // the skipped file has been read for detection only
+        assertTrue(stats.getBytesRead() >= size);
+        assertTrue(stats.getBytesWritten() > 0);
+        assertTrue(stats.getFilesPerSecond() > 0);
+
+        stats.reset();
+        assertEquals(0, stats.getFilesConverted());
+        assertEquals(0, stats.getBytesRead());
+    }
+
+    public void testRegister() throws Exception {
+        ConversionStats.register();
+        // again, harmlessly
+        ConversionStats.register();
+
+        ConversionStats.getInstance().reset();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name = new ObjectName(ConversionStats.OBJECT_NAME);
+        assertTrue(server.isRegistered(name));
+        assertEquals(Long.valueOf(0), server.getAttribute(name, "FilesConverted"));
+        assertNotNull(server.getAttribute(name, "TranscodeMillis"));
+    }
+}
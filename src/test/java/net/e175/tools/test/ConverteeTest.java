@@ -1,9 +1,30 @@
 package net.e175.tools.test;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 import net.e175.tools.Convertee;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.EncodingDetector;
+import net.e175.tools.SniffedInput;
+import net.e175.tools.TreeConverter;
 
 public class ConverteeTest extends TestCase {
 
@@ -130,6 +151,324 @@ public class ConverteeTest extends TestCase {
 
     }
 
+    public void testSniffAndRecode() throws Exception {
+        final String[] filenames = { "de_iso8859-1.txt", "de_utf-8.txt", "de_utf-8-ok_bom.txt", "utf_16be_bom.txt" };
+        final String[] expected = { null, "UTF-8", "UTF-8", "UTF-16BE" };
+
+        for (int i = 0; i < filenames.length; i++) {
+            final File f = Support.getFile(filenames[i]);
+
+            final Convertee reference = new Convertee(f);
+            final boolean detected = reference.detectAndSetSourceEncoding();
+            final File referenceTarget = File.createTempFile("testSniffAndRecode", "txt");
+            referenceTarget.deleteOnExit();
+            reference.recode(referenceTarget);
+
+            final Convertee c = new Convertee(f);
+            final SniffedInput input = c.sniff();
+            final File target = File.createTempFile("testSniffAndRecode", "txt");
+            target.deleteOnExit();
+            try {
+                assertEquals(detected, c.detectAndSetSourceEncoding(input));
+                if (expected[i] != null) {
+                    assertEquals(expected[i], c.getSourceEncoding());
+                }
+                assertEquals(reference.hasBOM(), c.hasBOM());
+                c.recode(input, target);
+            } finally {
+                input.close();
+            }
+
+            assertTrue(filenames[i] + " should convert the same in a single pass", Support.fileContentsEqual(target, referenceTarget));
+        }
+    }
+
+    public void testSniffBeyondMemoryLimit() throws Exception {
+        // the Latin-1 part only shows up after more than can be kept in memory
+        final File f = File.createTempFile("testSniffBeyondMemoryLimit", "txt");
+        f.deleteOnExit();
+        final byte[] ascii = new byte[SniffedInput.DEFAULT_MEMORY_LIMIT + 100000];
+        Arrays.fill(ascii, (byte) 'a');
+        final FileOutputStream out = new FileOutputStream(f);
+        try {
+            out.write(ascii);
+            out.write(Support.readBytes(Support.getFile("de_iso8859-1.txt")));
+        } finally {
+            out.close();
+        }
+
+        final Convertee reference = new Convertee(f);
+        reference.setMapThreshold(Convertee.NO_MAPPING);
+        final File referenceTarget = File.createTempFile("testSniffBeyondMemoryLimit", "txt");
+        referenceTarget.deleteOnExit();
+        reference.recode(referenceTarget);
+
+        final int spoolsBefore = countSpools();
+        final Convertee c = new Convertee(f);
+        c.setMapThreshold(Convertee.NO_MAPPING);
+        final SniffedInput input = c.sniff();
+        final File target = File.createTempFile("testSniffBeyondMemoryLimit", "txt");
+        target.deleteOnExit();
+        try {
+            assertFalse(c.detectAndSetSourceEncoding(input));
+            assertTrue(input.getDetectionResult().getBytesRead() > SniffedInput.DEFAULT_MEMORY_LIMIT);
+            // what detection read, in memory or spooled, isn't read again
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+                raf.seek(0);
+                raf.write('b');
+                raf.seek(SniffedInput.DEFAULT_MEMORY_LIMIT + 50000);
+                raf.write('b');
+            }
+            c.recode(input, target);
+        } finally {
+            input.close();
+        }
+        assertTrue(Support.fileContentsEqual(target, referenceTarget));
+        assertEquals(spoolsBefore, countSpools());
+    }
+
+    private static int countSpools() {
+        final String[] spools = new File(System.getProperty("java.io.tmpdir")).list(new FilenameFilter() {
+            public boolean accept(final File dir, final String name) {
+                return name.startsWith("toutf_") && name.endsWith(".spool");
+            }
+        });
+        return (spools == null) ? 0 : spools.length;
+    }
+
+    public void testMappedInput() throws Exception {
+        final String[] filenames = { "de_iso8859-1.txt", "de_utf-8.txt", "de_utf-8-ok_bom.txt", "utf_16be_bom.txt" };
+
+        for (int i = 0; i < filenames.length; i++) {
+            final File f = Support.getFile(filenames[i]);
+
+            final Convertee reference = new Convertee(f);
+            reference.setMapThreshold(Convertee.NO_MAPPING);
+            final boolean detected = reference.detectAndSetSourceEncoding();
+            final File referenceTarget = File.createTempFile("testMappedInput", "txt");
+            referenceTarget.deleteOnExit();
+            reference.recode(referenceTarget);
+
+            final Convertee mapped = new Convertee(f);
+            mapped.setMapThreshold(0);
+            assertEquals(reference.encodingAccordingToBOM(), mapped.encodingAccordingToBOM());
+            assertEquals(detected, mapped.detectAndSetSourceEncoding());
+            final File target = File.createTempFile("testMappedInput", "txt");
+            target.deleteOnExit();
+            mapped.recode(target);
+            assertTrue(filenames[i] + " should convert the same when mapped", Support.fileContentsEqual(target, referenceTarget));
+
+            final Convertee sniffed = new Convertee(f);
+            sniffed.setMapThreshold(0);
+            final SniffedInput input = sniffed.sniff();
+            try {
+                assertEquals(detected, sniffed.detectAndSetSourceEncoding(input));
+                sniffed.recode(input, target);
+            } finally {
+                input.close();
+            }
+            assertTrue(filenames[i] + " should convert the same when sniffed and mapped", Support.fileContentsEqual(target, referenceTarget));
+        }
+    }
+
+    public void testRecodeInPlace() throws Exception {
+        final File dir = Support.createTempDirectory("testRecodeInPlace");
+        try {
+            final File f = new File(dir, "de.txt");
+            TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), f);
+            final File link = new File(dir, "link.txt");
+            Files.createSymbolicLink(link.toPath(), f.toPath());
+
+            final Convertee c = new Convertee(link);
+            c.setSourceEncoding("ISO-8859-1");
+            final File backup = new File(dir, "de.txt.bak");
+            assertTrue(c.recodeInPlace(backup));
+
+            assertTrue(Files.isSymbolicLink(link.toPath()));
+            assertTrue(Support.fileContentsEqual(f, Support.getFile("de_utf-8.txt")));
+            assertTrue(Support.fileContentsEqual(backup, Support.getFile("de_iso8859-1.txt")));
+
+            // now it's UTF-8, so there's nothing left to do
+            assertFalse(c.recodeInPlace(null));
+            assertEquals(3, dir.list().length);
+        } finally {
+            Support.deleteTree(dir);
+        }
+    }
+
+    public void testRecodeInPlaceMapped() throws Exception {
+        if (System.getProperty("os.name", "").startsWith("Windows")) {
+            // mapped files can't be replaced there, so they're read instead
+            return;
+        }
+        final File dir = Support.createTempDirectory("testRecodeInPlaceMapped");
+        try {
+            final File f = new File(dir, "de.txt");
+            TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), f);
+            final Convertee c = new Convertee(f);
+            c.setMapThreshold(0);
+            final SniffedInput input = c.sniff();
+            assertTrue(input.isMapped());
+            c.setSourceEncoding("ISO-8859-1");
+            assertTrue(c.recodeInPlace(input, null));
+            assertTrue(Support.fileContentsEqual(f, Support.getFile("de_utf-8.txt")));
+            assertEquals(1, dir.list().length);
+        } finally {
+            Support.deleteTree(dir);
+        }
+    }
+
+    public void testRecodeInPlaceKeepsOwner() throws Exception {
+        final File dir = Support.createTempDirectory("testRecodeInPlaceKeepsOwner");
+        try {
+            final File f = new File(dir, "de.txt");
+            TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), f);
+            final Path path = f.toPath();
+            final UserPrincipal nobody;
+            try {
+                nobody = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName("nobody");
+                Files.setOwner(path, nobody);
+            } catch (final Exception e) {
+                // not root, or no such user: nothing to test
+                return;
+            }
+            final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+            Files.setPosixFilePermissions(path, permissions);
+
+            final Convertee c = new Convertee(f);
+            c.setSourceEncoding("ISO-8859-1");
+            assertTrue(c.recodeInPlace(null));
+            assertTrue(Support.fileContentsEqual(f, Support.getFile("de_utf-8.txt")));
+            assertEquals(nobody, Files.getOwner(path));
+            assertEquals(permissions, Files.getPosixFilePermissions(path));
+        } finally {
+            Support.deleteTree(dir);
+        }
+    }
+
+    public void testRecodeInPlaceNoticesWriter() throws Exception {
+        final File dir = Support.createTempDirectory("testRecodeInPlaceNoticesWriter");
+        try {
+            final File f = new File(dir, "de.txt");
+            TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), f);
+            final Convertee c = new Convertee(f);
+            final SniffedInput input = c.sniff();
+            try (FileOutputStream out = new FileOutputStream(f, true)) {
+                out.write("still writing".getBytes("US-ASCII"));
+            }
+            c.detectAndSetSourceEncoding(input);
+            try {
+                c.recodeInPlace(input, null);
+                fail("file modified after sniffing was replaced");
+            } catch (final IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().endsWith("was modified during conversion"));
+            }
+            assertEquals(Support.getFile("de_iso8859-1.txt").length() + 13, f.length());
+            assertEquals(1, dir.list().length);
+        } finally {
+            Support.deleteTree(dir);
+        }
+    }
+
+    public void testSampledDetection() throws Exception {
+        final String[] filenames = { "de_iso8859-1.txt", "de_utf-8.txt", "ro_windows1250.txt", "ro_utf-8.txt" };
+        final boolean[] utf8 = { false, true, false, true };
+
+        for (int i = 0; i < filenames.length; i++) {
+            // build a file much larger than the sample budget
+            final byte[] sample = Support.readBytes(Support.getFile(filenames[i]));
+            final File f = File.createTempFile("testSampledDetection", "txt");
+            f.deleteOnExit();
+            final FileOutputStream out = new FileOutputStream(f);
+            try {
+                for (int j = 0; j < 100; j++) {
+                    out.write(sample);
+                }
+            } finally {
+                out.close();
+            }
+
+            final Convertee c = new Convertee(f);
+            c.setSampleBudget(4000);
+            final DetectionResult result = c.detect();
+            assertEquals(filenames[i], utf8[i], "UTF-8".equals(result.getDetectedCharset()));
+            assertTrue(result.getBytesRead() <= 4000);
+            if (utf8[i]) {
+                assertEquals("UTF-8", result.getEncoding());
+                assertEquals((double) result.getBytesRead() / f.length(), result.getConfidence(), 0.0001);
+            } else {
+                assertNull(result.getEncoding());
+                assertEquals(0.0, result.getConfidence(), 0.0);
+            }
+            // a sample is no proof
+            assertFalse(c.detectAndSetSourceEncoding());
+
+            c.setMapThreshold(0);
+            final DetectionResult mapped = c.detect();
+            assertEquals(result.getDetectedCharset(), mapped.getDetectedCharset());
+            assertEquals(result.getBytesRead(), mapped.getBytesRead());
+        }
+    }
+
+    public void testTinySampleBudget() throws Exception {
+        // budgets smaller than a BOM, on files between budget and sample size
+        final File f = File.createTempFile("testTinySampleBudget", "txt");
+        f.deleteOnExit();
+        for (int size = 1; size <= 20; size++) {
+            final byte[] content = new byte[size];
+            Arrays.fill(content, (byte) 'a');
+            content[size - 1] = (byte) 0xE9;
+            Files.write(f.toPath(), content);
+            for (int budget = 1; budget <= 4; budget++) {
+                final Convertee c = new Convertee(f);
+                c.setSampleBudget(budget);
+                final DetectionResult result = c.detect();
+                if (size <= 12) {
+                    assertTrue(result.isComplete());
+                    assertNull(result.getDetectedCharset());
+                }
+                c.setMapThreshold(0);
+                assertEquals(result.getDetectedCharset(), c.detect().getDetectedCharset());
+            }
+        }
+    }
+
+    public void testSharedDetector() throws Exception {
+        final String[] filenames = { "de_iso8859-1.txt", "de_utf-8.txt", "utf_16be_bom.txt", "ro_utf-8.txt", "sr_iso8859-5.txt" };
+        final String[] expected = { null, "UTF-8", "UTF-16BE", "UTF-8", null };
+
+        // one detector, used by many threads at once
+        final EncodingDetector detector = new EncodingDetector(Convertee.UNLIMITED_SAMPLE_BUDGET, Convertee.NO_MAPPING);
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<DetectionResult>> results = new ArrayList<Future<DetectionResult>>();
+            for (int i = 0; i < 200; i++) {
+                final File f = Support.getFile(filenames[i % filenames.length]);
+                results.add(executor.submit(new Callable<DetectionResult>() {
+                    public DetectionResult call() throws Exception {
+                        return detector.detect(f);
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                final DetectionResult result = results.get(i).get();
+                assertEquals(filenames[i % filenames.length], expected[i % filenames.length], result.getEncoding());
+                assertEquals((result.getEncoding() != null) ? 1.0 : 0.0, result.getConfidence(), 0.0);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    public void testUnlimitedDetectionReportsBytesRead() throws Exception {
+        final File f = Support.getFile("de_iso8859-1.txt");
+        final Convertee c = new Convertee(f);
+        final DetectionResult result = c.detect();
+        assertTrue(result.isComplete());
+        assertTrue(result.getBytesRead() > 0);
+        assertTrue(result.getBytesRead() <= f.length());
+    }
+
     public void testAvailableCharsets() {
         final String[] charsets = Convertee.getAvailableCharsets();
 
@@ -0,0 +1,125 @@
+package net.e175.tools.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.Convertee;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.DoubleEncodingRepair;
+import net.e175.tools.TreeConverter;
+
+public class DoubleEncodingRepairTest extends TestCase {
+
+    private static final String[] FILES = { "de_utf-8.txt", "ro_utf-8.txt", "sr_utf-8.txt" };
+
+    public void testUndoLayers() throws Exception {
+        for (int i = 0; i < FILES.length; i++) {
+            final byte[] original = Support.readBytes(Support.getFile(FILES[i]));
+            byte[] broken = original;
+            for (int layers = 1; layers <= DoubleEncodingRepair.MAX_LAYERS; layers++) {
+                broken = doubleEncode(broken, (i % 2 == 0) ? "windows-1252" : "ISO-8859-1");
+                assertTrue(FILES[i] + ", " + layers + " layer(s)", Arrays.equals(original, repair(broken, layers)));
+            }
+        }
+    }
+
+    public void testCorrectTextUnchanged() throws Exception {
+        for (int i = 0; i < FILES.length; i++) {
+            final byte[] original = Support.readBytes(Support.getFile(FILES[i]));
+            assertTrue(FILES[i], Arrays.equals(original, repair(original, 1)));
+        }
+    }
+
+    public void testMixedText() throws Exception {
+        // a correct a-umlaut next to a double-encoded one
+        final byte[] mixed = "\u00E4 \u00C3\u00A4 \u00C3x".getBytes("UTF-8");
+        final DoubleEncodingRepair repair = new DoubleEncodingRepair();
+        final ByteBuffer out = ByteBuffer.allocate(64);
+        assertFalse(repair.repair(ByteBuffer.wrap(mixed), out, true));
+        assertEquals("\u00E4 \u00E4 \u00C3x", new String(out.array(), 0, out.position(), "UTF-8"));
+        assertEquals(1, repair.getRepairedCount());
+        assertEquals(2, repair.getRejectedCount());
+    }
+
+    public void testDetection() throws Exception {
+        final byte[] original = Support.readBytes(Support.getFile("de_utf-8.txt"));
+        final File f = File.createTempFile("testDetection", "txt");
+        f.deleteOnExit();
+
+        Files.write(f.toPath(), original);
+        DetectionResult result = new Convertee(f).detect();
+        assertEquals(0, result.getDoubleEncodingLayers());
+        assertTrue(result.getDoubleEncodingConfidence() < 0.5);
+
+        Files.write(f.toPath(), doubleEncode(doubleEncode(original, "windows-1252"), "windows-1252"));
+        result = new Convertee(f).detect();
+        assertEquals(2, result.getDoubleEncodingLayers());
+        assertEquals(1.0, result.getDoubleEncodingConfidence(), 0.001);
+
+        final Convertee mapped = new Convertee(f);
+        mapped.setMapThreshold(0);
+        mapped.setSourceEncoding(Convertee.UTF8_ENCODING);
+        mapped.setDoubleEncodingLayers(2);
+        final File target = File.createTempFile("testDetection", "txt");
+        target.deleteOnExit();
+        mapped.recode(target);
+        assertTrue(Support.fileContentsEqual(target, Support.getFile("de_utf-8.txt")));
+
+        final ConversionOptions options = new ConversionOptions();
+        options.setRepairDoubleEncoding(true);
+        assertTrue(new TreeConverter().convert(new Convertee(f), options));
+        assertTrue(Support.fileContentsEqual(f, Support.getFile("de_utf-8.txt")));
+    }
+
+    private static byte[] doubleEncode(final byte[] utf8, final String misreadAs) throws IOException {
+        final StringBuffer misread = new StringBuffer();
+        for (int i = 0; i < utf8.length; i++) {
+            final String c = new String(utf8, i, 1, misreadAs);
+            // bytes undefined in windows-1252 end up as C1 controls
+            misread.append("\uFFFD".equals(c) ? (char) (utf8[i] & 0xFF) : c.charAt(0));
+        }
+        return misread.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * Repair through channels, reading a few bytes at a time so that
+     * sequences span reads.
+     */
+    private static byte[] repair(final byte[] input, final int layers) throws IOException {
+        final ReadableByteChannel in = DoubleEncodingRepair.repairingChannel(Channels.newChannel(new TrickleInputStream(input)), layers);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteBuffer buf = ByteBuffer.allocate(5);
+        while (in.read(buf) != -1) {
+            out.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+        return out.toByteArray();
+    }
+
+    private static final class TrickleInputStream extends InputStream {
+
+        private final ByteArrayInputStream in;
+
+        TrickleInputStream(final byte[] data) {
+            this.in = new ByteArrayInputStream(data);
+        }
+
+        public int read() {
+            return this.in.read();
+        }
+
+        public int read(final byte[] b, final int off, final int len) {
+            return this.in.read(b, off, Math.min(len, 3));
+        }
+    }
+}
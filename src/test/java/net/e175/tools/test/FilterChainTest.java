@@ -0,0 +1,97 @@
+package net.e175.tools.test;
+
+import java.nio.CharBuffer;
+
+import junit.framework.TestCase;
+import net.e175.tools.BlockCharFilter;
+import net.e175.tools.BrokenGermanUTFConversionFilter;
+import net.e175.tools.CharMapping;
+import net.e175.tools.CharReplacement;
+import net.e175.tools.FilterChain;
+import net.e175.tools.LineEndingFilter;
+
+public class FilterChainTest extends TestCase {
+
+    private static final CharMapping NBSP_TO_SPACE = new CharReplacement().replace('\u00A0', ' ');
+
+    private static final CharMapping REMOVE_NUL = new CharReplacement().remove('\u0000');
+
+    public void testLineEndings() {
+        final String input = "a\r\nb\rc\nd\r\r\ne\r";
+        assertEquals("a\nb\nc\nd\n\ne\n", filter(new LineEndingFilter(LineEndingFilter.LF), input, 1, 1));
+        assertEquals("a\r\nb\r\nc\r\nd\r\n\r\ne\r\n", filter(new LineEndingFilter(LineEndingFilter.CRLF), input, 1, 1));
+    }
+
+    public void testCharReplacement() {
+        final CharReplacement replacement = new CharReplacement().replace('\u00A0', ' ').remove('\u200B').replace('a', 'b');
+        assertEquals(' ', replacement.map('\u00A0'));
+        assertEquals(CharMapping.REMOVE, replacement.map('\u200B'));
+        assertEquals('b', replacement.map('a'));
+        assertEquals('z', replacement.map('z'));
+        assertEquals('\u20AC', replacement.map('\u20AC'));
+        assertEquals("b b", filter(chainOf(replacement), "a\u200B\u00A0a", 1, 1));
+    }
+
+    public void testFusion() {
+        assertEquals(0, new FilterChain().getStageCount());
+        assertEquals(1, new FilterChain().add(NBSP_TO_SPACE).add(REMOVE_NUL).getStageCount());
+        assertEquals(3, new FilterChain().add(NBSP_TO_SPACE).add(REMOVE_NUL).add(new LineEndingFilter(LineEndingFilter.LF))
+                .add(REMOVE_NUL).getStageCount());
+    }
+
+    public void testChainMatchesSequence() {
+        // broken a-umlaut, non-breaking spaces, NULs and mixed line endings
+        final StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 2000; i++) {
+            text.append("x\u00C3\u00A4\u00A0y\u0000").append((i % 3 == 0) ? "\r\n" : (i % 3 == 1) ? "\r" : "\n");
+        }
+        final String input = text.toString();
+
+        String expected = filter(new BrokenGermanUTFConversionFilter(), input, input.length(), input.length());
+        expected = filter(chainOf(NBSP_TO_SPACE), expected, expected.length(), expected.length());
+        expected = filter(chainOf(REMOVE_NUL), expected, expected.length(), expected.length());
+        expected = filter(new LineEndingFilter(LineEndingFilter.CRLF), expected, expected.length(), expected.length());
+        assertTrue(expected.startsWith("x\u00E4 y\r\nx"));
+
+        final int[] sizes = { 1, 2, 3, 7, 4096, 10000 };
+        for (int i = 0; i < sizes.length; i++) {
+            for (int j = 0; j < sizes.length; j++) {
+                final FilterChain chain = new FilterChain().add(new BrokenGermanUTFConversionFilter()).add(NBSP_TO_SPACE)
+                        .add(REMOVE_NUL).add(new LineEndingFilter(LineEndingFilter.CRLF));
+                assertEquals("in " + sizes[i] + ", out " + sizes[j], expected, filter(chain, input, sizes[i], sizes[j]));
+                chain.reset();
+                assertEquals(expected, filter(chain, input, sizes[i], sizes[j]));
+            }
+        }
+    }
+
+    public void testEmptyChain() {
+        assertEquals("abc", filter(new FilterChain(), "abc", 2, 1));
+    }
+
+    private static FilterChain chainOf(final CharMapping mapping) {
+        return new FilterChain().add(mapping);
+    }
+
+    /**
+     * Run the input through a filter in blocks of the given sizes.
+     */
+    private static String filter(final BlockCharFilter filter, final String input, final int inSize, final int outSize) {
+        final StringBuffer result = new StringBuffer();
+        final CharBuffer out = CharBuffer.allocate(outSize);
+        for (int i = 0; i <= input.length(); i += inSize) {
+            final CharBuffer in = CharBuffer.wrap(input, Math.min(i, input.length()), Math.min(i + inSize, input.length()));
+            final boolean endOfInput = (i + inSize > input.length());
+            while (filter.filter(in, out, endOfInput)) {
+                out.flip();
+                result.append(out);
+                out.clear();
+            }
+            assertFalse(in.hasRemaining());
+            out.flip();
+            result.append(out);
+            out.clear();
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,69 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import net.e175.tools.EncodingDetector;
+import net.e175.tools.InventoryReport;
+import net.e175.tools.TreeConverter;
+
+public class InventoryReportTest extends TestCase {
+
+    private File root;
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("inventoryReportTest");
+        final File sub = new File(this.root, "sub \"quoted\"");
+        assertTrue(sub.mkdir());
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "latin1.txt"));
+        TreeConverter.copyFile(Support.getFile("de_utf-8.txt"), new File(this.root, "utf8.txt"));
+        TreeConverter.copyFile(Support.getFile("utf_16be_bom.txt"), new File(sub, "utf16.txt"));
+        Files.write(new File(sub, "ascii.txt").toPath(), "plain".getBytes("US-ASCII"));
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+    }
+
+    public void testReport() throws Exception {
+        final TreeConverter converter = new TreeConverter();
+        final StringWriter out = new StringWriter();
+        final InventoryReport report = new InventoryReport(this.root.getPath(), out);
+        converter.scanTree(this.root, null, report);
+
+        // the undetectable file's line is there before the scan is finished
+        final File latin1 = new File(this.root, "latin1.txt");
+        final String guess = new EncodingDetector(converter.getSampleBudget(), converter.getMapThreshold()).guess(latin1)
+                .getDetectedCharset();
+        assertNotNull(guess);
+        final String undetectable = "{\"type\":\"undetectable\",\"path\":\"" + latin1.getPath().replace("\\", "\\\\")
+                + "\",\"size\":" + latin1.length() + ",\"binary\":false,\"unreadable\":false,\"guess\":\"" + guess + "\"}\n";
+        assertEquals(undetectable, out.toString());
+
+        report.finish();
+        assertEquals(4, report.getFileCount());
+        assertEquals(1, report.getUndetectableCount());
+        assertEquals(0, report.getUnreadableCount());
+        assertEquals(1, report.getBOMCount());
+        assertEquals(1, report.getAsciiOnlyCount());
+        assertEquals(0, report.getBinaryCount());
+        assertEquals(2, report.getEncodingCount("UTF-8"));
+        assertEquals(1, report.getEncodingCount("UTF-16BE"));
+        assertEquals(0, report.getEncodingCount("ISO-8859-1"));
+        // the legacy file's guess is counted apart from the certain results
+        assertEquals(1, report.getGuessedCount(guess));
+        assertEquals(0, report.getEncodingCount(guess));
+
+        final String[] lines = out.toString().split("\n");
+        assertEquals(4, lines.length);
+        assertTrue(lines[1], lines[1].startsWith("{\"type\":\"directory\",\"path\":"));
+        assertTrue(lines[1], lines[1].contains(",\"files\":2,") && lines[1].contains("\"undetectable\":1,\"encodings\":{\"UTF-8\":1},\"guessed\":{\"" + guess + "\":1}}"));
+        assertTrue(lines[2], lines[2].contains("sub \\\"quoted\\\"\",\"files\":2,"));
+        assertTrue(lines[2], lines[2].endsWith("\"encodings\":{\"UTF-16BE\":1,\"UTF-8\":1},\"guessed\":{}}"));
+        assertTrue(lines[3], lines[3].startsWith("{\"type\":\"summary\",\"root\":"));
+        assertTrue(lines[3], lines[3].endsWith(",\"files\":4,\"bytes\":" + report.getByteCount()
+                + ",\"bom\":1,\"asciiOnly\":1,\"binary\":0,\"unreadable\":0,\"undetectable\":1,\"encodings\":{\"UTF-16BE\":1,\"UTF-8\":2},\"guessed\":{\"" + guess + "\":1}}"));
+    }
+}
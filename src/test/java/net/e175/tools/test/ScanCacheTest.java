@@ -0,0 +1,104 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import net.e175.tools.Convertee;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.ScanCache;
+import net.e175.tools.TreeConverter;
+
+public class ScanCacheTest extends TestCase {
+
+    private static final String[] FILES = { "de_iso8859-1.txt", "de_utf-8.txt", "utf_16be_bom.txt", "de_utf-8-ok_bom.txt" };
+
+    private File root;
+
+    private File location;
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("scanCacheTest");
+        for (int i = 0; i < FILES.length; i++) {
+            TreeConverter.copyFile(Support.getFile(FILES[i]), new File(this.root, FILES[i]));
+        }
+        this.location = new File(Support.createTempDirectory("scanCacheIndex"), "index");
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+        Support.deleteTree(this.location.getParentFile());
+    }
+
+    public void testRoundTrip() throws Exception {
+        final ScanCache cache = ScanCache.load(this.location, this.root, 1000);
+        assertEquals(0, cache.size());
+        final DetectionResult[] results = new DetectionResult[FILES.length];
+        for (int i = 0; i < FILES.length; i++) {
+            final Convertee c = new Convertee(new File(this.root, FILES[i]));
+            c.setSampleBudget(1000);
+            c.detectAndSetSourceEncoding(cache);
+            results[i] = c.getDetectionResult();
+        }
+        cache.save();
+
+        final ScanCache loaded = ScanCache.load(this.location, this.root, 1000);
+        assertEquals(FILES.length, loaded.size());
+        for (int i = 0; i < FILES.length; i++) {
+            final ScanCache.Entry entry = loaded.get(new File(this.root, FILES[i]));
+            assertNotNull(FILES[i], entry);
+            assertEquals(results[i].toString(), entry.getResult().toString());
+        }
+
+        // a different sample budget invalidates everything
+        assertEquals(0, ScanCache.load(this.location, this.root, 2000).size());
+    }
+
+    public void testEntryKeepsStateBeforeDetection() throws Exception {
+        final File f = new File(this.root, FILES[0]);
+        final ScanCache cache = new ScanCache(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET);
+        final DetectionResult result = new Convertee(f).detect();
+
+        // as if the file had been appended to while it was being detected
+        cache.put(f, f.length() - 1, f.lastModified(), result);
+        assertNull(cache.get(f));
+
+        cache.put(f, f.length(), f.lastModified(), result);
+        assertSame(result, cache.get(f).getResult());
+    }
+
+    public void testChangedFilesAreDetectedAgain() throws Exception {
+        final File f = new File(this.root, FILES[0]);
+        ScanCache cache = ScanCache.load(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET);
+        assertFalse(new Convertee(f).detectAndSetSourceEncoding(cache));
+        cache.save();
+
+        // now it's UTF-8, with a different size and timestamp
+        Files.write(f.toPath(), Support.readBytes(Support.getFile("de_utf-8.txt")));
+        assertTrue(f.setLastModified(f.lastModified() - 10000));
+        cache = ScanCache.load(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET);
+        assertNull(cache.get(f));
+        final Convertee c = new Convertee(f);
+        assertTrue(c.detectAndSetSourceEncoding(cache));
+        assertEquals("UTF-8", c.getSourceEncoding());
+        assertNotNull(cache.get(f));
+    }
+
+    public void testUnusedEntriesAreDropped() throws Exception {
+        ScanCache cache = ScanCache.load(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET);
+        for (int i = 0; i < FILES.length; i++) {
+            new Convertee(new File(this.root, FILES[i])).detectAndSetSourceEncoding(cache);
+        }
+        cache.save();
+
+        cache = ScanCache.load(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET);
+        assertNotNull(cache.get(new File(this.root, FILES[1])));
+        cache.save();
+        assertEquals(1, ScanCache.load(this.location, this.root, Convertee.UNLIMITED_SAMPLE_BUDGET).size());
+    }
+
+    public void testCorruptIndex() throws Exception {
+        Files.write(this.location.toPath(), "garbage".getBytes("US-ASCII"));
+        assertEquals(0, ScanCache.load(this.location, this.root, 1000).size());
+    }
+}
@@ -0,0 +1,126 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import net.e175.tools.ScanResultStore;
+import net.e175.tools.TreeConverter;
+
+public class ScanResultStoreTest extends TestCase {
+
+    private static final String[] FILES = { "de_iso8859-1.txt", "de_utf-8.txt", "utf_16be_bom.txt", "de_utf-8-ok_bom.txt" };
+
+    private File root;
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("scanResultStoreTest");
+        final File sub = new File(this.root, "sub");
+        assertTrue(sub.mkdir());
+        for (int i = 0; i < FILES.length; i++) {
+            TreeConverter.copyFile(Support.getFile(FILES[i]), new File((i % 2 == 0) ? this.root : sub, FILES[i]));
+        }
+        Files.write(new File(sub, "binary.txt").toPath(), new byte[] { 'a', 0, 'b', 0, 'c', 0 });
+        Files.write(new File(this.root, "ascii.txt").toPath(), "plain".getBytes("US-ASCII"));
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+    }
+
+    private static int find(final ScanResultStore store, final String name) {
+        for (int row = 0; row < store.size(); row++) {
+            if (store.getName(row).equals(name)) {
+                return row;
+            }
+        }
+        fail(name + " not found");
+        return -1;
+    }
+
+    public void testScanTree() throws Exception {
+        final ScanResultStore store = new ScanResultStore();
+        new TreeConverter().scanTree(this.root, null, store);
+        assertEquals(FILES.length + 2, store.size());
+        assertEquals(2, store.getDirectoryCount());
+
+        final int latin = find(store, "de_iso8859-1.txt");
+        assertNull(store.getEncoding(latin));
+        assertEquals(ScanResultStore.NO_ENCODING, store.getEncodingId(latin));
+        assertEquals(new File(this.root, "de_iso8859-1.txt"), store.getFile(latin));
+        assertEquals(Support.getFile("de_iso8859-1.txt").length(), store.getSize(latin));
+
+        final int utf8 = find(store, "de_utf-8.txt");
+        assertEquals("UTF-8", store.getEncoding(utf8));
+        assertEquals(new File(this.root, "sub").getPath(), store.getDirectory(store.getDirectoryId(utf8)));
+        assertFalse(store.hasFlag(utf8, ScanResultStore.BOM));
+        assertFalse(store.hasFlag(utf8, ScanResultStore.ASCII_ONLY));
+
+        final int utf16 = find(store, "utf_16be_bom.txt");
+        assertTrue(store.hasFlag(utf16, ScanResultStore.BOM));
+        assertFalse(store.hasFlag(utf16, ScanResultStore.BINARY));
+
+        assertTrue(store.hasFlag(find(store, "binary.txt"), ScanResultStore.BINARY));
+        assertTrue(store.hasFlag(find(store, "ascii.txt"), ScanResultStore.ASCII_ONLY));
+
+        assertEquals("UTF-8", store.newConvertee(utf8).getSourceEncoding());
+    }
+
+    public void testGrowth() throws Exception {
+        final ScanResultStore store = new ScanResultStore();
+        final int count = 5000;
+        for (int i = 0; i < count; i++) {
+            final String encoding = (i % 3 == 0) ? null : ((i % 3 == 1) ? "UTF-8" : "windows-1252");
+            assertEquals(i, store.add(new File("dir" + (i % 7), "f\u00e4" + i), i, encoding, i % 32, i % 3, 0.5));
+        }
+        assertEquals(count, store.size());
+        assertEquals(7, store.getDirectoryCount());
+        assertEquals(2, store.getEncodingCount());
+        for (int i = 0; i < count; i += 97) {
+            assertEquals("f\u00e4" + i, store.getName(i));
+            assertEquals(new File("dir" + (i % 7), "f\u00e4" + i), store.getFile(i));
+            assertEquals(i, store.getSize(i));
+            assertEquals(i % 32, store.getFlags(i));
+            assertEquals(i % 3, store.getDoubleEncodingLayers(i));
+            assertEquals(0.5, store.getDoubleEncodingConfidence(i), 0.001);
+        }
+        assertNull(store.getEncoding(0));
+        assertEquals("UTF-8", store.getEncoding(1));
+        assertEquals("windows-1252", store.getEncoding(2));
+    }
+
+    public void testAddAll() throws Exception {
+        final File deep = new File(new File(new File(this.root, "a"), "b"), "c");
+        final ScanResultStore first = new ScanResultStore();
+        first.add(new File(this.root, "x.txt"), 1, "UTF-8", ScanResultStore.BOM, 0, 0);
+        first.setGuessedEncoding(first.add(new File(deep, "y.txt"), 2, null, 0, 0, 0), "Big5");
+        final ScanResultStore second = new ScanResultStore();
+        second.add(new File(deep, "z.txt"), 3, "windows-1252", ScanResultStore.ASCII_ONLY, 1, 0.9);
+        second.add(new File("relative", "w.txt"), 4, "UTF-8", 0, 0, 0);
+
+        final ScanResultStore merged = new ScanResultStore();
+        merged.addAll(first);
+        merged.addAll(second);
+        assertEquals(4, merged.size());
+        // only directories holding files count, not their ancestors
+        assertEquals(3, merged.getDirectoryCount());
+        assertEquals(3, merged.getEncodingCount());
+
+        assertEquals(new File(this.root, "x.txt"), merged.getFile(0));
+        assertEquals("UTF-8", merged.getEncoding(0));
+        assertTrue(merged.hasFlag(0, ScanResultStore.BOM));
+        assertEquals(new File(deep, "y.txt"), merged.getFile(1));
+        assertNull(merged.getEncoding(1));
+        assertEquals("Big5", merged.getGuessedEncoding(1));
+        assertNull(merged.getGuessedEncoding(2));
+        assertEquals(new File(deep, "z.txt"), merged.getFile(2));
+        assertEquals(merged.getDirectoryId(1), merged.getDirectoryId(2));
+        assertEquals(deep.getPath(), merged.getDirectory(merged.getDirectoryId(2)));
+        assertEquals("windows-1252", merged.getEncoding(2));
+        assertEquals(3, merged.getSize(2));
+        assertEquals(1, merged.getDoubleEncodingLayers(2));
+        assertEquals(0.9, merged.getDoubleEncodingConfidence(2), 0.001);
+        assertEquals(new File("relative", "w.txt"), merged.getFile(3));
+        assertEquals("UTF-8", merged.getEncoding(3));
+    }
+}
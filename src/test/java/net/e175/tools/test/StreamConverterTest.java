@@ -0,0 +1,95 @@
+package net.e175.tools.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.MalformedInputException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.DetectionResult;
+import net.e175.tools.StreamConverter;
+
+public class StreamConverterTest extends TestCase {
+
+    public void testDetectAndConvert() throws Exception {
+        final StreamConverter converter = new StreamConverter(new ConversionOptions(), StreamConverter.DEFAULT_PREFIX_LENGTH);
+        final String[][] cases = { { "de_iso8859-1.txt", "de_utf-8.txt", null }, { "de_utf-8.txt", "de_utf-8.txt", "UTF-8" },
+                { "de_utf-8-ok_bom.txt", "de_utf-8-ok.txt", "UTF-8" }, { "de_utf-16be-ok_bom.txt", "de_utf-8-ok.txt", "UTF-16BE" } };
+
+        for (int i = 0; i < cases.length; i++) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final DetectionResult detection = converter.convert(Support.getFile(cases[i][0]).toURI().toURL().openStream(), out);
+            assertEquals(cases[i][0], cases[i][2], detection.getEncoding());
+            assertTrue(cases[i][0], Arrays.equals(Support.readBytes(Support.getFile(cases[i][1])), out.toByteArray()));
+        }
+    }
+
+    public void testShortPrefix() throws Exception {
+        // the a-umlaut comes after the prefix, so UTF-8 is assumed and the
+        // invalid byte shows up later on
+        final byte[] input = "plain ASCII, then \u00E4".getBytes("ISO-8859-1");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new StreamConverter(new ConversionOptions(), 8).convert(new ByteArrayInputStream(input), out);
+            fail("malformed input after the prefix must fail");
+        } catch (final IOException e) {
+            assertTrue(e.getCause() instanceof MalformedInputException);
+        }
+
+        final ConversionOptions replacing = new ConversionOptions();
+        replacing.setReplaceMalformedInput(true);
+        out = new ByteArrayOutputStream();
+        final DetectionResult detection = new StreamConverter(replacing, 8).convert(new ByteArrayInputStream(input), out);
+        assertEquals("UTF-8", detection.getEncoding());
+        assertEquals(0.5, detection.getConfidence(), 0.0);
+        assertEquals("plain ASCII, then \uFFFD", out.toString("UTF-8"));
+
+        final ConversionOptions forced = new ConversionOptions();
+        forced.setForceDefaultEncoding(true);
+        out = new ByteArrayOutputStream();
+        assertNull(new StreamConverter(forced, 8).convert(new ByteArrayInputStream(input), out));
+        assertEquals("plain ASCII, then \u00E4", out.toString("UTF-8"));
+    }
+
+    public void testLongStream() throws Exception {
+        // 64 MB of Latin-1 that is never held in memory as a whole
+        final long length = 64L * 1024 * 1024;
+        final InputStream in = new InputStream() {
+            private long position = 0;
+
+            public int read() {
+                return (this.position < length) ? ((this.position++ % 2 == 0) ? 'a' : 0xE4) : -1;
+            }
+
+            public int read(final byte[] b, final int off, final int len) {
+                if (this.position >= length) {
+                    return -1;
+                }
+                final int n = (int) Math.min(len, length - this.position);
+                for (int i = 0; i < n; i++) {
+                    b[off + i] = (byte) this.read();
+                }
+                return n;
+            }
+        };
+        final long[] written = new long[1];
+        final OutputStream out = new OutputStream() {
+            public void write(final int b) {
+                written[0]++;
+            }
+
+            public void write(final byte[] b, final int off, final int len) {
+                written[0] += len;
+            }
+        };
+
+        final DetectionResult detection = new StreamConverter(new ConversionOptions(), 4096).convert(in, out);
+        assertNull(detection.getEncoding());
+        // a-umlaut takes two bytes in UTF-8
+        assertEquals(length / 2 * 3, written[0]);
+    }
+}
@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
 
 /**
  * Some support methods for test cases.
@@ -51,4 +52,33 @@ class Support {
         return true;
     }
 
+    static byte[] readBytes(File f) throws IOException {
+        final FileInputStream in = new FileInputStream(f);
+        try {
+            final byte[] data = new byte[(int) f.length()];
+            int pos = 0;
+            int n;
+            while ((pos < data.length) && ((n = in.read(data, pos, data.length - pos)) > 0)) {
+                pos += n;
+            }
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    static void deleteTree(File f) {
+        final File[] children = Files.isSymbolicLink(f.toPath()) ? null : f.listFiles();
+        if (children != null) {
+            for (int i = 0; i < children.length; i++) {
+                deleteTree(children[i]);
+            }
+        }
+        f.delete();
+    }
+
 }
@@ -0,0 +1,95 @@
+package net.e175.tools.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.e175.tools.ToUTFCommandLine;
+import net.e175.tools.TreeConverter;
+
+public class ToUTFCommandLineTest extends TestCase {
+
+    private File root;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("commandLineTest");
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "latin1.txt"));
+        TreeConverter.copyFile(Support.getFile("de_utf-8.txt"), new File(this.root, "utf8.txt"));
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "ignored.java"));
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+    }
+
+    private int run(final String[] args) throws Exception {
+        return ToUTFCommandLine.run(args, new PrintStream(this.out, true, "UTF-8"), new PrintStream(this.err, true, "UTF-8"));
+    }
+
+    public void testConvert() throws Exception {
+        assertEquals(ToUTFCommandLine.EXIT_OK, this.run(new String[] { "-e", ".txt", "-b", "-j", "2", this.root.getPath() }));
+
+        final String[] lines = this.out.toString("UTF-8").split("\n");
+        Arrays.sort(lines);
+        assertEquals(2, lines.length);
+        assertEquals("converted\t" + new File(this.root, "latin1.txt") + "\tISO-8859-1", lines[0]);
+        assertEquals("skipped\t" + new File(this.root, "utf8.txt") + "\tUTF-8", lines[1]);
+        assertTrue(this.err.toString("UTF-8").startsWith("1 converted, 1 unchanged, 0 failed"));
+
+        assertTrue(Support.fileContentsEqual(new File(this.root, "latin1.txt"), Support.getFile("de_utf-8.txt")));
+        assertTrue(new File(this.root, "latin1.txt.backup").exists());
+        assertTrue(Support.fileContentsEqual(new File(this.root, "ignored.java"), Support.getFile("de_iso8859-1.txt")));
+    }
+
+    public void testReport() throws Exception {
+        assertEquals(ToUTFCommandLine.EXIT_OK, this.run(new String[] { "-e", ".txt", "--report", "-", this.root.getPath() }));
+
+        final String[] lines = this.out.toString("UTF-8").split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("{\"type\":\"undetectable\","));
+        assertTrue(lines[2], lines[2].startsWith("{\"type\":\"summary\","));
+        assertTrue(lines[2], lines[2].contains("\"files\":2,"));
+        assertTrue(this.err.toString("UTF-8").startsWith("2 files, 1 undetectable, 0 unreadable"));
+
+        // nothing converted
+        assertTrue(Support.fileContentsEqual(new File(this.root, "latin1.txt"), Support.getFile("de_iso8859-1.txt")));
+    }
+
+    public void testUsageErrors() throws Exception {
+        assertEquals(ToUTFCommandLine.EXIT_USAGE, this.run(new String[0]));
+        assertEquals(ToUTFCommandLine.EXIT_USAGE, this.run(new String[] { "--bogus", this.root.getPath() }));
+        assertEquals(ToUTFCommandLine.EXIT_USAGE, this.run(new String[] { "-s", "no-such-encoding", this.root.getPath() }));
+        assertEquals(ToUTFCommandLine.EXIT_USAGE, this.run(new String[] { this.root.getPath(), "-j" }));
+        assertEquals(ToUTFCommandLine.EXIT_USAGE, this.run(new String[] { new File(this.root, "latin1.txt").getPath() }));
+        assertEquals(0, this.out.size());
+        assertEquals(ToUTFCommandLine.EXIT_OK, this.run(new String[] { "--help" }));
+        assertTrue(this.out.toString("UTF-8").startsWith("usage:"));
+    }
+
+    public void testPipe() throws Exception {
+        final byte[] input = Support.readBytes(Support.getFile("de_iso8859-1.txt"));
+        assertEquals(ToUTFCommandLine.EXIT_OK, ToUTFCommandLine.run(new String[] { "-p", "1024", "-" }, new ByteArrayInputStream(input),
+                new PrintStream(this.out), new PrintStream(this.err, true, "UTF-8")));
+        assertTrue(Arrays.equals(Support.readBytes(Support.getFile("de_utf-8.txt")), this.out.toByteArray()));
+        assertEquals("read as ISO-8859-1", this.err.toString("UTF-8").trim());
+    }
+
+    public void testPipeFailsOnMalformedInputAfterPrefix() throws Exception {
+        final byte[] input = "plain ASCII, then \u00E4".getBytes("ISO-8859-1");
+        assertEquals(ToUTFCommandLine.EXIT_FAILURES, ToUTFCommandLine.run(new String[] { "-p", "8", "-" }, new ByteArrayInputStream(input),
+                new PrintStream(this.out), new PrintStream(this.err)));
+        assertTrue(this.err.toString().startsWith("failed: "));
+
+        this.out.reset();
+        assertEquals(ToUTFCommandLine.EXIT_OK, ToUTFCommandLine.run(new String[] { "-p", "8", "--replace-malformed", "-" },
+                new ByteArrayInputStream(input), new PrintStream(this.out), new PrintStream(this.err)));
+        assertEquals("plain ASCII, then \uFFFD", this.out.toString("UTF-8"));
+    }
+}
@@ -0,0 +1,127 @@
+package net.e175.tools.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import net.e175.tools.BlockCharFilter;
+import net.e175.tools.BrokenGermanUTFConversionFilter;
+import net.e175.tools.CharFilter;
+import net.e175.tools.CharFilterAdapter;
+import net.e175.tools.Transcoder;
+
+public class TranscoderTest extends TestCase {
+
+    private static final String[] FILES = { "de_iso8859-1.txt", "de_utf-8.txt", "de_utf-8-broken.txt", "de_utf-8-ok_bom.txt",
+            "de_utf-16be-ok_bom.txt", "ro_ibm852.txt", "ro_windows1250.txt", "sr_iso8859-5.txt", "utf_16be_bom.txt" };
+
+    private static final String[] ENCODINGS = { "ISO-8859-1", "UTF-8", "UTF-8", "UTF-8", "UTF-16BE", "IBM852", "windows-1250", "ISO-8859-5",
+            "UTF-16BE" };
+
+    private static final int[] BUFFER_SIZES = { 16, 17, 64, Transcoder.DEFAULT_BUFFER_SIZE };
+
+    public void testSameAsCharacterLoop() throws Exception {
+        for (int i = 0; i < FILES.length; i++) {
+            final byte[] input = Support.readBytes(Support.getFile(FILES[i]));
+            for (int j = 0; j < BUFFER_SIZES.length; j++) {
+                final Transcoder transcoder = new Transcoder(BUFFER_SIZES[j]);
+                assertSame(FILES[i], input, ENCODINGS[i], transcoder, true, null);
+                assertSame(FILES[i], input, ENCODINGS[i], transcoder, false, null);
+                assertSame(FILES[i], input, ENCODINGS[i], transcoder, true, new BrokenGermanUTFConversionFilter());
+            }
+        }
+    }
+
+    public void testSurrogatesAcrossBlocks() throws Exception {
+        final StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            text.append("x\uD834\uDD1E"); // musical G clef, outside the BMP
+        }
+        final byte[] input = text.toString().getBytes("UTF-16BE");
+        final Transcoder transcoder = new Transcoder(16);
+
+        assertSame("surrogates", input, "UTF-16BE", transcoder, true, null);
+        assertSame("surrogates", input, "UTF-16BE", transcoder, true, new BrokenGermanUTFConversionFilter());
+        assertTrue(Arrays.equals(text.toString().getBytes("UTF-8"), transcode(transcoder, input, "UTF-16BE", true, null)));
+    }
+
+    public void testMalformedInputReplaced() throws Exception {
+        final byte[] input = { 'a', (byte) 0xC3, 'b', (byte) 0xE2, (byte) 0x82 };
+        assertSame("malformed", input, "UTF-8", new Transcoder(16), true, null);
+    }
+
+    public void testEmptyInput() throws Exception {
+        assertEquals(0, transcode(new Transcoder(), new byte[0], "UTF-8", true, null).length);
+        assertEquals(0, transcode(new Transcoder(), new byte[0], "UTF-8", true, new BrokenGermanUTFConversionFilter()).length);
+    }
+
+    private static void assertSame(final String name, final byte[] input, final String encoding, final Transcoder transcoder,
+            final boolean stripBOM, final CharFilter filter) throws IOException {
+        final byte[] expected = characterLoop(input, encoding, stripBOM, filter);
+        final byte[] actual = transcode(transcoder, input, encoding, stripBOM, CharFilterAdapter.forFilter(filter));
+        assertTrue(name + " should be identical to per-character conversion", Arrays.equals(expected, actual));
+
+        if (filter != null) {
+            filter.reset();
+            final byte[] adapted = transcode(transcoder, input, encoding, stripBOM, new CharFilterAdapter(filter));
+            assertTrue(name + " should be identical through the adapter", Arrays.equals(expected, adapted));
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transcoder.transcode(ByteBuffer.wrap(input), encoding, Channels.newChannel(out), "UTF-8", stripBOM, CharFilterAdapter.forFilter(filter));
+        assertTrue(name + " should convert the same from a buffer", Arrays.equals(expected, out.toByteArray()));
+    }
+
+    private static byte[] transcode(final Transcoder transcoder, final byte[] input, final String encoding, final boolean stripBOM,
+            final BlockCharFilter filter) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        transcoder.transcode(Channels.newChannel(new ByteArrayInputStream(input)), encoding, Channels.newChannel(out), "UTF-8", stripBOM,
+                filter);
+        return out.toByteArray();
+    }
+
+    /**
+     * The original reader/writer conversion, used as reference.
+     */
+    private static byte[] characterLoop(final byte[] input, final String encoding, final boolean stripBOM, final CharFilter filter)
+            throws IOException {
+        final Reader reader = new InputStreamReader(new ByteArrayInputStream(input), encoding);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final Writer writer = new OutputStreamWriter(out, "UTF-8");
+
+        if (filter != null) {
+            filter.reset();
+        }
+
+        int c;
+        boolean firstChar = true;
+        do {
+            c = reader.read();
+            boolean ignoreChar = false;
+            if (firstChar) {
+                firstChar = false;
+                if (stripBOM && (c == 0xFEFF) && encoding.startsWith("UTF-")) {
+                    ignoreChar = true;
+                }
+            }
+            if (!ignoreChar) {
+                if (filter != null) {
+                    writer.write(filter.filter(c));
+                } else if (c != -1) {
+                    writer.write(c);
+                }
+            }
+        } while (c != -1);
+
+        writer.close();
+        return out.toByteArray();
+    }
+}
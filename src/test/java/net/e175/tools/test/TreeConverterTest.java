@@ -0,0 +1,483 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import net.e175.tools.ConversionListener;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.BlockCharFilter;
+import net.e175.tools.CharReplacement;
+import net.e175.tools.ContentHash;
+import net.e175.tools.Convertee;
+import net.e175.tools.FilterChain;
+import net.e175.tools.FilterFactory;
+import net.e175.tools.LineEndingFilter;
+import net.e175.tools.ScanResultStore;
+import net.e175.tools.TreeConverter;
+import net.e175.tools.WalkListener;
+
+public class TreeConverterTest extends TestCase {
+
+    private static final String[] SOURCES = { "de_iso8859-1.txt", "de_utf-8.txt", "de_utf-8-ok_bom.txt", "de_utf-16be-ok_bom.txt" };
+
+    private static final String[] EXPECTED = { "de_utf-8.txt", "de_utf-8.txt", "de_utf-8-ok.txt", "de_utf-8-ok.txt" };
+
+    private File root;
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("treeConverterTest");
+        final File sub = new File(this.root, "sub");
+        sub.mkdir();
+        for (int i = 0; i < SOURCES.length; i++) {
+            final File dir = (i % 2 == 0) ? this.root : sub;
+            TreeConverter.copyFile(Support.getFile(SOURCES[i]), new File(dir, i + ".txt"));
+        }
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(sub, "ignored.dat"));
+    }
+
+    protected void tearDown() throws Exception {
+        Support.deleteTree(this.root);
+    }
+
+    public void testListTree() {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        final List convertees = new LinkedList();
+        converter.listTree(this.root, convertees);
+        assertEquals(SOURCES.length, convertees.size());
+    }
+
+    public void testWalkFollowsLinksWithoutLooping() throws Exception {
+        final File sub = new File(this.root, "sub");
+        Files.createSymbolicLink(new File(sub, "loop").toPath(), this.root.toPath());
+
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        final Set<File> found = new HashSet<File>();
+        for (final Iterator<Convertee> it = converter.walk(this.root); it.hasNext();) {
+            assertTrue(found.add(it.next().getFile()));
+        }
+        assertEquals(SOURCES.length, found.size());
+
+        final Set<File> foundInParallel = Collections.synchronizedSet(new HashSet<File>());
+        converter.walk(this.root, new WalkListener() {
+            public void found(Convertee convertee) {
+                assertTrue(foundInParallel.add(convertee.getFile()));
+            }
+        });
+        assertEquals(found, foundInParallel);
+    }
+
+    public void testConvertTree() throws Exception {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        final List<Convertee> converted = Collections.synchronizedList(new ArrayList<Convertee>());
+        converter.convertTree(this.root, new ConversionOptions(), new ConversionListener() {
+            public void converted(Convertee convertee) {
+                converted.add(convertee);
+            }
+
+            public void skipped(Convertee convertee) {
+                converted.add(convertee);
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                fail(e.getMessage());
+            }
+        });
+        assertEquals(SOURCES.length, converted.size());
+        assertTrue(Support.fileContentsEqual(new File(this.root, "0.txt"), Support.getFile(EXPECTED[0])));
+    }
+
+    public void testParallelConversion() throws Exception {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setParallelism(3);
+        final List convertees = new LinkedList();
+        converter.listTree(this.root, convertees);
+
+        final List<Convertee> converted = Collections.synchronizedList(new ArrayList<Convertee>());
+        final List<IOException> failures = Collections.synchronizedList(new ArrayList<IOException>());
+        converter.convert(convertees, new ConversionOptions(), new ConversionListener() {
+            public void converted(Convertee convertee) {
+                converted.add(convertee);
+            }
+
+            public void skipped(Convertee convertee) {
+                converted.add(convertee);
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                failures.add(e);
+            }
+        });
+
+        assertTrue(failures.isEmpty());
+        assertEquals(SOURCES.length, converted.size());
+        for (int i = 0; i < SOURCES.length; i++) {
+            final File dir = (i % 2 == 0) ? this.root : new File(this.root, "sub");
+            assertTrue(SOURCES[i] + " should be converted", Support.fileContentsEqual(new File(dir, i + ".txt"), Support.getFile(EXPECTED[i])));
+        }
+    }
+
+    public void testLargestFirst() throws Exception {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setParallelism(1);
+        final List convertees = new LinkedList();
+        converter.listTree(this.root, convertees);
+
+        final Map<Convertee, Long> sizesBefore = new HashMap<Convertee, Long>();
+        for (Object c : convertees) {
+            sizesBefore.put((Convertee) c, Long.valueOf(((Convertee) c).getFile().length()));
+        }
+
+        final List<Long> sizes = new ArrayList<Long>();
+        converter.convert(convertees, new ConversionOptions(), new ConversionListener() {
+            public void converted(Convertee convertee) {
+                sizes.add(sizesBefore.get(convertee));
+            }
+
+            public void skipped(Convertee convertee) {
+                sizes.add(sizesBefore.get(convertee));
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                fail(e.getMessage());
+            }
+        });
+
+        final List<Long> sorted = new ArrayList<Long>(sizes);
+        Collections.sort(sorted, Collections.reverseOrder());
+        assertEquals(SOURCES.length, sizes.size());
+        assertEquals(sorted, sizes);
+    }
+
+    public void testConvertRows() throws Exception {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setParallelism(1);
+        final ScanResultStore store = new ScanResultStore();
+        converter.scanTree(this.root, null, store);
+        assertEquals(SOURCES.length, store.size());
+
+        // all but the first row, in file order
+        final int[] rows = new int[store.size() - 1];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = i + 1;
+        }
+        final File left = store.getFile(0);
+        final byte[] leftContents = Files.readAllBytes(left.toPath());
+
+        final List<Long> sizes = new ArrayList<Long>();
+        final Map<File, Long> sizesBefore = new HashMap<File, Long>();
+        for (final int row : rows) {
+            sizesBefore.put(store.getFile(row), Long.valueOf(store.getSize(row)));
+        }
+        converter.convert(store, rows, new ConversionOptions(), new ConversionListener() {
+            public void converted(Convertee convertee) {
+                sizes.add(sizesBefore.get(convertee.getFile()));
+            }
+
+            public void skipped(Convertee convertee) {
+                sizes.add(sizesBefore.get(convertee.getFile()));
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                fail(e.getMessage());
+            }
+        });
+
+        final List<Long> sorted = new ArrayList<Long>(sizes);
+        Collections.sort(sorted, Collections.reverseOrder());
+        assertEquals(rows.length, sizes.size());
+        assertFalse(sizes.contains(null));
+        assertEquals(sorted, sizes);
+        assertTrue(Arrays.equals(leftContents, Files.readAllBytes(left.toPath())));
+    }
+
+    public void testBackups() throws Exception {
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        final ConversionOptions options = new ConversionOptions();
+        options.setCreateBackups(true);
+
+        final File f = new File(this.root, "0.txt");
+        converter.convert(new Convertee(f), options);
+        assertTrue(Support.fileContentsEqual(new File(this.root, "0.txt" + ConversionOptions.DEFAULT_BACKUP_EXTENSION), Support
+                .getFile(SOURCES[0])));
+        assertTrue(Support.fileContentsEqual(f, Support.getFile(EXPECTED[0])));
+    }
+
+    public void testCleanFilesAreSkipped() throws Exception {
+        final File ascii = new File(this.root, "ascii.txt");
+        Files.write(ascii.toPath(), "plain old ASCII\n".getBytes("US-ASCII"));
+        final File utf8 = new File(new File(this.root, "sub"), "1.txt");
+        final long past = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+        assertTrue(ascii.setLastModified(past));
+        assertTrue(utf8.setLastModified(past));
+
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        final ConversionOptions options = new ConversionOptions();
+        options.setCreateBackups(true);
+
+        final Convertee scanned = new Convertee(ascii);
+        assertTrue(scanned.detectAndSetSourceEncoding());
+        assertTrue(TreeConverter.isNoop(scanned, options));
+        assertTrue(converter.isNoopWithFilters(scanned, options));
+
+        assertFalse(converter.convert(new Convertee(ascii), options));
+        assertFalse(converter.convert(new Convertee(utf8), options));
+        assertEquals(past, ascii.lastModified());
+        assertEquals(past, utf8.lastModified());
+        assertFalse(new File(ascii.getPath() + ConversionOptions.DEFAULT_BACKUP_EXTENSION).exists());
+
+        // BOM is stripped, so that file must be rewritten
+        assertTrue(converter.convert(new Convertee(new File(this.root, "2.txt")), options));
+    }
+
+    public void testUnchangedOutputIsNotWrittenBack() throws Exception {
+        final File utf8 = new File(new File(this.root, "sub"), "1.txt");
+        final long past = (System.currentTimeMillis() / 1000 - 3600) * 1000;
+        assertTrue(utf8.setLastModified(past));
+
+        // forced encoding, so there's no detection to rely on
+        final ConversionOptions options = new ConversionOptions();
+        options.setForceDefaultEncoding(true);
+        options.setDefaultEncoding(Convertee.UTF8_ENCODING);
+
+        assertFalse(new TreeConverter().convert(new Convertee(utf8), options));
+        assertEquals(past, utf8.lastModified());
+        assertTrue(Support.fileContentsEqual(utf8, Support.getFile(SOURCES[1])));
+    }
+
+    public void testSampleBudgetDoesNotApplyToConversion() throws Exception {
+        // a Latin-1 byte far from the start and end of a file larger than the
+        // sample budget, so sampled detection can't see it
+        final byte[] content = new byte[2 * 1024 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        content[500000] = (byte) 0xE9;
+        final File f = new File(this.root, "large.txt");
+        Files.write(f.toPath(), content);
+
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setSampleBudget(256 * 1024);
+        final ConversionOptions options = new ConversionOptions();
+        options.setDefaultEncoding("ISO-8859-1");
+        assertTrue(converter.convert(new Convertee(f), options));
+
+        final byte[] converted = Files.readAllBytes(f.toPath());
+        assertEquals(content.length + 1, converted.length);
+        assertEquals((byte) 0xC3, converted[500000]);
+        assertEquals((byte) 0xA9, converted[500001]);
+        assertEquals((byte) 'a', converted[converted.length - 1]);
+    }
+
+    public void testFiltersByExtension() throws Exception {
+        final File dos = new File(this.root, "dos.txt");
+        final File csv = new File(this.root, "table.csv.txt");
+        Files.write(dos.toPath(), "a\r\nb\rc\n".getBytes("US-ASCII"));
+        Files.write(csv.toPath(), "a;b\r\n".getBytes("US-ASCII"));
+
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setFilterFactory(".txt", new FilterFactory() {
+            public BlockCharFilter newFilter(final Convertee c) {
+                return new LineEndingFilter(LineEndingFilter.LF);
+            }
+        });
+        converter.setFilterFactory(".csv.txt", new FilterFactory() {
+            public BlockCharFilter newFilter(final Convertee c) {
+                return new FilterChain().add(new LineEndingFilter(LineEndingFilter.LF)).add(new CharReplacement().replace(';', ','));
+            }
+        });
+
+        final ConversionOptions options = new ConversionOptions();
+        final Convertee scanned = new Convertee(dos);
+        assertTrue(scanned.detectAndSetSourceEncoding());
+        assertTrue(TreeConverter.isNoop(scanned, options));
+        assertFalse(converter.isNoopWithFilters(scanned, options));
+
+        assertTrue(converter.convert(new Convertee(dos), options));
+        assertTrue(converter.convert(new Convertee(csv), options));
+        assertEquals("a\nb\nc\n", new String(Files.readAllBytes(dos.toPath()), "US-ASCII"));
+        assertEquals("a,b\n", new String(Files.readAllBytes(csv.toPath()), "US-ASCII"));
+
+        // already normalised, nothing to write back
+        assertFalse(converter.convert(new Convertee(dos), options));
+    }
+
+    public void testDeduplication() throws Exception {
+        final File sub = new File(this.root, "sub");
+        TreeConverter.copyFile(Support.getFile(SOURCES[0]), new File(this.root, "copy0a.txt"));
+        TreeConverter.copyFile(Support.getFile(SOURCES[0]), new File(sub, "copy0b.txt"));
+        TreeConverter.copyFile(Support.getFile(SOURCES[1]), new File(this.root, "copy1.txt"));
+        // same size as the copies, but different
+        final byte[] twin = Support.readBytes(Support.getFile(SOURCES[0]));
+        twin[0] = (byte) (twin[0] ^ 1);
+        Files.write(new File(sub, "twin.txt").toPath(), twin);
+
+        // counts the files that are actually converted
+        final AtomicInteger conversions = new AtomicInteger();
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setFilterFactory(".txt", new FilterFactory() {
+            public BlockCharFilter newFilter(final Convertee c) {
+                conversions.incrementAndGet();
+                return new FilterChain();
+            }
+        });
+        converter.setDeduplicate(true);
+
+        final List<File> reported = Collections.synchronizedList(new ArrayList<File>());
+        converter.convertTree(this.root, new ConversionOptions(), new ConversionListener() {
+            public void converted(Convertee convertee) {
+                reported.add(convertee.getFile());
+            }
+
+            public void skipped(Convertee convertee) {
+                reported.add(convertee.getFile());
+            }
+
+            public void failed(Convertee convertee, IOException e) {
+                fail(e.getMessage());
+            }
+        });
+
+        assertEquals(SOURCES.length + 4, reported.size());
+        assertEquals(SOURCES.length + 1, conversions.get());
+        assertTrue(Support.fileContentsEqual(new File(this.root, "copy0a.txt"), Support.getFile(EXPECTED[0])));
+        assertTrue(Support.fileContentsEqual(new File(sub, "copy0b.txt"), Support.getFile(EXPECTED[0])));
+        assertTrue(Support.fileContentsEqual(new File(this.root, "copy1.txt"), Support.getFile(EXPECTED[1])));
+        assertFalse(Support.fileContentsEqual(new File(sub, "twin.txt"), Support.getFile(EXPECTED[0])));
+        for (int i = 0; i < SOURCES.length; i++) {
+            final File dir = (i % 2 == 0) ? this.root : sub;
+            assertTrue(Support.fileContentsEqual(new File(dir, i + ".txt"), Support.getFile(EXPECTED[i])));
+        }
+    }
+
+    public void testDeduplicationNoticesChangedCopies() throws Exception {
+        final File dir = Support.createTempDirectory("testDeduplicationNoticesChangedCopies");
+        try {
+            final File[] files = { new File(dir, "a.txt"), new File(dir, "b.txt") };
+            for (final File f : files) {
+                Files.write(f.toPath(), "caf\u00e9\n".getBytes("ISO-8859-1"));
+            }
+
+            // whichever file is converted first, change the other one meanwhile
+            final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+            converter.setFilterFactory(".txt", new FilterFactory() {
+                private boolean changed = false;
+
+                public synchronized BlockCharFilter newFilter(final Convertee c) {
+                    if (!this.changed) {
+                        this.changed = true;
+                        final File other = c.getFile().equals(files[0]) ? files[1] : files[0];
+                        try {
+                            Files.write(other.toPath(), "na\u00efve\n".getBytes("ISO-8859-1"));
+                        } catch (final IOException e) {
+                            fail(e.getMessage());
+                        }
+                    }
+                    return null;
+                }
+            });
+            converter.setDeduplicate(true);
+
+            final Set<String> contents = Collections.synchronizedSet(new HashSet<String>());
+            converter.convertTree(dir, new ConversionOptions(), new ConversionListener() {
+                public void converted(Convertee convertee) {
+                    try {
+                        contents.add(new String(Files.readAllBytes(convertee.getFile().toPath()), "UTF-8"));
+                    } catch (final IOException e) {
+                        fail(e.getMessage());
+                    }
+                }
+
+                public void skipped(Convertee convertee) {
+                    fail(convertee + " skipped");
+                }
+
+                public void failed(Convertee convertee, IOException e) {
+                    fail(e.getMessage());
+                }
+            });
+
+            assertEquals(new HashSet<String>(Arrays.asList("caf\u00e9\n", "na\u00efve\n")), contents);
+        } finally {
+            Support.deleteTree(dir);
+        }
+    }
+
+    public void testInterruptWaitsForWorkers() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicBoolean busy = new AtomicBoolean(false);
+        final TreeConverter converter = new TreeConverter(new String[] { ".txt" });
+        converter.setParallelism(2);
+        converter.setFilterFactory(".txt", new FilterFactory() {
+            public BlockCharFilter newFilter(final Convertee c) {
+                busy.set(true);
+                started.countDown();
+                final long end = System.currentTimeMillis() + 500;
+                while (System.currentTimeMillis() < end) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (final InterruptedException e) {
+                        // a slow file, not an interruptible one
+                    }
+                }
+                busy.set(false);
+                return null;
+            }
+        });
+        final List convertees = new LinkedList();
+        converter.listTree(this.root, convertees);
+
+        final AtomicInteger outcome = new AtomicInteger();
+        final Thread t = new Thread() {
+            public void run() {
+                try {
+                    converter.convert(convertees, new ConversionOptions(), new ConversionListener() {
+                        public void converted(Convertee convertee) {
+                        }
+
+                        public void skipped(Convertee convertee) {
+                        }
+
+                        public void failed(Convertee convertee, IOException e) {
+                        }
+                    });
+                    outcome.set(1);
+                } catch (final InterruptedException e) {
+                    outcome.set(busy.get() ? 2 : 3);
+                }
+            }
+        };
+        t.start();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        t.interrupt();
+        t.join(10000);
+        // interrupted, but only returned once no file was being converted
+        assertEquals(3, outcome.get());
+    }
+
+    public void testContentHash() throws Exception {
+        final File copy = new File(this.root, "copy.txt");
+        TreeConverter.copyFile(Support.getFile(SOURCES[0]), copy);
+        assertEquals(ContentHash.of(Support.getFile(SOURCES[0])), ContentHash.of(copy));
+        assertFalse(ContentHash.of(copy) == ContentHash.of(Support.getFile(SOURCES[1])));
+
+        final File empty = new File(this.root, "empty.txt");
+        Files.write(empty.toPath(), new byte[0]);
+        final File nul = new File(this.root, "nul.txt");
+        Files.write(nul.toPath(), new byte[1]);
+        assertFalse(ContentHash.of(empty) == ContentHash.of(nul));
+    }
+}
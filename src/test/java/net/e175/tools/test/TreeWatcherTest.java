@@ -0,0 +1,126 @@
+package net.e175.tools.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import net.e175.tools.ConversionListener;
+import net.e175.tools.ConversionOptions;
+import net.e175.tools.Convertee;
+import net.e175.tools.TreeConverter;
+import net.e175.tools.TreeWatcher;
+
+public class TreeWatcherTest extends TestCase {
+
+    private static final long TIMEOUT = 10000;
+
+    private File root;
+
+    private TreeWatcher watcher;
+
+    private Thread thread;
+
+    private final BlockingQueue<String> converted = new LinkedBlockingQueue<String>();
+
+    protected void setUp() throws Exception {
+        this.root = Support.createTempDirectory("treeWatcherTest");
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "initial.txt"));
+
+        this.watcher = new TreeWatcher(new TreeConverter(new String[] { ".txt" }), this.root, new ConversionOptions(),
+                new ConversionListener() {
+                    public void converted(final Convertee convertee) {
+                        TreeWatcherTest.this.converted.add(convertee.getFile().getName());
+                    }
+
+                    public void skipped(final Convertee convertee) {
+                        // not of interest
+                    }
+
+                    public void failed(final Convertee convertee, final IOException e) {
+                        TreeWatcherTest.this.converted.add("failed " + convertee.getFile().getName());
+                    }
+                });
+        this.watcher.setDebounce(50);
+    }
+
+    private void startWatching() {
+        this.thread = new Thread() {
+            public void run() {
+                try {
+                    TreeWatcherTest.this.watcher.watch();
+                } catch (final Exception e) {
+                    TreeWatcherTest.this.converted.add("error " + e);
+                }
+            }
+        };
+        this.thread.start();
+    }
+
+    protected void tearDown() throws Exception {
+        this.watcher.close();
+        if (this.thread != null) {
+            this.thread.join(TIMEOUT);
+            assertFalse(this.thread.isAlive());
+        }
+        Support.deleteTree(this.root);
+    }
+
+    private void assertConverted(final String name) throws InterruptedException {
+        assertEquals(name, this.converted.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    public void testWatch() throws Exception {
+        this.startWatching();
+        assertConverted("initial.txt");
+        assertTrue(Support.fileContentsEqual(new File(this.root, "initial.txt"), Support.getFile("de_utf-8.txt")));
+
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "added.txt"));
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(this.root, "ignored.java"));
+        assertConverted("added.txt");
+        assertTrue(Support.fileContentsEqual(new File(this.root, "added.txt"), Support.getFile("de_utf-8.txt")));
+
+        final File sub = new File(new File(this.root, "sub"), "subsub");
+        assertTrue(sub.mkdirs());
+        TreeConverter.copyFile(Support.getFile("de_iso8859-1.txt"), new File(sub, "nested.txt"));
+        assertConverted("nested.txt");
+        assertTrue(Support.fileContentsEqual(new File(sub, "nested.txt"), Support.getFile("de_utf-8.txt")));
+        assertEquals(3, this.watcher.getWatchedDirectoryCount());
+
+        Support.deleteTree(sub.getParentFile());
+        final long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((this.watcher.getWatchedDirectoryCount() > 1) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(20);
+        }
+        assertEquals(1, this.watcher.getWatchedDirectoryCount());
+
+        assertNull(this.converted.poll(200, TimeUnit.MILLISECONDS));
+        assertTrue(Support.fileContentsEqual(new File(this.root, "ignored.java"), Support.getFile("de_iso8859-1.txt")));
+    }
+
+    public void testWaitsForFilesBeingWritten() throws Exception {
+        // batches are due at once, so only the file's age holds it back
+        this.watcher.setMaxDelay(0);
+        this.startWatching();
+        assertConverted("initial.txt");
+
+        final byte[] contents = Files.readAllBytes(Support.getFile("de_iso8859-1.txt").toPath());
+        final File growing = new File(this.root, "growing.txt");
+        try (OutputStream out = new FileOutputStream(growing)) {
+            final int chunk = (contents.length + 9) / 10;
+            for (int offset = 0; offset < contents.length; offset += chunk) {
+                out.write(contents, offset, Math.min(chunk, contents.length - offset));
+                out.flush();
+                Thread.sleep(20);
+            }
+        }
+        assertConverted("growing.txt");
+        assertTrue(Support.fileContentsEqual(growing, Support.getFile("de_utf-8.txt")));
+        assertNull(this.converted.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
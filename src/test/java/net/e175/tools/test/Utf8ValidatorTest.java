@@ -0,0 +1,93 @@
+package net.e175.tools.test;
+
+import junit.framework.TestCase;
+import net.e175.tools.Utf8Validator;
+
+public class Utf8ValidatorTest extends TestCase {
+
+    public void testSampleFiles() throws Exception {
+        final String[] filenames = { "de_iso8859-1.txt", "de_utf-8.txt", "ro_ibm852.txt", "ro_utf-8.txt", "ro_windows1250.txt", "sr_iso8859-5.txt",
+                "sr_utf-8.txt", "utf_8_bom.txt", "utf_16be_bom.txt" };
+        final boolean[] utf8 = { false, true, false, true, false, false, true, true, false };
+
+        for (int i = 0; i < filenames.length; i++) {
+            final byte[] data = Support.readBytes(Support.getFile(filenames[i]));
+            assertEquals(filenames[i], utf8[i], Utf8Validator.isValid(data, 0, data.length));
+        }
+    }
+
+    public void testWellFormedSequences() throws Exception {
+        assertValid(new int[] {});
+        assertValid(new int[] { 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h', 'i', 'j', 'k' });
+        assertValid(new int[] { 0xC2, 0x80 }); // U+0080
+        assertValid(new int[] { 0xDF, 0xBF }); // U+07FF
+        assertValid(new int[] { 0xE0, 0xA0, 0x80 }); // U+0800
+        assertValid(new int[] { 0xED, 0x9F, 0xBF }); // U+D7FF
+        assertValid(new int[] { 0xEF, 0xBF, 0xBD }); // U+FFFD
+        assertValid(new int[] { 0xF0, 0x90, 0x80, 0x80 }); // U+10000
+        assertValid(new int[] { 0xF4, 0x8F, 0xBF, 0xBF }); // U+10FFFF
+    }
+
+    public void testIllFormedSequences() throws Exception {
+        assertInvalid(new int[] { 0x80 }); // lone continuation byte
+        assertInvalid(new int[] { 0xC0, 0xAF }); // overlong '/'
+        assertInvalid(new int[] { 0xC1, 0xBF }); // overlong
+        assertInvalid(new int[] { 0xE0, 0x9F, 0xBF }); // overlong
+        assertInvalid(new int[] { 0xED, 0xA0, 0x80 }); // surrogate
+        assertInvalid(new int[] { 0xF0, 0x8F, 0xBF, 0xBF }); // overlong
+        assertInvalid(new int[] { 0xF4, 0x90, 0x80, 0x80 }); // above U+10FFFF
+        assertInvalid(new int[] { 0xF5, 0x80, 0x80, 0x80 });
+        assertInvalid(new int[] { 0xC3, 'a' }); // missing continuation
+        assertInvalid(new int[] { 'a', 'b', 0xE2, 0x82 }); // truncated at end
+    }
+
+    public void testSequencesAcrossBlocks() throws Exception {
+        final byte[] data = "0123456789abcdef\u00E4\u20AC\uD834\uDD1E0123456789".getBytes("UTF-8");
+        for (int split = 0; split <= data.length; split++) {
+            final Utf8Validator validator = new Utf8Validator();
+            assertTrue(validator.update(data, 0, split));
+            assertTrue(validator.update(data, split, data.length - split));
+            assertTrue(validator.finish(true));
+            assertFalse(validator.isAscii());
+        }
+    }
+
+    public void testSampledInputMayEndInSequence() throws Exception {
+        final byte[] data = { 'a', (byte) 0xE2, (byte) 0x82 };
+        final Utf8Validator validator = new Utf8Validator();
+        assertTrue(validator.update(data, 0, data.length));
+        assertTrue(validator.finish(false));
+    }
+
+    private static void assertValid(final int[] bytes) {
+        final byte[] data = toBytes(bytes);
+        assertTrue(Utf8Validator.isValid(data, 0, data.length));
+        // same with ASCII padding, so the long-wise skipping is exercised
+        final byte[] padded = pad(data);
+        assertTrue(Utf8Validator.isValid(padded, 0, padded.length));
+    }
+
+    private static void assertInvalid(final int[] bytes) {
+        final byte[] data = toBytes(bytes);
+        assertFalse(Utf8Validator.isValid(data, 0, data.length));
+        final byte[] padded = pad(data);
+        assertFalse(Utf8Validator.isValid(padded, 0, padded.length));
+    }
+
+    private static byte[] toBytes(final int[] bytes) {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return data;
+    }
+
+    private static byte[] pad(final byte[] data) {
+        final byte[] padded = new byte[data.length + 21];
+        for (int i = 0; i < padded.length; i++) {
+            padded[i] = 'x';
+        }
+        System.arraycopy(data, 0, padded, 13, data.length);
+        return padded;
+    }
+}